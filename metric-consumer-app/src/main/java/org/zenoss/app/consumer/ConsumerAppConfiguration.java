@@ -11,10 +11,12 @@
 
 package org.zenoss.app.consumer;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.api.client.util.Lists;
 import org.zenoss.app.AppConfiguration;
 import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
+import org.zenoss.app.consumer.metric.remote.TagFilter;
 import org.zenoss.app.metric.zapp.ManagedReporterConfig;
 
 import javax.validation.Valid;
@@ -42,6 +44,10 @@ public class ConsumerAppConfiguration extends AppConfiguration {
     @JsonProperty("tagWhiteListPrefixes")
     private List<String> tagWhiteListPrefixes = null;
 
+    /** The white lists compiled, or null until needed */
+    @JsonIgnore
+    private volatile TagFilter tagFilter;
+
     /**
      * Configuration details for the metric service
      *
@@ -86,12 +92,27 @@ public class ConsumerAppConfiguration extends AppConfiguration {
 
     public void setTagWhiteList(List<String> list) {
         tagWhiteList = list;
+        tagFilter = null;
     }
 
     public List<String> getTagWhiteListPrefixes() { return tagWhiteListPrefixes; }
 
     public void setTagWhiteListPrefixes(List<String> list) {
         tagWhiteListPrefixes = list;
+        tagFilter = null;
+    }
+
+    /**
+     * The white lists compiled into a filter. Compiled on first use and again after either list is set.
+     */
+    @JsonIgnore
+    public TagFilter getTagFilter() {
+        TagFilter filter = tagFilter;
+        if (filter == null) {
+            filter = TagFilter.compile(tagWhiteList, tagWhiteListPrefixes);
+            tagFilter = filter;
+        }
+        return filter;
     }
 
     public void setMetricServiceConfiguration(MetricServiceConfiguration metricServiceConfiguration) {
@@ -85,4 +85,25 @@ class ConsumerSpringConfig {
                 1);
     }
 
+    @Bean
+    @Qualifier("zapp::executor::push-retry")
+    ScheduledExecutorService pushRetryExecutorService() {
+        // Retries only check the queue and hand off, one thread keeps up with them
+        return dropwizardEnvironment.managedScheduledExecutorService(
+                "Push Retry Executor %d",
+                1);
+    }
+
+    @Bean
+    @Qualifier("zapp::executor::push")
+    ExecutorService pushExecutorService() {
+        // Queues retried pushes, which may wait for room in the queue or for the spill to sync
+        final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        return dropwizardEnvironment.managedExecutorService(
+                "Push Executor %d",
+                threads,
+                threads,
+                5, TimeUnit.SECONDS);
+    }
+
 }
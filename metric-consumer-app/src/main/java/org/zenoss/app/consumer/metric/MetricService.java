@@ -15,6 +15,7 @@ import org.zenoss.app.consumer.metric.data.Control;
 import org.zenoss.app.consumer.metric.data.Metric;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface MetricService {
     
@@ -29,6 +30,28 @@ public interface MetricService {
      */
     Control push(List<Metric> metrics, String clientId, Runnable onCollision);
 
+    /**
+     * Submit metrics to the tail of the queue without holding up the calling
+     * thread while the queue is backlogged. Retries are scheduled with the same
+     * back-off {@link #push(List, String, Runnable)} uses. The list is used as
+     * it is rather than copied, so it must not change until the result completes.
+     *
+     * @param metrics metrics to be written to TSDB.
+     * @param clientId identifies which client the metrics came from
+     * @param onCollision callback in case of collision(s), run before each retry.
+     * @return completed with the control message once the metrics are queued or given up on
+     */
+    CompletableFuture<Control> pushAsync(List<Metric> metrics, String clientId, Runnable onCollision);
+
+    /**
+     * How long a client should wait before pushing again, from how fast the queue has
+     * been draining and how much of the client's backlog is left.
+     *
+     * @param clientId identifies the client
+     * @return suggested back-off in milliseconds
+     */
+    long suggestedBackOff(String clientId);
+
     /**
      * Record a number of metrics were received (but not necessarily accepted/pushed).
      * @param received number of received metrics.
@@ -11,6 +11,7 @@
 
 package org.zenoss.app.consumer.metric;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.zenoss.lib.tsdb.OpenTsdbClientPoolConfiguration;
 
@@ -21,6 +22,23 @@ import org.zenoss.app.consumer.metric.data.Control.Type;
 
 public class MetricServiceConfiguration {
 
+    /**
+     * Storage used for metrics waiting to be written to TSDB.
+     */
+    public enum QueueType {
+        /** Unbounded linked queue */
+        LINKED,
+
+        /** Preallocated, bounded, lock-free ring buffer. See {@link #getRingBufferCapacity()} */
+        RING_BUFFER,
+
+        /**
+         * One queue per client, drained round-robin. See {@link #getShardQuantum()}.
+         * Clients under their fair share are no longer rejected below the high collision mark.
+         */
+        SHARDED,
+    }
+
     @Valid
     @JsonProperty("openTsdbClientPool")
     private OpenTsdbClientPoolConfiguration openTsdbClientPoolConfiguration = new OpenTsdbClientPoolConfiguration();
@@ -44,6 +62,25 @@ public class MetricServiceConfiguration {
     @JsonProperty
     private int lowCollisionMark = -1;
 
+    /**
+     * Which storage to use for the TSDB metrics queue
+     */
+    @JsonProperty
+    private QueueType queueType = QueueType.LINKED;
+
+    /**
+     * Number of slots in the ring buffer when queueType is RING_BUFFER.
+     * Defaults to twice {@link #highCollisionMark}.
+     */
+    @JsonProperty
+    private int ringBufferCapacity = -1;
+
+    /**
+     * Metrics each client may contribute per round-robin turn when queueType is SHARDED
+     */
+    @JsonProperty
+    private int shardQuantum = 100;
+
     /**
      * minimum time in milliseconds between broadcasting backoff messages
      */
@@ -75,6 +112,12 @@ public class MetricServiceConfiguration {
     @JsonProperty
     private int maxConnectionBackOff = 5000;
 
+    /**
+     * Batches each TSDB writer sends before checking OpenTSDB for errors; 1 checks after every batch
+     */
+    @JsonProperty
+    private int tsdbPipelineDepth = 1;
+
     /**
      * Min time in milliseconds to wait for reconnecting when no connections available
      */
@@ -101,6 +144,24 @@ public class MetricServiceConfiguration {
     @JsonProperty
     private int perClientMaxPercentOfFairBacklogSize = 100;
 
+    /**
+     * How many websocket messages from a single client may wait on a backlogged queue at once.
+     */
+    @JsonProperty
+    private int perClientMaxPendingPushes = 8;
+
+    /**
+     * Most dictionary codes to hold per websocket connection that can be told to reset them.
+     */
+    @JsonProperty
+    private int maxDictionarySize = 100000;
+
+    /**
+     * Slots in the pool deduplicating names and tags decoded from websockets.
+     */
+    @JsonProperty
+    private int stringPoolSize = 65536;
+
     /**
      * Ideal number of TSDB writer threads
      */
@@ -138,6 +199,15 @@ public class MetricServiceConfiguration {
     @Valid
     private ZingConfiguration zingConfiguration = new ZingConfiguration();
 
+    @Valid
+    private SpillConfiguration spillConfiguration = new SpillConfiguration();
+
+    @Valid
+    private SnapshotConfiguration snapshotConfiguration = new SnapshotConfiguration();
+
+    @Valid
+    private WriterAutoscaleConfiguration writerAutoscaleConfiguration = new WriterAutoscaleConfiguration();
+
     /**
      * TSDB client pool configuration.
      *
@@ -194,6 +264,57 @@ public class MetricServiceConfiguration {
             return lowCollisionMark;
     }
 
+    /**
+     * The storage used for metrics waiting to be written to TSDB.
+     *
+     * @return queue type
+     */
+    public QueueType getQueueType() {
+        return queueType;
+    }
+
+    /**
+     * The number of slots preallocated for the ring buffer queue. Pushes are
+     * already refused at {@link #getHighCollisionMark()}, so the ring only
+     * fills up when writers re-add a lot of failed batches at once; producers
+     * then wait for free slots, while re-added metrics that don't fit are
+     * spilled or counted lost. The ring rounds this up to a power of two.
+     *
+     * @return slots
+     */
+    public int getRingBufferCapacity() {
+        if (ringBufferCapacity <= 0)
+            return (int) Math.min(Integer.MAX_VALUE / 2 + 1, Math.max(2L * highCollisionMark, getMinRingBufferCapacity()));
+        else
+            return ringBufferCapacity;
+    }
+
+    /**
+     * The fewest slots the ring buffer can do with: everything up to
+     * {@link #getHighCollisionMark()}, plus a pipeline window of batches
+     * handed back by each writer that can run.
+     *
+     * @return slots
+     */
+    @JsonIgnore
+    public long getMinRingBufferCapacity() {
+        final int writers = writerAutoscaleConfiguration.isEnabled()
+                ? writerAutoscaleConfiguration.getMaxWriters()
+                : tsdbWriterThreads;
+        return highCollisionMark + (long) writers * Math.max(1, tsdbPipelineDepth) * jobSize;
+    }
+
+    /**
+     * The number of metrics each client may contribute to a writer's batch before the next
+     * client gets its turn, when the queue is SHARDED. Smaller values interleave clients more
+     * finely; larger values keep each client's metrics together.
+     *
+     * @return metrics per turn
+     */
+    public int getShardQuantum() {
+        return shardQuantum;
+    }
+
     /**
      * The maximum time to have a throttled client wait to add some metrics to a backlogged queue before we decide
      * to just give up instead.
@@ -204,6 +325,26 @@ public class MetricServiceConfiguration {
         return maxClientWaitTime;
     }
 
+    /**
+     * How many batches a TSDB writer sends on a connection before reading back errors. When
+     * more than 1, the writer keeps that many batches outstanding and, if OpenTSDB reports an
+     * error, requeues just those batches.
+     *
+     * @return batches
+     */
+    public int getTsdbPipelineDepth() {
+        return tsdbPipelineDepth;
+    }
+
+    /**
+     * How many batches a TSDB writer sends on a connection before reading back errors.
+     *
+     * @param tsdbPipelineDepth batches
+     */
+    public void setTsdbPipelineDepth(int tsdbPipelineDepth) {
+        this.tsdbPipelineDepth = tsdbPipelineDepth;
+    }
+
     /**
      * The maximum time to wait before trying to get a new connection when one isn't available
      *
@@ -280,6 +421,39 @@ public class MetricServiceConfiguration {
         return perClientMaxPercentOfFairBacklogSize;
     }
 
+    /**
+     * The number of messages from a single websocket client that may wait for
+     * room in a backlogged queue at once. Further messages from that client are
+     * dropped until one of them is accepted or given up on.
+     *
+     * @return maximum number of waiting messages per client
+     */
+    public int getPerClientMaxPendingPushes() {
+        return perClientMaxPendingPushes;
+    }
+
+    /**
+     * The number of dictionary codes to hold for each websocket connection
+     * that has sent a version 1 or dictionary frame. Past this, the codes
+     * least recently used are dropped, and a client that sends one of them is
+     * told to reset its dictionary. Other connections hold every code.
+     *
+     * @return maximum codes per connection
+     */
+    public int getMaxDictionarySize() {
+        return maxDictionarySize;
+    }
+
+    /**
+     * The number of slots in the pool that deduplicates metric names and tags
+     * decoded from websocket connections, in place of interning them.
+     *
+     * @return pool size
+     */
+    public int getStringPoolSize() {
+        return stringPoolSize;
+    }
+
 
     /**
      * The frequency with which this application will report internal metrics
@@ -372,6 +546,34 @@ public class MetricServiceConfiguration {
         this.lowCollisionMark = lowCollisionMark;
     }
 
+    /**
+     * The storage used for metrics waiting to be written to TSDB.
+     *
+     * @param queueType queue type
+     */
+    public void setQueueType(QueueType queueType) {
+        this.queueType = queueType;
+    }
+
+    /**
+     * The number of slots preallocated for the ring buffer queue.
+     *
+     * @param ringBufferCapacity slots (zero or negative value uses twice the high collision mark, or
+     *                           {@link #getMinRingBufferCapacity()} if that is more)
+     */
+    public void setRingBufferCapacity(int ringBufferCapacity) {
+        this.ringBufferCapacity = ringBufferCapacity;
+    }
+
+    /**
+     * The number of metrics each client may contribute per turn when the queue is SHARDED.
+     *
+     * @param shardQuantum metrics per turn
+     */
+    public void setShardQuantum(int shardQuantum) {
+        this.shardQuantum = shardQuantum;
+    }
+
     /**
      * The maximum time to have a throttled client wait to add some metrics to a backlogged queue before we decide
      * to just give up instead.
@@ -447,6 +649,39 @@ public class MetricServiceConfiguration {
         this.perClientMaxPercentOfFairBacklogSize = perClientMaxPercentOfFairBacklogSize;
     }
 
+    /**
+     * The number of messages from a single websocket client that may wait for
+     * room in a backlogged queue at once. Further messages from that client are
+     * dropped until one of them is accepted or given up on.
+     *
+     * @param perClientMaxPendingPushes maximum number of waiting messages per client
+     */
+    public void setPerClientMaxPendingPushes(int perClientMaxPendingPushes) {
+        this.perClientMaxPendingPushes = perClientMaxPendingPushes;
+    }
+
+    /**
+     * The number of dictionary codes to hold for each websocket connection
+     * that has sent a version 1 or dictionary frame. Past this, the codes
+     * least recently used are dropped, and a client that sends one of them is
+     * told to reset its dictionary. Other connections hold every code.
+     *
+     * @param maxDictionarySize maximum codes per connection
+     */
+    public void setMaxDictionarySize(int maxDictionarySize) {
+        this.maxDictionarySize = maxDictionarySize;
+    }
+
+    /**
+     * The number of slots in the pool that deduplicates metric names and tags
+     * decoded from websocket connections, in place of interning them.
+     *
+     * @param stringPoolSize pool size
+     */
+    public void setStringPoolSize(int stringPoolSize) {
+        this.stringPoolSize = stringPoolSize;
+    }
+
     /**
      * TSDB client pool configuration.
      *
@@ -494,4 +729,58 @@ public class MetricServiceConfiguration {
     public void setZingConfiguration(ZingConfiguration zingConfiguration) {
         this.zingConfiguration = zingConfiguration;
     }
+
+    /**
+     * The configuration for spilling the TSDB metrics queue to disk.
+     *
+     * @return spillConfiguration
+     */
+    public SpillConfiguration getSpillConfiguration() {
+        return spillConfiguration;
+    }
+
+    /**
+     * The configuration for spilling the TSDB metrics queue to disk.
+     *
+     * @param spillConfiguration the new spill configuration
+     */
+    public void setSpillConfiguration(SpillConfiguration spillConfiguration) {
+        this.spillConfiguration = spillConfiguration;
+    }
+
+    /**
+     * The configuration for saving queued metrics across restarts.
+     *
+     * @return snapshotConfiguration
+     */
+    public SnapshotConfiguration getSnapshotConfiguration() {
+        return snapshotConfiguration;
+    }
+
+    /**
+     * The configuration for saving queued metrics across restarts.
+     *
+     * @param snapshotConfiguration the new snapshot configuration
+     */
+    public void setSnapshotConfiguration(SnapshotConfiguration snapshotConfiguration) {
+        this.snapshotConfiguration = snapshotConfiguration;
+    }
+
+    /**
+     * The configuration for sizing the TSDB writer pool automatically.
+     *
+     * @return writerAutoscaleConfiguration
+     */
+    public WriterAutoscaleConfiguration getWriterAutoscaleConfiguration() {
+        return writerAutoscaleConfiguration;
+    }
+
+    /**
+     * The configuration for sizing the TSDB writer pool automatically.
+     *
+     * @param writerAutoscaleConfiguration the new autoscale configuration
+     */
+    public void setWriterAutoscaleConfiguration(WriterAutoscaleConfiguration writerAutoscaleConfiguration) {
+        this.writerAutoscaleConfiguration = writerAutoscaleConfiguration;
+    }
 }
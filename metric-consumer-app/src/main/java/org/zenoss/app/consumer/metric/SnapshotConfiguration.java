@@ -0,0 +1,44 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Saving queued metrics across restarts. While enabled, the contents of the
+ * TSDB and Zing queues are written to a file when the service stops and queued
+ * again when it starts.
+ */
+@Data
+public class SnapshotConfiguration {
+
+    /**
+     * True if queued metrics should be saved on stop and restored on start.
+     *
+     * @param enabled
+     * @return enabled
+     */
+    @JsonProperty
+    private boolean enabled = false;
+
+    /**
+     * Directory holding the snapshot files.
+     *
+     * @param directory
+     * @return directory
+     */
+    @NotNull
+    @JsonProperty
+    private String directory = "snapshot";
+}
@@ -0,0 +1,92 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Overflow of the TSDB metrics queue to disk. While enabled, metrics arriving
+ * once lowCollisionMark metrics are queued in memory are appended to a spill
+ * log instead of being refused, and fed back to the writers in order as the
+ * in-memory queue drains.
+ */
+@Data
+public class SpillConfiguration {
+
+    /**
+     * When to force spilled data to disk.
+     */
+    public enum FsyncPolicy {
+        /** Leave it to the operating system */
+        NEVER,
+
+        /** Whenever a segment is full */
+        SEGMENT,
+
+        /** After every spilled batch */
+        BATCH,
+    }
+
+    /**
+     * True if metrics may be spilled to disk.
+     *
+     * @param enabled
+     * @return enabled
+     */
+    @JsonProperty
+    private boolean enabled = false;
+
+    /**
+     * Directory holding the spill segments. Segments left over from a previous
+     * run are replayed.
+     *
+     * @param directory
+     * @return directory
+     */
+    @NotNull
+    @JsonProperty
+    private String directory = "spill";
+
+    /**
+     * Upper bound on disk used by spill segments. Once reached, clients are
+     * refused again as if there was no spill.
+     *
+     * @param maxBytes
+     * @return maxBytes
+     */
+    @Min(1024 * 1024)
+    @JsonProperty
+    private long maxBytes = 1024L * 1024 * 1024;
+
+    /**
+     * Size of each memory-mapped segment file.
+     *
+     * @param segmentBytes
+     * @return segmentBytes
+     */
+    @Min(64 * 1024)
+    @JsonProperty
+    private int segmentBytes = 64 * 1024 * 1024;
+
+    /**
+     * When to force spilled data to disk.
+     *
+     * @param fsync
+     * @return fsync
+     */
+    @NotNull
+    @JsonProperty
+    private FsyncPolicy fsync = FsyncPolicy.SEGMENT;
+}
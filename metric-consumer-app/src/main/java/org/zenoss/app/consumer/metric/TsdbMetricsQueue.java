@@ -13,6 +13,7 @@ package org.zenoss.app.consumer.metric;
 import java.util.Collection;
 
 import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
 
 /**
  * Provides information on TSDB metrics that are currently being processed.
@@ -49,7 +50,18 @@ public interface TsdbMetricsQueue {
      * @return removed elements
      */
     Collection<Metric> poll(int size, long maxWaitMillis) throws InterruptedException;
-    
+
+    /**
+     * Like {@link #poll(int, long)}, but in columns. The caller owns the batch:
+     * it has to either {@link MetricBatch#release() release} it or hand it back
+     * with {@link #reAddAll(MetricBatch)}.
+     *
+     * @param size desired number elements to retrieve
+     * @param maxWaitMillis max time to wait if the queue is initially empty
+     * @return removed elements
+     */
+    MetricBatch pollBatch(int size, long maxWaitMillis) throws InterruptedException;
+
     /**
      * Add elements to the queue.
      * @param metrics added elements
@@ -64,6 +76,20 @@ public interface TsdbMetricsQueue {
      */
     void reAddAll(Collection<Metric> metrics);
 
+    /**
+     * Like {@link #reAddAll(Collection)}, for a batch from {@link #pollBatch(int, long)}.
+     * The batch is released.
+     * @param batch added elements
+     */
+    void reAddAll(MetricBatch batch);
+
+    /**
+     * Add elements saved by a previous run of the process. Like {@link #reAddAll(Collection)},
+     * but they are counted as in flight since this process never received them.
+     * @param metrics added elements, still tagged with {@link #CLIENT_TAG}
+     */
+    void restoreAll(Collection<Metric> metrics);
+
     /**
      * Record a number of errors encountered.
      * @param size number of new errors
@@ -29,8 +29,16 @@ public interface TsdbWriterRegistry {
     void unregister(TsdbWriter writer);
     
     /**
-     * How many writers are currently active?
+     * How many writers are currently active? Writers asked to stop don't count,
+     * even while they finish their last batch.
      * @return writers
      */
     int size();
+
+    /**
+     * Ask some active writers to stop, newest first. They stay registered until they exit.
+     * @param count how many
+     * @return writers asked to stop
+     */
+    int cancel(int count);
 }
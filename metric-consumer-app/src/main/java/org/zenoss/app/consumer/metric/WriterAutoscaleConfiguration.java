@@ -0,0 +1,97 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+
+/**
+ * Sizing of the TSDB writer pool from feedback rather than a fixed
+ * tsdbWriterThreads. While enabled, a writer is added each interval while the
+ * queue isn't draining and the last one added raised outgoing throughput, and
+ * writers are shed while OpenTSDB is failing batches or slow to accept them.
+ */
+@Data
+public class WriterAutoscaleConfiguration {
+
+    /**
+     * True to size the writer pool automatically; tsdbWriterThreads is then ignored.
+     *
+     * @param enabled
+     * @return enabled
+     */
+    @JsonProperty
+    private boolean enabled = false;
+
+    /**
+     * Fewest writers to keep when there is work.
+     *
+     * @param minWriters
+     * @return minWriters
+     */
+    @Min(1)
+    @JsonProperty
+    private int minWriters = 1;
+
+    /**
+     * Most writers to run.
+     *
+     * @param maxWriters
+     * @return maxWriters
+     */
+    @Min(1)
+    @JsonProperty
+    private int maxWriters = 16;
+
+    /**
+     * Milliseconds between sizing decisions.
+     *
+     * @param intervalMillis
+     * @return intervalMillis
+     */
+    @Min(100)
+    @JsonProperty
+    private long intervalMillis = 5000;
+
+    /**
+     * Fraction by which outgoing throughput has to rise after adding a writer
+     * for it to be kept.
+     *
+     * @param minThroughputGain
+     * @return minThroughputGain
+     */
+    @DecimalMin("0")
+    @JsonProperty
+    private double minThroughputGain = 0.05;
+
+    /**
+     * Fraction of batches OpenTSDB may fail within an interval before writers are shed.
+     *
+     * @param maxErrorRate
+     * @return maxErrorRate
+     */
+    @DecimalMin("0")
+    @JsonProperty
+    private double maxErrorRate = 0.05;
+
+    /**
+     * Mean milliseconds to write a batch above which writers are shed.
+     *
+     * @param maxBatchLatency
+     * @return maxBatchLatency
+     */
+    @Min(1)
+    @JsonProperty
+    private long maxBatchLatency = 5000;
+}
@@ -13,6 +13,7 @@ package org.zenoss.app.consumer.metric;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 
+import javax.validation.Valid;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.util.ArrayList;
@@ -49,7 +50,20 @@ public class ZingConfiguration {
     private int writerThreads = 1;
 
     /**
-     * The batch size for sending data to Zing.
+     * The number of requests to Zing that may be in flight at once, shared by all writer threads.
+     * 0 to have each writer thread wait for its own requests; otherwise writer threads hand batches
+     * to this many request threads and only wait when all of them are busy.
+     *
+     * @param maxInFlightRequests
+     * @return maxInFlightRequests
+     */
+    @Min(0)
+    @JsonProperty
+    private int maxInFlightRequests = 0;
+
+    /**
+     * The batch size for sending data to Zing. Batches grow past this, up to maxBatchSize, when
+     * the queue backs up.
      *
      * @param batchSize
      * @return batchSize
@@ -58,6 +72,37 @@ public class ZingConfiguration {
     @JsonProperty
     private int batchSize = 5;
 
+    /**
+     * The most metrics sent to Zing in one batch.
+     *
+     * @param maxBatchSize
+     * @return maxBatchSize
+     */
+    @Min(1)
+    @JsonProperty
+    private int maxBatchSize = 1000;
+
+    /**
+     * A batch is sent once its metrics take about this many bytes as JSON, however few there are.
+     *
+     * @param maxBatchBytes
+     * @return maxBatchBytes
+     */
+    @Min(1024)
+    @JsonProperty
+    private long maxBatchBytes = 1024 * 1024;
+
+    /**
+     * Max time in milliseconds to wait for a batch to fill once it has its first metric.
+     * 0 to send whatever is queued right away.
+     *
+     * @param lingerTime
+     * @return lingerTime
+     */
+    @Min(0)
+    @JsonProperty
+    private int lingerTime = 0;
+
     /**
      * Max time in milliseconds with no work before writer threads will commit seppuku
      *
@@ -68,6 +113,76 @@ public class ZingConfiguration {
     @JsonProperty
     private int maxIdleTime = 10000;
 
+    /**
+     * How many times to retry sending a batch that failed before giving up on it.
+     *
+     * @param maxRetries
+     * @return maxRetries
+     */
+    @Min(0)
+    @JsonProperty
+    private int maxRetries = 3;
+
+    /**
+     * Wait in milliseconds before the first retry of a batch. Each further retry waits
+     * about twice as long, up to maxRetryInterval.
+     *
+     * @param initialRetryInterval
+     * @return initialRetryInterval
+     */
+    @Min(1)
+    @JsonProperty
+    private int initialRetryInterval = 100;
+
+    /**
+     * Longest wait in milliseconds between retries of a batch.
+     *
+     * @param maxRetryInterval
+     * @return maxRetryInterval
+     */
+    @Min(1)
+    @JsonProperty
+    private int maxRetryInterval = 5000;
+
+    /**
+     * Number of failed sends in a row after which nothing more is sent to Zing for
+     * circuitOpenTime, so a Zing outage isn't met with retries from every writer.
+     *
+     * @param circuitFailureThreshold
+     * @return circuitFailureThreshold
+     */
+    @Min(1)
+    @JsonProperty
+    private int circuitFailureThreshold = 5;
+
+    /**
+     * Time in milliseconds to stop sending once circuitFailureThreshold is reached.
+     * One batch is tried afterwards, and sending resumes if it goes through.
+     *
+     * @param circuitOpenTime
+     * @return circuitOpenTime
+     */
+    @Min(1)
+    @JsonProperty
+    private int circuitOpenTime = 30000;
+
+    /**
+     * Where batches go that can't be sent, rather than being lost. They are sent
+     * again once Zing is back.
+     *
+     * @param spillConfiguration
+     * @return spillConfiguration
+     */
+    @Valid
+    @JsonProperty
+    private SpillConfiguration spillConfiguration = defaultSpill();
+
+    private static SpillConfiguration defaultSpill() {
+        SpillConfiguration spill = new SpillConfiguration();
+        spill.setDirectory("zing-spill");
+        return spill;
+    }
+
     /**
      * The Zing URL endpoint which receives metrics from MetricConsumer.
      *
@@ -78,6 +193,15 @@ public class ZingConfiguration {
     @JsonProperty
     private String endpoint = "";
 
+    /**
+     * True to gzip the metrics sent to Zing, which must accept a gzip Content-Encoding.
+     *
+     * @param compress
+     * @return compress
+     */
+    @JsonProperty
+    private boolean compress = false;
+
     /**
      * The list of metric tags wich using for filtering the metrics that should not be sent to ZING.
      *
@@ -0,0 +1,66 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Backlog counter for one client of a {@link MetricsQueue}.
+ *
+ * The queue resolves a client's slot once per push and stores it next to each
+ * queued metric, so taking metrics out of a {@link MetricsBuffer} only has to
+ * {@link #release(long)} the slot they carry; no tags are read and nothing is
+ * hashed. The counter is striped because writers release concurrently.
+ */
+final class ClientSlot {
+
+    ClientSlot(String clientId) {
+        this.clientId = clientId;
+        this.backlog = new LongAdder();
+    }
+
+    String clientId() {
+        return clientId;
+    }
+
+    /**
+     * Record metrics entering the queue for this client.
+     * @param count number of metrics
+     */
+    void acquire(long count) {
+        backlog.add(count);
+    }
+
+    /**
+     * Record metrics leaving the queue for this client.
+     * @param count number of metrics
+     */
+    void release(long count) {
+        backlog.add(-count);
+    }
+
+    /**
+     * How many of this client's metrics are queued?
+     * @return metrics acquired and not yet released
+     */
+    long backlog() {
+        return backlog.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ClientSlot{" + clientId + ", backlog=" + backlog.sum() + "}";
+    }
+
+    private final String clientId;
+
+    private final LongAdder backlog;
+}
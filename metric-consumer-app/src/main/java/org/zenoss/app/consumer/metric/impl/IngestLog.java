@@ -0,0 +1,238 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import org.springframework.stereotype.Component;
+import org.zenoss.app.consumer.metric.data.Metric;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only log of the batches pushed to the consumer, which every sink
+ * reads at its own pace through its own {@link Cursor}. A batch is stored
+ * once however many sinks read it.
+ *
+ * The log only references its newest batch; each batch references the one
+ * after it, and each cursor the batch it is reading. Batches that every
+ * cursor is past are unreachable, so memory is reclaimed once the slowest
+ * sink has read them, and {@link #backlog()} is how many metrics that sink
+ * is behind. Without cursors, appending keeps nothing.
+ *
+ * Sinks read the same metric objects, which must not change once appended.
+ * Appending takes a lock; reading only takes the cursor's own.
+ */
+@Component
+public class IngestLog {
+
+    /**
+     * Told about every batch appended while its cursor is open, as the batch is appended.
+     */
+    public interface Listener {
+        void appended(int count, String clientId);
+    }
+
+    public IngestLog() {
+        this.tail = new Batch(new Metric[0]);
+        this.cursors = new CopyOnWriteArrayList<>();
+        this.waiters = new AtomicInteger();
+        this.lock = new ReentrantLock();
+        this.appendedTo = lock.newCondition();
+    }
+
+    /**
+     * Open a cursor at the end of the log, which reads everything appended from now on.
+     * A cursor that is never read holds on to everything appended, so close it once done.
+     */
+    public Cursor open(Listener listener) {
+        synchronized (appendLock) {
+            final Cursor cursor = new Cursor(tail, appended, listener);
+            cursors.add(cursor);
+            return cursor;
+        }
+    }
+
+    /**
+     * Append a batch, copying the references to its metrics.
+     */
+    public void append(Collection<Metric> metrics, String clientId) {
+        if (metrics.isEmpty() || cursors.isEmpty()) {
+            return;
+        }
+        final Batch batch = new Batch(metrics.toArray(new Metric[metrics.size()]));
+        synchronized (appendLock) {
+            // Listeners hear of the batch under the lock, so a cursor reads exactly what it heard of
+            for (Cursor cursor : cursors) {
+                cursor.listener.appended(batch.metrics.length, clientId);
+            }
+            tail.next = batch;
+            tail = batch;
+            appended += batch.metrics.length;
+        }
+        signal();
+    }
+
+    /**
+     * @return metrics appended that the slowest cursor hasn't read yet
+     */
+    public long backlog() {
+        final long end = appended;
+        long backlog = 0;
+        for (Cursor cursor : cursors) {
+            backlog = Math.max(backlog, end - cursor.position);
+        }
+        return backlog;
+    }
+
+    /**
+     * @return number of open cursors
+     */
+    public int cursorCount() {
+        return cursors.size();
+    }
+
+    private void signal() {
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                signals++;
+                appendedTo.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A sink's position in the log. Thread safe; a sink read by several
+     * threads can synchronize on its cursor to read a run of metrics at once.
+     */
+    public final class Cursor implements Closeable {
+
+        private Cursor(Batch batch, long position, Listener listener) {
+            this.batch = batch;
+            this.offset = batch.metrics.length;
+            this.position = position;
+            this.listener = listener;
+        }
+
+        /**
+         * @return the next metric, or null if there are none yet
+         */
+        public synchronized Metric next() {
+            while (offset == batch.metrics.length) {
+                final Batch next = batch.next;
+                if (next == null) {
+                    return null;
+                }
+                batch = next;
+                offset = 0;
+            }
+            position++;
+            return batch.metrics[offset++];
+        }
+
+        /**
+         * Add up to max metrics to metrics.
+         * @return number added
+         */
+        public synchronized int drainTo(List<Metric> metrics, int max) {
+            int added = 0;
+            Metric m;
+            while (added < max && (m = next()) != null) {
+                metrics.add(m);
+                added++;
+            }
+            return added;
+        }
+
+        /**
+         * Wait until there is something to read, {@link #wakeUp()} is called, or the time is up.
+         * @return false if the time ran out
+         */
+        public boolean await(long nanos) throws InterruptedException {
+            lock.lock();
+            waiters.incrementAndGet();
+            try {
+                final long signal = signals;
+                while (backlog() == 0 && signals == signal) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = appendedTo.awaitNanos(nanos);
+                }
+                return true;
+            } finally {
+                waiters.decrementAndGet();
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wake up threads waiting on any cursor, for a sink that has other things to read too.
+         */
+        public void wakeUp() {
+            signal();
+        }
+
+        /**
+         * @return metrics appended that this cursor hasn't read yet
+         */
+        public long backlog() {
+            return appended - position;
+        }
+
+        /**
+         * Stop reading, letting go of everything not read yet.
+         */
+        @Override
+        public void close() {
+            cursors.remove(this);
+        }
+
+        private final Listener listener;
+        private Batch batch;
+        private int offset;
+        private volatile long position;
+    }
+
+    private static final class Batch {
+        Batch(Metric[] metrics) {
+            this.metrics = metrics;
+        }
+
+        final Metric[] metrics;
+        volatile Batch next;
+    }
+
+    private final Object appendLock = new Object();
+
+    /** Newest batch, guarded by appendLock */
+    private Batch tail;
+
+    /** Metrics ever appended, written under appendLock */
+    private volatile long appended;
+
+    private final List<Cursor> cursors;
+
+    /** Threads waiting in {@link Cursor#await(long)}; appenders only take the lock if there are any */
+    private final AtomicInteger waiters;
+    private final ReentrantLock lock;
+    private final Condition appendedTo;
+
+    /** Bumped on every signal, guarded by lock */
+    private long signals;
+}
@@ -0,0 +1,109 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
+import org.zenoss.app.consumer.metric.data.MetricDictionary;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unbounded {@link MetricsBuffer} backed by a {@link LinkedBlockingQueue}.
+ */
+class LinkedMetricsBuffer implements MetricsBuffer {
+
+    private static final Logger log = LoggerFactory.getLogger(LinkedMetricsBuffer.class);
+
+    LinkedMetricsBuffer() {
+        this.queue = new LinkedBlockingQueue<>();
+    }
+
+    @Override
+    public void addAll(Collection<Metric> metrics, ClientSlot client) {
+        final List<Entry> entries = new ArrayList<>(metrics.size());
+        for (Metric m : metrics) {
+            entries.add(new Entry(m, client));
+        }
+        queue.addAll(entries);
+    }
+
+    @Override
+    public Collection<Metric> poll(int size, long maxWaitMillis) throws InterruptedException {
+        final Entry first = queue.poll(maxWaitMillis, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            log.debug("Unable to retrieve a single element after max wait");
+            return Collections.emptyList();
+        }
+
+        final Collection<Metric> metrics = new ArrayList<>(size);
+        metrics.add(first.metric);
+
+        // Release slots per run of entries from the same client rather than per metric
+        ClientSlot client = first.client;
+        int run = 1;
+        while (metrics.size() < size) {
+            final Entry e = queue.poll();
+            if (e == null) {
+                log.debug("No more metrics in queue, retrieved {} metrics", metrics.size());
+                break;
+            }
+            metrics.add(e.metric);
+            if (e.client != client) {
+                client.release(run);
+                client = e.client;
+                run = 0;
+            }
+            run++;
+        }
+        client.release(run);
+        return metrics;
+    }
+
+    @Override
+    public MetricBatch pollBatch(int size, long maxWaitMillis) throws InterruptedException {
+        return MetricBatch.copyOf(poll(size, maxWaitMillis), dictionary);
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    private static final class Entry {
+        Entry(Metric metric, ClientSlot client) {
+            this.metric = metric;
+            this.client = client;
+        }
+
+        final Metric metric;
+
+        final ClientSlot client;
+    }
+
+    /**
+     * Data to be written to TSDB
+     */
+    private final BlockingQueue<Entry> queue;
+
+    /**
+     * Backs the batches polled; metrics are buffered as objects
+     */
+    private final MetricDictionary dictionary = new MetricDictionary();
+}
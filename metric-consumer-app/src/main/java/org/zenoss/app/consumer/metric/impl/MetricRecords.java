@@ -0,0 +1,92 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import org.zenoss.app.consumer.metric.data.Metric;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of queued metrics, used when they have to leave the heap.
+ *
+ * A metric is its name, timestamp, value and tag count followed by the tag
+ * keys and values; strings use {@link DataOutput#writeUTF(String)}. Tags are
+ * written as they are, including {@link org.zenoss.app.consumer.metric.TsdbMetricsQueue#CLIENT_TAG},
+ * so a metric read back can be re-queued for its original client.
+ */
+final class MetricRecords {
+
+    private MetricRecords() {
+    }
+
+    static void writeMetric(DataOutput out, Metric metric) throws IOException {
+        out.writeUTF(metric.getMetric());
+        out.writeLong(metric.getTimestamp());
+        out.writeDouble(metric.getValue());
+        final Map<String, String> tags = metric.getTags();
+        if (tags == null) {
+            out.writeShort(0);
+            return;
+        }
+        out.writeShort(tags.size());
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            out.writeUTF(tag.getKey());
+            out.writeUTF(tag.getValue());
+        }
+    }
+
+    static Metric readMetric(DataInput in) throws IOException {
+        final String name = in.readUTF();
+        final long timestamp = in.readLong();
+        final double value = in.readDouble();
+        final int tagCount = in.readUnsignedShort();
+        final Metric metric = new Metric(name, timestamp, value);
+        for (int i = 0; i < tagCount; i++) {
+            metric.addTag(in.readUTF(), in.readUTF());
+        }
+        return metric;
+    }
+
+    /**
+     * Encode metrics back to back, without a count.
+     */
+    static byte[] encode(Collection<Metric> metrics) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * metrics.size());
+        final DataOutputStream out = new DataOutputStream(bytes);
+        for (Metric m : metrics) {
+            writeMetric(out, m);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode count metrics written by {@link #encode(Collection)}.
+     */
+    static List<Metric> decode(byte[] bytes, int count) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        final List<Metric> metrics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            metrics.add(readMetric(in));
+        }
+        return metrics;
+    }
+}
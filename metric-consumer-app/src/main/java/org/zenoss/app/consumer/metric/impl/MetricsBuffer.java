@@ -0,0 +1,88 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
+
+import java.util.Collection;
+
+/**
+ * Storage behind a {@link MetricsQueue}. Every metric is stored with the
+ * {@link ClientSlot} it was added under, and implementations release that slot
+ * as the metric leaves the buffer; everything else about per-client accounting,
+ * and the yammer metrics, stays in the queue.
+ */
+interface MetricsBuffer {
+
+    /**
+     * Append metrics to the tail of the buffer. The caller has already
+     * {@link ClientSlot#acquire(long) acquired} the slot for all of them.
+     * @param metrics added elements
+     * @param client slot of the client the metrics belong to
+     */
+    void addAll(Collection<Metric> metrics, ClientSlot client);
+
+    /**
+     * Append the metrics of a batch from index from, inclusive, to index to,
+     * exclusive. The batch keeps its own dictionary references.
+     * @param batch added elements
+     * @param client slot of the client the metrics belong to
+     */
+    default void addAll(MetricBatch batch, int from, int to, ClientSlot client) {
+        addAll(batch.toMetrics(from, to), client);
+    }
+
+    /**
+     * Like {@link #addAll(Collection, ClientSlot)}, but never waits for room:
+     * either every metric is appended, or none is and the caller keeps them.
+     * @return true if the metrics were appended
+     */
+    default boolean offerAll(Collection<Metric> metrics, ClientSlot client) {
+        addAll(metrics, client);
+        return true;
+    }
+
+    /**
+     * Like {@link #addAll(MetricBatch, int, int, ClientSlot)}, but never waits
+     * for room: either every metric is appended, or none is.
+     * @return true if the metrics were appended
+     */
+    default boolean offerAll(MetricBatch batch, int from, int to, ClientSlot client) {
+        addAll(batch, from, to, client);
+        return true;
+    }
+
+    /**
+     * Retrieves and removes up to size elements from the head of the buffer,
+     * releasing their client slots.
+     *
+     * @param size desired number elements to retrieve
+     * @param maxWaitMillis max time to wait if the buffer is initially empty
+     * @return removed elements, empty if nothing arrived before maxWaitMillis
+     */
+    Collection<Metric> poll(int size, long maxWaitMillis) throws InterruptedException;
+
+    /**
+     * Like {@link #poll(int, long)}, but in columns. The caller owns the batch
+     * and has to release it.
+     *
+     * @return removed elements, empty if nothing arrived before maxWaitMillis
+     */
+    MetricBatch pollBatch(int size, long maxWaitMillis) throws InterruptedException;
+
+    /**
+     * How many elements are currently buffered? Only used for logging, so an
+     * approximation is acceptable.
+     * @return element count
+     */
+    int size();
+}
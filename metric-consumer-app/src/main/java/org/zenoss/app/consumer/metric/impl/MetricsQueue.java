@@ -15,23 +15,27 @@ import com.google.common.base.Supplier;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
-import com.google.common.util.concurrent.AtomicLongMap;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
+import org.zenoss.app.consumer.metric.SpillConfiguration;
 import org.zenoss.app.consumer.metric.TsdbMetricsQueue;
 import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
 import org.zenoss.app.consumer.metric.remote.Utils;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -46,8 +50,23 @@ class MetricsQueue implements TsdbMetricsQueue {
     };
 
     MetricsQueue() {
-        this.queue = new LinkedBlockingQueue<>();
-        this.perClientBacklog = AtomicLongMap.create();
+        this(new LinkedMetricsBuffer());
+    }
+
+    @Autowired
+    MetricsQueue(MetricServiceConfiguration config) {
+        this(newBuffer(config), newSpill(config.getSpillConfiguration()), config.getLowCollisionMark());
+    }
+
+    MetricsQueue(MetricsBuffer queue) {
+        this(queue, null, 0);
+    }
+
+    MetricsQueue(MetricsBuffer queue, SpillLog spill, int spillMark) {
+        this.queue = queue;
+        this.spill = spill;
+        this.spillMark = spillMark;
+        this.clients = new ConcurrentHashMap<>();
         this.totalErrorsMetric = Metrics.newCounter(errorsMetricName());
         this.totalInFlightMetric = Metrics.newCounter(inFlightMetricName());
         this.totalClientCountMetric = Metrics.newGauge(clientCountMetricName(), new Gauge<Long>() {
@@ -68,6 +87,10 @@ class MetricsQueue implements TsdbMetricsQueue {
         this.totalBroadcastLowCollisionMetric = registerBroadcastLowCollision();
         this.totalSentClientCollisionMetric = registerSentClientCollision();
         this.recentClientIds = CacheBuilder.newBuilder().expireAfterAccess(60, TimeUnit.SECONDS).build(CacheLoader.from(YEPYEP));
+        if (spill != null && spill.size() > 0) {
+            // Left over from the last run; they were never counted in this process
+            totalInFlightMetric.inc(spill.size());
+        }
     }
 
     @Override
@@ -75,76 +98,290 @@ class MetricsQueue implements TsdbMetricsQueue {
         Preconditions.checkArgument(size > 0);
 
         log.debug("Polling. size = {}, queue size = {}", size, queue.size());
-        final Metric first = queue.poll(maxWaitMillis, TimeUnit.MILLISECONDS);
-        if (first == null) {
-            log.debug("Unable to retrieve a single element after max wait");
-            return Collections.emptyList();
+        if (spill != null && spill.size() > 0) {
+            refill(size);
         }
+        // The buffer releases each metric's client slot on the way out
+        return queue.poll(size, maxWaitMillis);
+    }
 
-        final Collection<Metric> metrics = new ArrayList<>(size);
-        metrics.add(first);
+    @Override
+    public MetricBatch pollBatch(int size, long maxWaitMillis) throws InterruptedException {
+        Preconditions.checkArgument(size > 0);
 
-        while (metrics.size() < size) {
-            final Metric m = queue.poll();
-            if (m == null) {
-                log.debug("No more metrics in queue, retrieved {} metrics", metrics.size());
+        log.debug("Polling batch. size = {}, queue size = {}", size, queue.size());
+        if (spill != null && spill.size() > 0) {
+            refill(size);
+        }
+        return queue.pollBatch(size, maxWaitMillis);
+    }
+
+    /**
+     * Move spilled metrics back into memory once the writers have worked the in-memory backlog down,
+     * at most two polls' worth at a time.
+     */
+    private void refill(int pollSize) {
+        if (queue.size() >= spillMark / 2) {
+            return;
+        }
+        int refilled = 0;
+        while (refilled < 2 * pollSize) {
+            final Collection<Metric> metrics;
+            try {
+                metrics = spill.read();
+            } catch (SpillLog.CorruptRecordException e) {
+                log.error("Dropping {} spilled metrics", e.count, e);
+                incrementLostMetrics(e.count);
+                continue;
+            } catch (IOException e) {
+                log.error("Unable to read spilled metrics", e);
+                return;
+            }
+            if (metrics.isEmpty()) {
                 break;
             }
-            metrics.add(m);
+            reAddAll(metrics);
+            refilled += metrics.size();
         }
+        log.debug("Refilled {} metrics from spill, {} still spilled", refilled, spill.size());
+    }
 
-        for (final Multiset.Entry<String> e : clientCounts(metrics).entrySet()) {
-            perClientBacklog.addAndGet(e.getElement(), - e.getCount());
+    private static SpillLog newSpill(SpillConfiguration config) {
+        if (!config.isEnabled()) {
+            return null;
+        }
+        try {
+            log.info("Spilling to {}, up to {} bytes", config.getDirectory(), config.getMaxBytes());
+            return new SpillLog(Paths.get(config.getDirectory()), config.getMaxBytes(), config.getSegmentBytes(), config.getFsync());
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open spill directory " + config.getDirectory(), e);
         }
-        perClientBacklog.removeAllZeros();
-        return metrics;
     }
 
-    @Override
-    public long clientCount() {
-        perClientBacklog.removeAllZeros();
-        return Math.max(perClientBacklog.size(), recentClientIds.size());
+    @PreDestroy
+    void close() {
+        if (spill != null) {
+            spill.close();
+        }
     }
 
+    private static MetricsBuffer newBuffer(MetricServiceConfiguration config) {
+        switch (config.getQueueType()) {
+            case RING_BUFFER:
+                Preconditions.checkArgument(config.getRingBufferCapacity() >= config.getMinRingBufferCapacity(),
+                        "ringBufferCapacity %s can't hold highCollisionMark plus a pipeline window per writer (%s)",
+                        config.getRingBufferCapacity(), config.getMinRingBufferCapacity());
+                log.info("Using a ring buffer of {} slots", config.getRingBufferCapacity());
+                return new RingMetricsBuffer(config.getRingBufferCapacity());
+            case SHARDED:
+                log.info("Using per-client queues, {} metrics per turn", config.getShardQuantum());
+                return new ShardedMetricsBuffer(config.getShardQuantum());
+            case LINKED:
+            default:
+                return new LinkedMetricsBuffer();
+        }
+    }
 
-    /** Iterate over all the metrics' {@link #CLIENT_TAG} tag values, counting how many of each. */
-    private Multiset<String> clientCounts(Collection<Metric> metrics) {
-        Multiset<String> counts = HashMultiset.create();
-        for (final Metric m : metrics) {
-            String clientId = m.getTags().get(CLIENT_TAG);
-            if (clientId == null) {
-                log.error("Metric {} missing required tag {}. throwing IllegalStateException", m.toString(), CLIENT_TAG);
-                throw new IllegalStateException("Metric missing required tag: " + CLIENT_TAG);
+    @Override
+    public long clientCount() {
+        long backlogged = 0;
+        for (ClientSlot client : clients.values()) {
+            if (client.backlog() > 0) {
+                backlogged++;
+            } else {
+                retire(client);
             }
-            counts.add(clientId);
         }
-        return counts;
+        return Math.max(backlogged, recentClientIds.size());
     }
 
+    /**
+     * Add elements to the queue. When the spill can't take them, they go to memory, ahead of any
+     * metrics already spilled; pushes use {@link #offerAll(Collection, String)} to keep their order.
+     */
     @Override
     public void addAll(Collection<Metric> metrics, String clientId) {
+        add(metrics, clientId, true);
+    }
+
+    /**
+     * Like {@link #addAll(Collection, String)}, but refuses the metrics rather than let them
+     * overtake spilled ones when the spill can't take any more.
+     * @return false if nothing was added
+     */
+    public boolean offerAll(Collection<Metric> metrics, String clientId) {
+        return add(metrics, clientId, false);
+    }
+
+    private boolean add(Collection<Metric> metrics, String clientId, boolean overtake) {
         if (null == queue) {
             log.warn("queue is null. Nothing will be added.");
-            return;
+            return true;
         }
         log.debug("AddAll entry. clientId = {}, queue.size() = {}", clientId, queue.size());
         Utils.injectTag(TsdbMetricsQueue.CLIENT_TAG, clientId, metrics);
-        queue.addAll(metrics);
-        perClientBacklog.addAndGet(clientId, metrics.size());
+        if (!spilled(metrics)) {
+            if (!overtake && spill != null && spill.size() > 0) {
+                log.debug("Spill refused {} metrics from {} with {} spilled ahead of them",
+                        metrics.size(), clientId, spill.size());
+                return false;
+            }
+            queue.addAll(metrics, acquire(clientId, metrics.size()));
+        }
         recentClientIds.getUnchecked(clientId);
         incrementIncoming(metrics.size());
         log.debug("AddAll exit. clientId = {}, queue.size() = {}", clientId, queue.size());
+        return true;
     }
 
     @Override
     public void reAddAll(Collection<Metric> metrics) {
-        Multiset<String> counts = clientCounts(metrics);
-        queue.addAll(metrics);
-        for (Multiset.Entry<String> e : counts.entrySet()) {
-            perClientBacklog.addAndGet(e.getElement(), e.getCount());
+        // Only used after a failed write, so resolving the tag of every metric is fine here.
+        // Keep runs from the same client together to acquire their slot once.
+        List<Metric> run = new ArrayList<>();
+        String runClientId = null;
+        for (final Metric m : metrics) {
+            String clientId = m.getTags().get(CLIENT_TAG);
+            if (clientId == null) {
+                log.error("Metric {} missing required tag {}. throwing IllegalStateException", m.toString(), CLIENT_TAG);
+                throw new IllegalStateException("Metric missing required tag: " + CLIENT_TAG);
+            }
+            if (!clientId.equals(runClientId) && !run.isEmpty()) {
+                requeue(run, runClientId);
+                run = new ArrayList<>();
+            }
+            runClientId = clientId;
+            run.add(m);
+        }
+        if (!run.isEmpty()) {
+            requeue(run, runClientId);
+        }
+    }
+
+    @Override
+    public void reAddAll(MetricBatch batch) {
+        // Metrics with the same tag set have the same client, so only look at the tags when the set changes
+        try {
+            int start = 0;
+            String runClientId = null;
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0 && batch.tagSetId(i) == batch.tagSetId(i - 1)) {
+                    continue;
+                }
+                final String clientId = batch.tags(i).get(CLIENT_TAG);
+                if (clientId == null) {
+                    log.error("Metric {} missing required tag {}. throwing IllegalStateException", batch.metric(i), CLIENT_TAG);
+                    throw new IllegalStateException("Metric missing required tag: " + CLIENT_TAG);
+                }
+                if (!clientId.equals(runClientId)) {
+                    if (i > start) {
+                        requeue(batch, start, i, runClientId);
+                    }
+                    start = i;
+                    runClientId = clientId;
+                }
+            }
+            if (batch.size() > start) {
+                requeue(batch, start, batch.size(), runClientId);
+            }
+        } finally {
+            batch.release();
+        }
+    }
+
+    /**
+     * Hand metrics back to the buffer without waiting for room. Writers re-add what they failed
+     * to write, so waiting for them to drain the buffer would wait forever. What doesn't fit is
+     * spilled, or else counted as lost.
+     */
+    private void requeue(Collection<Metric> metrics, String clientId) {
+        final ClientSlot client = acquire(clientId, metrics.size());
+        if (!queue.offerAll(metrics, client)) {
+            client.release(metrics.size());
+            overflow(metrics);
         }
     }
 
+    private void requeue(MetricBatch batch, int from, int to, String clientId) {
+        final ClientSlot client = acquire(clientId, to - from);
+        if (!queue.offerAll(batch, from, to, client)) {
+            client.release(to - from);
+            overflow(batch.toMetrics(from, to));
+        }
+    }
+
+    private void overflow(Collection<Metric> metrics) {
+        if (spill != null) {
+            try {
+                if (spill.append(metrics)) {
+                    log.warn("Queue full, spilled {} re-added metrics", metrics.size());
+                    return;
+                }
+            } catch (IOException e) {
+                log.error("Unable to spill {} re-added metrics", metrics.size(), e);
+            }
+        }
+        log.error("Queue full, dropping {} re-added metrics", metrics.size());
+        incrementLostMetrics(metrics.size());
+    }
+
+    @Override
+    public void restoreAll(Collection<Metric> metrics) {
+        reAddAll(metrics);
+        totalInFlightMetric.inc(metrics.size());
+    }
+
+    /**
+     * Remove up to size metrics held in memory, without waiting. Unlike {@link #poll(int, long)}
+     * this leaves spilled metrics on disk, where they survive a restart on their own, and
+     * the drained metrics no longer count as in flight.
+     */
+    Collection<Metric> drain(int size) throws InterruptedException {
+        final Collection<Metric> drained = queue.poll(size, 0);
+        totalInFlightMetric.dec(drained.size());
+        return drained;
+    }
+
+    /**
+     * Append to the spill instead of memory if the in-memory backlog is at the spill mark,
+     * or if there are spilled metrics that should go out first.
+     * @return true if the metrics were spilled
+     */
+    private boolean spilled(Collection<Metric> metrics) {
+        if (spill == null || (spill.size() == 0 && queue.size() + metrics.size() <= spillMark)) {
+            return false;
+        }
+        try {
+            return spill.append(metrics);
+        } catch (IOException e) {
+            log.error("Unable to spill {} metrics, keeping them in memory", metrics.size(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Find or create the client's slot and count metrics against it. This is atomic with respect to
+     * {@link #retire(ClientSlot)}, so a slot is never dropped while it is about to hold metrics.
+     */
+    private ClientSlot acquire(String clientId, int count) {
+        return clients.compute(clientId, (id, client) -> {
+            if (client == null) {
+                client = new ClientSlot(id);
+            }
+            client.acquire(count);
+            return client;
+        });
+    }
+
+    /**
+     * Forget a client with nothing queued. Its backlog can only drop while we look at it, since
+     * acquiring happens under the same map lock.
+     */
+    private void retire(ClientSlot client) {
+        clients.computeIfPresent(client.clientId(), (id, current) ->
+                current == client && current.backlog() <= 0 ? null : current);
+    }
+
     @Override
     public void incrementError(int size) {
         totalErrorsMetric.inc(size);
@@ -283,9 +520,24 @@ class MetricsQueue implements TsdbMetricsQueue {
         return totalInFlightMetric.count();
     }
 
+    /**
+     * How many of the metrics in flight are spilled to disk?
+     */
+    long getTotalSpilled() {
+        return spill == null ? 0L : spill.size();
+    }
+
+    /**
+     * Has the spill run out of space? Always false without a spill.
+     */
+    boolean isSpillFull() {
+        return spill != null && spill.isFull();
+    }
+
     @Override
     public long clientBacklogSize(String clientId) {
-        return Math.max(0L, perClientBacklog.get(clientId));
+        final ClientSlot client = clients.get(clientId);
+        return client == null ? 0L : Math.max(0L, client.backlog());
     }
 
     long getTotalErrors() {
@@ -417,15 +669,23 @@ class MetricsQueue implements TsdbMetricsQueue {
     /**
      * Data to be written to TSDB
      */
-    private final BlockingQueue<Metric> queue;
+    private final MetricsBuffer queue;
+
+    /**
+     * Overflow of {@link #queue} to disk, or null if disabled.
+     */
+    private final SpillLog spill;
+
+    /**
+     * In-memory backlog beyond which incoming metrics are spilled.
+     */
+    private final int spillMark;
 
     /**
-     * Count of metrics in the queue, per client.
-     * A metric's client is the value of its "remote_ip" tag.
+     * Backlog of each client with metrics in the queue, by client id. Queued metrics carry their
+     * client's slot, so only pushes and {@link #clientBacklogSize(String)} look clients up here.
      */
-    // We use an AtomicLongMap instead of Multiset since it's theoretically possible for a count to dip below zero
-    // due to thread interleaving, and we want to make sure that the increments and decrements balance out eventually.
-    private final AtomicLongMap<String> perClientBacklog;
+    private final ConcurrentMap<String, ClientSlot> clients;
 
     /**
      * Client IDs that have been seen recently.
@@ -12,7 +12,7 @@
 package org.zenoss.app.consumer.metric.impl;
 
 import com.google.api.client.util.ExponentialBackOff;
-import com.google.common.collect.Lists;
+import com.google.common.base.Throwables;
 import com.google.common.eventbus.EventBus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,13 +21,16 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 import org.zenoss.app.consumer.metric.MetricService;
 import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
-import org.zenoss.app.consumer.metric.TsdbMetricsQueue;
 import org.zenoss.app.consumer.metric.data.Control;
 import org.zenoss.app.consumer.metric.data.Metric;
-import org.zenoss.app.consumer.metric.zing.ZingQueue;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 @Component
@@ -40,11 +43,15 @@ class OpenTsdbMetricService implements MetricService {
             MetricServiceConfiguration config,
             @Qualifier("zapp::event-bus::async") EventBus eventBus,
             MetricsQueue metricsQueue,
-            ZingQueue zingQueue) {
+            IngestLog ingestLog,
+            @Qualifier("zapp::executor::push-retry") ScheduledExecutorService retryExecutor,
+            @Qualifier("zapp::executor::push") ExecutorService pushExecutor) {
         // Dependencies
+        this.retryExecutor = retryExecutor;
+        this.pushExecutor = pushExecutor;
         this.eventBus = eventBus;
         this.metricsQueue = metricsQueue;
-        this.zingQueue = zingQueue;
+        this.ingestLog = ingestLog;
 
         // Configuration
         this.highCollisionMark = config.getHighCollisionMark();
@@ -53,7 +60,7 @@ class OpenTsdbMetricService implements MetricService {
         this.perClientMaxPercentOfFairBacklogSize = config.getPerClientMaxPercentOfFairBacklogSize();
         this.maxClientWaitTime = config.getMaxClientWaitTime();
         this.minTimeBetweenRetries = config.getMinTimeBetweenNotification();
-        this.pushToZing = config.getZingConfiguration().isEnabled();
+        this.fairDraining = config.getQueueType() == MetricServiceConfiguration.QueueType.SHARDED;
 
         // State
         this.lastCollisionCount = new AtomicLong();
@@ -64,6 +71,21 @@ class OpenTsdbMetricService implements MetricService {
         metricsQueue.incrementReceived(received);
     }
 
+    @Override
+    public long suggestedBackOff(String clientId) {
+        double rate = metricsQueue.getOneMinuteOutgoing();
+        if (rate <= 0) {
+            return minTimeBetweenRetries;
+        }
+        // A sharded queue drains clients round-robin, so a client's backlog leaves at its share of
+        // the rate. Otherwise it leaves behind everything queued ahead of it.
+        double ahead = fairDraining
+                ? (double) metricsQueue.clientBacklogSize(clientId) * Math.max(1, metricsQueue.clientCount())
+                : metricsQueue.getTotalInFlight();
+        long backOff = (long) (ahead * 1000 / rate);
+        return Math.max(1, Math.min(backOff, maxClientWaitTime));
+    }
+
     @Override
     public void incrementSentClientCollision() {
         metricsQueue.incrementSentClientCollision();
@@ -81,99 +103,137 @@ class OpenTsdbMetricService implements MetricService {
 
     @Override
     public Control push(final List<Metric> metrics, final String clientId, Runnable onCollision) {
+        try {
+            return pushAsync(metrics, clientId, onCollision).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Control.error("interrupted waiting to queue metrics");
+        } catch (ExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Control> pushAsync(final List<Metric> metrics, final String clientId, Runnable onCollision) {
         if (metrics == null) {
-            return Control.malformedRequest("metrics not nullable");
+            return CompletableFuture.completedFuture(Control.malformedRequest("metrics not nullable"));
         }
         if (clientId == null) {
             metricsQueue.incrementRejected(metrics.size());
             log.info("Rejected: [{}] clientId not nullable", metrics.size());
-            return Control.malformedRequest("clientId not nullable");
+            return CompletableFuture.completedFuture(Control.malformedRequest("clientId not nullable"));
         }
         long maxPushSize = Math.max(highCollisionMark - 1 , perClientMaxBacklogSize());
         if (metrics.size() > maxPushSize) {
             String reason = String.format("cannot push more than %d metrics at a time", maxPushSize);
             metricsQueue.incrementRejected(metrics.size());
             log.info("Rejected: [{}] {}", metrics.size(), reason);
-            return Control.malformedRequest(reason);
+            return CompletableFuture.completedFuture(Control.malformedRequest(reason));
         }
-        final List<Metric> copy = Lists.newArrayList(metrics);
-        if (!copy.isEmpty()) {
-            long totalInFlight = metricsQueue.getTotalInFlight();
-            log.debug("totalInFlight = {}", totalInFlight);
-            if (keepsColliding(copy.size(), clientId, onCollision)) {
-                log.info("Rejected: [{}] consumer is overwhelmed", metrics.size());
-                metricsQueue.incrementRejected(metrics.size());
-                return Control.dropped("consumer is overwhelmed");
-            }
+        if (metrics.isEmpty()) {
+            return CompletableFuture.completedFuture(Control.ok());
+        }
+        PendingPush push = new PendingPush(metrics, clientId, onCollision);
+        push.run();
+        return push.result;
+    }
+
+    /**
+     * Metrics waiting for {@link #collides(long, String)} to return false, or
+     * for us to give up. Each check that collides schedules the next one on
+     * the retry executor after an exponential back off, so nothing is held
+     * while waiting. Once a check passes, the push executor queues the metrics,
+     * since that can wait for room in the queue or for the spill to sync.
+     */
+    private final class PendingPush implements Runnable {
 
-            metricsQueue.addAll(copy, clientId);
+        PendingPush(List<Metric> metrics, String clientId, Runnable onCollision) {
+            this.metrics = metrics;
+            this.clientId = clientId;
+            this.onCollision = onCollision;
+            this.result = new CompletableFuture<>();
+        }
 
-            if (this.pushToZing) {
-                final List<Metric> copy2 = Lists.newArrayList(metrics);
-                log.debug("Adding {} metrics to the zing queue", copy2.size());
-                zingQueue.addAll(copy2, clientId);
+        @Override
+        public void run() {
+            try {
+                if (!collides(metrics.size(), clientId) && accept(metrics, clientId)) {
+                    result.complete(Control.ok());
+                    return;
+                }
+                retryLater();
+            } catch (Exception e) {
+                log.error("Unexpected exception queueing metrics.", e);
+                result.completeExceptionally(e);
             }
+        }
 
-            // Notify the bus that we are going from no data to some data.
-            if (totalInFlight == 0) {
-                eventBus.post(Control.dataReceived());
-                log.debug("Data received with zero metrics in flight");
-            } else {
-                log.debug("totalInFlight is nonzero. Sending dataReceived event anyway.");
-                // ZEN-11665: In the event of an openTSDB shutdown, we could be left with inFlight metrics, but not have an event triggered.
-                //            Post event for nonzero inFlight so queue doesn't stop polling.
-                eventBus.post(Control.dataReceived());
+        private void check() {
+            try {
+                if (collides(metrics.size(), clientId)) {
+                    retryLater();
+                } else {
+                    pushExecutor.execute(this);
+                }
+            } catch (Exception e) {
+                log.error("Unexpected exception queueing metrics.", e);
+                result.completeExceptionally(e);
             }
         }
 
-        return Control.ok();
+        private void retryLater() throws IOException {
+            metricsQueue.incrementClientCollision();
+            collisions++;
+            if (backOffTracker == null) {
+                backOffTracker = buildExponentialBackOff();
+            }
+            long backOff = backOffTracker.nextBackOffMillis();
+            long elapsed = backOffTracker.getElapsedTimeMillis();
+            if (ExponentialBackOff.STOP == backOff) {
+                log.warn("Too many collisions ({}). Gave up after {}ms.", collisions, elapsed);
+                log.info("Rejected: [{}] consumer is overwhelmed", metrics.size());
+                metricsQueue.incrementRejected(metrics.size());
+                result.complete(Control.dropped("consumer is overwhelmed"));
+                return;
+            }
+            log.debug("Collision detected ({} in {}ms). Backing off for {} ms", collisions, elapsed, backOff);
+            if (onCollision != null) onCollision.run();
+            retryExecutor.schedule(this::check, backOff, TimeUnit.MILLISECONDS);
+        }
 
+        private final List<Metric> metrics;
+        private final String clientId;
+        private final Runnable onCollision;
+        private final CompletableFuture<Control> result;
+        private ExponentialBackOff backOffTracker;
+        private int collisions;
     }
 
     /**
-     * Checks {@link #collides(long, String)} until it returns false, or we give up.
-     * Periodic checks are spaced out using an exponential back off.
-     * @param incomingSize the number of metrics being added
-     * @param clientId an identifier for the source of the metrics
-     * @return false if and only if {@link #collides(long, String)} returned false before we gave up.
+     * @return false if the metrics would have overtaken spilled ones, which counts as a collision
      */
-    private boolean keepsColliding(final long incomingSize, final String clientId, Runnable onCollision) {
-        ExponentialBackOff backOffTracker = null;
-        long retryAt = 0L;
-        long backOff;
-        int collisions = 0;
-        while (true) {
-            if (collisions > 0 && onCollision != null) onCollision.run();
-            if (System.currentTimeMillis() > retryAt) {
-                if (collides(incomingSize, clientId)) {
-                    metricsQueue.incrementClientCollision();
-                    collisions++;
-                    if (backOffTracker == null) {
-                        backOffTracker = buildExponentialBackOff();
-                    }
-                    try {
-                        backOff = backOffTracker.nextBackOffMillis();
-                        retryAt = System.currentTimeMillis() + backOff;
-                    } catch (IOException e) {
-                        // should never happen
-                        log.error("Caught IOException backing off tracker.", e);
-                        throw new RuntimeException(e);
-                    }
-                    long elapsed = backOffTracker.getElapsedTimeMillis();
-                    if (ExponentialBackOff.STOP == backOff) {
-                        log.warn("Too many collisions ({}). Gave up after {}ms.", collisions, elapsed);
-                        return true;
-                    } else {
-                        log.debug("Collision detected ({} in {}ms). Backing off for {} ms", collisions, elapsed, backOff);
-                    }
-                } else {
-                    return false;
-                }
-            }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) { /* no biggie */ }
+    private boolean accept(List<Metric> metrics, String clientId) {
+        long totalInFlight = metricsQueue.getTotalInFlight();
+        log.debug("totalInFlight = {}", totalInFlight);
+
+        if (!metricsQueue.offerAll(metrics, clientId)) {
+            return false;
         }
+        // Once for every other sink, such as Zing
+        ingestLog.append(metrics, clientId);
+
+        // Notify the bus that we are going from no data to some data.
+        if (totalInFlight == 0) {
+            eventBus.post(Control.dataReceived());
+            log.debug("Data received with zero metrics in flight");
+        } else {
+            log.debug("totalInFlight is nonzero. Sending dataReceived event anyway.");
+            // ZEN-11665: In the event of an openTSDB shutdown, we could be left with inFlight metrics, but not have an event triggered.
+            //            Post event for nonzero inFlight so queue doesn't stop polling.
+            eventBus.post(Control.dataReceived());
+        }
+        return true;
     }
 
     private ExponentialBackOff buildExponentialBackOff() {
@@ -188,7 +248,10 @@ class OpenTsdbMetricService implements MetricService {
      * high/low collision test and increment, broad cast control messages
      */
     private boolean collides(final long incomingSize, final String clientId) {
-        long totalInFlight = metricsQueue.getTotalInFlight() + incomingSize;
+        // Spilled metrics don't hold up anybody until the spill fills up
+        long spilled = metricsQueue.isSpillFull() ? 0L : metricsQueue.getTotalSpilled();
+        // The slowest sink holds up everybody, since the ingest log keeps what it hasn't read
+        long totalInFlight = Math.max(metricsQueue.getTotalInFlight() - spilled, ingestLog.backlog()) + incomingSize;
         final long collisionCount = lastCollisionCount.getAndSet(totalInFlight);
         long perClientMaxBacklogSize = perClientMaxBacklogSize();
         if (totalInFlight >= highCollisionMark) {
@@ -205,9 +268,10 @@ class OpenTsdbMetricService implements MetricService {
                 log.debug("Low collision: {}", totalInFlight);
                 metricsQueue.incrementLowCollision();
             }
-            if (clientBacklogSize > 0)
+            // With fair draining a backlog only delays its own client, so just hold back the heavy ones.
+            if (fairDraining ? clientBacklogSize + incomingSize > perClientMaxBacklogSize : clientBacklogSize > 0)
                 return true;
-        } else if (clientBacklogSize + incomingSize > perClientMaxBacklogSize) {
+        } else if (!fairDraining && clientBacklogSize + incomingSize > perClientMaxBacklogSize) {
             log.debug("Client's max backlog size ({}) exceeded.", perClientMaxBacklogSize);
             return true;
         }
@@ -232,15 +296,25 @@ class OpenTsdbMetricService implements MetricService {
      */
     private final EventBus eventBus;
 
+    /**
+     * Runs the retries of pushes that collided
+     */
+    private final ScheduledExecutorService retryExecutor;
+
+    /**
+     * Queues the pushes whose retries stopped colliding
+     */
+    private final ExecutorService pushExecutor;
+
     /**
      * Shared data structure holding metrics to be pushed into TSDB
      */
-    private final TsdbMetricsQueue metricsQueue;
+    private final MetricsQueue metricsQueue;
 
     /**
-     * Shared data structure holding metrics to be pushed to Zing.
+     * Shared log of metrics for the sinks other than TSDB, such as Zing.
      */
-    private final ZingQueue zingQueue;
+    private final IngestLog ingestLog;
 
     /**
      * high collision detection mark
@@ -281,7 +355,7 @@ class OpenTsdbMetricService implements MetricService {
     private final AtomicLong lastCollisionCount;
 
     /**
-     * True if metrics should be pushed to Zing.
+     * True if the queue drains clients round-robin, so a client's backlog can't starve the others.
      */
-    private final boolean pushToZing;
+    private final boolean fairDraining;
 }
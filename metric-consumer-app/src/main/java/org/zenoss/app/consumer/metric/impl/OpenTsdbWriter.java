@@ -12,8 +12,12 @@ package org.zenoss.app.consumer.metric.impl;
 
 import com.google.api.client.util.ExponentialBackOff;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.EventBus;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -28,18 +32,32 @@ import org.zenoss.app.consumer.metric.TsdbWriter;
 import org.zenoss.app.consumer.metric.TsdbWriterRegistry;
 import org.zenoss.app.consumer.metric.data.Control;
 import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
+import org.zenoss.app.consumer.metric.data.TagSet;
 import org.zenoss.lib.tsdb.OpenTsdbClient;
 import org.zenoss.lib.tsdb.OpenTsdbClientPool;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.ArrayList;
 
 /**
+ * Takes batches of metrics off the queue and writes each batch to OpenTSDB
+ * as a single block of put lines. With a pipeline depth above 1, a writer
+ * keeps its connection and sends up to that many batches before reading
+ * back errors, so it doesn't wait out a round trip per batch; an error
+ * requeues every batch sent since the last check.
+ *
+ * Batches come off the queue in columns ({@link MetricBatch}) and are
+ * encoded straight from them; only metrics carrying a tracer are copied
+ * into {@link Metric} objects, for logging.
+ *
  * @see TsdbWriter
  */
 @Component
@@ -64,8 +82,11 @@ class OpenTsdbWriter implements TsdbWriter {
         this.maxIdleTime = config.getMaxIdleTime();
         this.maxBackOff = config.getMaxConnectionBackOff();
         this.minBackOff = config.getMinConnectionBackOff();
+        this.pipelineDepth = Math.max(1, config.getTsdbPipelineDepth());
         this.noStoreTags = config.getNoStoreTags();
         this.cleanupTags = config.getCleanupTags();
+        this.encoder = new PutLineEncoder(ImmutableList.<String>builder()
+                .add(TsdbMetricsQueue.CLIENT_TAG).addAll(cleanupTags).build());
 
         this.running = false;
         this.canceled = false;
@@ -92,13 +113,25 @@ class OpenTsdbWriter implements TsdbWriter {
     }
 
     void runUntilCanceled() throws InterruptedException {
+        try {
+            pollUntilCanceled();
+        } finally {
+            flushPipeline();
+        }
+    }
+
+    private void pollUntilCanceled() throws InterruptedException {
         ExponentialBackOff backoffTracker = null;
         while (!isCanceled()) {
             if (Thread.interrupted()) {
                 throw new InterruptedException();
             }
-            Collection<Metric> metrics = metricsQueue.poll(batchSize, maxIdleTime);
+            MetricBatch metrics = metricsQueue.pollBatch(batchSize, maxIdleTime);
             log.debug("Back from polling metricsQueue. metrics.size = {}", null == metrics ? "null" : metrics.size());
+            if (isNullOrEmpty(metrics) && !flushPipeline()) {
+                // Outstanding batches went back on the queue; pick them up before idling out
+                continue;
+            }
             // Check to see if we should down this writer entirely.
             log.debug("Checking for shutdown. lastWorkTime = {}; maxIdleTime = {}; sum = {}; currentTime ={}",
                 lastWorkTime, maxIdleTime, lastWorkTime+maxIdleTime, System.currentTimeMillis());
@@ -148,7 +181,7 @@ class OpenTsdbWriter implements TsdbWriter {
         log.debug("work canceled.");
     }
 
-    private boolean isNullOrEmpty(Collection<Metric> metrics) {
+    private boolean isNullOrEmpty(MetricBatch metrics) {
         return null == metrics || metrics.isEmpty();
     }
 
@@ -161,14 +194,20 @@ class OpenTsdbWriter implements TsdbWriter {
     }
 
 
-    void processBatch(Collection<Metric> metrics) throws InterruptedException {
-        OpenTsdbClient client = null;
+    void processBatch(MetricBatch metrics) throws InterruptedException {
+        OpenTsdbClient client = pipelineClient;
+        pipelineClient = null;
         boolean flushed = false;
+        boolean deferred = false;
         boolean invalidateClient = false;
-        long processed = 0;
         int errorCount = 0;
+        final Outstanding sent = new Outstanding(metrics);
+        outstanding.addLast(sent);
+        final long started = System.nanoTime();
         try {
-            client = getOpenTsdbClient();
+            if (client == null) {
+                client = getOpenTsdbClient();
+            }
             if (client != null) {
                 int errs = clientPool.clearErrorCount();
                 if (errs > 0) {
@@ -183,55 +222,70 @@ class OpenTsdbWriter implements TsdbWriter {
                 }
 
                 try {
-                    for (Metric m : this.getStoreMetrics(metrics)) {
-                        // ZEN-11665 - make copy of metric before messing with it. This prevents side-effect issues when exceptions occur.
-                        Metric workingCopy = new Metric(m);
-                        workingCopy.removeTag(TsdbMetricsQueue.CLIENT_TAG);
-                        String message = null;
-                        if (m.hasTracer()) {
-                            MDC.put(Metric.TRACER_KEY, m.getTracerTimestamp() );
-                            // clear value on trace key to prevent OpenTSDB UID exhaustion
-                            workingCopy.getTags().put(Metric.TRACER_KEY, "1");
+                    final StringBuilder batch = batchBuffer;
+                    batch.setLength(0);
+                    int lines = 0;
+                    for (int i = 0; i < metrics.size(); i++) {
+                        final Map<String, String> tags = metrics.tags(i);
+                        if (!isStored(tags)) {
+                            continue;
+                        }
+                        // Only tracers are copied out of the batch, for their log messages
+                        final Metric traced = tags.get(Metric.TRACER_KEY) == null ? null : metrics.metric(i);
+                        if (traced != null) {
+                            MDC.put(Metric.TRACER_KEY, traced.getTracerTimestamp() );
                         } else {
                             MDC.remove(Metric.TRACER_KEY);
                         }
+                        final int start = batch.length();
                         try {
-                            message = convert(workingCopy);
-                            if (m.hasTracer()) {
-                                String msg = String.format("Converted metric. Output_string=\"%s\"", message);
-                                log.info(m.getTracerMessage(msg));
+                            // The encoder leaves out CLIENT_TAG and cleanupTags
+                            encoder.encode(metrics, i, batch);
+                            if (traced != null) {
+                                String msg = String.format("Converted metric. Output_string=\"%s\"", batch.substring(start));
+                                log.info(traced.getTracerMessage(msg));
                             }
                         } catch (RuntimeException e) {
+                            batch.setLength(start);
+                            final Metric m = traced != null ? traced : metrics.metric(i);
                             if (log.isDebugEnabled()) {
-                                log.warn(String.format("Dropping bad metric : %s : %s", e.getMessage(), workingCopy.toString()), e);
+                                log.warn(String.format("Dropping bad metric : %s : %s", e.getMessage(), m.toString()), e);
                             } else {
-                                log.warn("Dropping bad metric : {} : {}", e.getMessage(), workingCopy);
+                                log.warn("Dropping bad metric : {} : {}", e.getMessage(), m);
                             }
-                            if (m.hasTracer()) {
-                                log.info(m.getTracerMessage("Dropped bad metric"));
+                            if (traced != null) {
+                                log.info(traced.getTracerMessage("Dropped bad metric"));
                             }
                             errorCount++;
+                            continue;
                         }
-                        if (message != null) {
-                            log.trace("Publishing metric: {}", m.toString());
-                            if (m.hasTracer()) {
-                                log.info(m.getTracerMessage("Publishing metric"));
-                            }
-                            try {
-                                client.put(message);
-                                processed++;
-                            } catch (IOException e) {
-                                log.warn("Caught (and rethrowing) IOException while processing metric: {}", e.getMessage());
-                                throw e;
-                            }
+                        if (log.isTraceEnabled()) {
+                            log.trace("Publishing metric: {}", metrics.metric(i));
+                        }
+                        if (traced != null) {
+                            log.info(traced.getTracerMessage("Publishing metric"));
                         }
+                        lines++;
                     }
-                    boolean anyErrors = false;
-                    for (String error : client.checkForErrors()) {
-                        log.warn("OpenTSDB returned an error: {}", error);
-                        anyErrors = true;
+                    if (lines > 0) {
+                        // One write for the whole batch rather than one per metric
+                        try {
+                            client.put(batch.toString());
+                            sent.processed = lines;
+                        } catch (IOException e) {
+                            log.warn("Caught (and rethrowing) IOException while processing batch of {} metrics: {}", lines, e.getMessage());
+                            throw e;
+                        } finally {
+                            if (batch.capacity() > MAX_RETAINED_BATCH_CHARS) {
+                                batchBuffer = new StringBuilder(INITIAL_BATCH_CHARS);
+                            }
+                        }
                     }
-                    if (anyErrors) {
+                    sent.errorCount = errorCount;
+                    if (outstanding.size() < pipelineDepth) {
+                        // Leave reading errors to a later batch on this connection
+                        deferred = true;
+                    } else if (hasErrors(client)) {
                         invalidateClient = true;
                     } else {
                         flushed = true;
@@ -244,31 +298,106 @@ class OpenTsdbWriter implements TsdbWriter {
                 log.warn("Unable to get client to process metrics.");
             }
         } finally {
+            if (client != null) {
+                BATCH_TIMES.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            }
+            if (deferred) {
+                pipelineClient = client;
+            } else {
+                settle(flushed);
+                release(client, invalidateClient);
+            }
+            lastWorkTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Read back errors for the batches still outstanding on the pipelined connection, if any,
+     * and give the connection back to the pool.
+     * @return false if outstanding batches were requeued
+     */
+    boolean flushPipeline() {
+        final OpenTsdbClient client = pipelineClient;
+        if (client == null) {
+            return true;
+        }
+        pipelineClient = null;
+        boolean flushed = false;
+        try {
+            flushed = !hasErrors(client);
+        } catch (IOException e) {
+            log.warn("Caught exception while checking for errors: {}", e.getMessage());
+        } finally {
+            settle(flushed);
+            release(client, !flushed);
+            lastWorkTime = System.currentTimeMillis();
+        }
+        return flushed;
+    }
+
+    private boolean hasErrors(OpenTsdbClient client) throws IOException {
+        boolean anyErrors = false;
+        for (String error : client.checkForErrors()) {
+            log.warn("OpenTSDB returned an error: {}", error);
+            anyErrors = true;
+        }
+        return anyErrors;
+    }
+
+    /**
+     * Account for the outstanding batches, or requeue them all if OpenTSDB reported an error
+     * or the connection failed: there is no telling which of them the error belongs to.
+     */
+    private void settle(boolean flushed) {
+        for (Outstanding batch : outstanding) {
             if (flushed) {
-                metricsQueue.incrementProcessed(processed);
-                metricsQueue.incrementError(errorCount);
+                metricsQueue.incrementProcessed(batch.processed);
+                metricsQueue.incrementError(batch.errorCount);
+                batch.metrics.release();
             } else {
+                BATCH_FAILURES.mark();
+                final int size = batch.metrics.size();
                 try {
-                    metricsQueue.reAddAll(metrics);
+                    metricsQueue.reAddAll(batch.metrics);
                 } catch (Exception e) {
                     log.error("We were unable to add metrics back to the queue. Eating exception to prevent thread death.", e);
-                    metricsQueue.incrementLostMetrics(metrics.size());
+                    metricsQueue.incrementLostMetrics(size);
                 }
             }
-            if (client != null) {
-                try {
-                    if (invalidateClient)
-                        clientPool.invalidateObject(client);
-                    else
-                        clientPool.returnObject(client);
-                } catch (Exception releaseException) {
-                    log.warn("Error while releasing TSDB client", releaseException);
-                }
+        }
+        outstanding.clear();
+    }
+
+    private void release(OpenTsdbClient client, boolean invalidateClient) {
+        if (client != null) {
+            try {
+                if (invalidateClient)
+                    clientPool.invalidateObject(client);
+                else
+                    clientPool.returnObject(client);
+            } catch (Exception releaseException) {
+                log.warn("Error while releasing TSDB client", releaseException);
             }
-            lastWorkTime = System.currentTimeMillis();
         }
     }
 
+    /**
+     * A batch sent but not yet known to have been accepted
+     */
+    private static final class Outstanding {
+        Outstanding(MetricBatch metrics) {
+            this.metrics = metrics;
+        }
+
+        final MetricBatch metrics;
+
+        /** Metrics written */
+        long processed;
+
+        /** Metrics dropped as bad */
+        int errorCount;
+    }
+
     private OpenTsdbClient getOpenTsdbClient() throws InterruptedException {
         OpenTsdbClient client = null;
         try {
@@ -303,24 +432,50 @@ class OpenTsdbWriter implements TsdbWriter {
         }
     }
 
+    /**
+     * The metrics to store, without their cleanup tags. The metrics given are left as they
+     * are, as other sinks may read the same objects from the ingest log.
+     */
     public Collection<Metric> getStoreMetrics(Collection<Metric> metrics) {
         Collection<Metric> filteredMetrics = new ArrayList<Metric>(metrics.size());
         for (Metric m : metrics) {
-            for (String t: this.noStoreTags) {
-                if (!m.hasTagKey(t)) {
-                    this.removeMetricTags(m);
-                    filteredMetrics.add(m);
-                    break;
-                }
+            if (isStored(m)) {
+                filteredMetrics.add(this.removeMetricTags(m));
             }
         }
         return filteredMetrics;
     }
 
-    public void removeMetricTags (Metric m) {
+    /**
+     * Should this metric go to OpenTSDB, going by {@link #noStoreTags}?
+     */
+    private boolean isStored(Metric m) {
+        return isStored(m.getTags());
+    }
+
+    private boolean isStored(Map<String, String> tags) {
+        for (String t: this.noStoreTags) {
+            if (tags.get(t) == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a copy of the metric without the cleanup tags, or the metric itself if it has none of them
+     */
+    public Metric removeMetricTags (Metric m) {
+        TagSet tags = m.getTags();
         for (String tag: this.cleanupTags) {
-            m.removeTag(tag);
+            tags = tags.without(tag);
+        }
+        if (tags == m.getTags()) {
+            return m;
         }
+        Metric cleaned = new Metric(m);
+        cleaned.setTags(tags);
+        return cleaned;
     }
 
     @Override
@@ -340,6 +495,18 @@ class OpenTsdbWriter implements TsdbWriter {
 
     private static final Logger log = LoggerFactory.getLogger(OpenTsdbWriter.class);
 
+    /**
+     * Time taken by every batch that got a client, shared by all writers
+     */
+    static final Timer BATCH_TIMES = Metrics.newTimer(OpenTsdbWriter.class, "batchTimes",
+            TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+
+    /**
+     * Batches that had to be requeued, shared by all writers
+     */
+    static final Meter BATCH_FAILURES = Metrics.newMeter(OpenTsdbWriter.class, "batchFailures",
+            "batches", TimeUnit.SECONDS);
+
     /**
      * where to report in when running
      */
@@ -380,6 +547,21 @@ class OpenTsdbWriter implements TsdbWriter {
      */
     private final int minBackOff;
 
+    /**
+     * Batches to send on a connection before reading back errors
+     */
+    private final int pipelineDepth;
+
+    /**
+     * Batches sent on {@link #pipelineClient} whose errors haven't been read yet
+     */
+    private final ArrayDeque<Outstanding> outstanding = new ArrayDeque<>();
+
+    /**
+     * Connection kept between batches while they are outstanding
+     */
+    private OpenTsdbClient pipelineClient;
+
     /**
      * List of tags for filtering of metric that should only be sent to ZING
      */
@@ -390,6 +572,23 @@ class OpenTsdbWriter implements TsdbWriter {
      */
     private final ArrayList<String> cleanupTags;
 
+    /**
+     * Writes metrics into {@link #batchBuffer}
+     */
+    private final PutLineEncoder encoder;
+
+    /**
+     * Put lines of the batch being written, reused from one batch to the next
+     */
+    private StringBuilder batchBuffer = new StringBuilder(INITIAL_BATCH_CHARS);
+
+    private static final int INITIAL_BATCH_CHARS = 64 * 1024;
+
+    /**
+     * A batch buffer grown past this (by unusually long tags) is dropped after use
+     */
+    private static final int MAX_RETAINED_BATCH_CHARS = 4 * 1024 * 1024;
+
     /**
      * Is this instance currently running?
      */
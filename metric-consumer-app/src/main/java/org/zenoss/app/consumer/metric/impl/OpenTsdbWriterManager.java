@@ -21,6 +21,7 @@ import org.springframework.stereotype.Component;
 import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
 import org.zenoss.app.consumer.metric.TsdbWriter;
 import org.zenoss.app.consumer.metric.TsdbWriterRegistry;
+import org.zenoss.app.consumer.metric.WriterAutoscaleConfiguration;
 import org.zenoss.app.consumer.metric.data.Control;
 
 import javax.annotation.PostConstruct;
@@ -29,7 +30,8 @@ import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Subscribes to EventBus messages to ensure an appropriate number of TSDB 
- * writer threads are running.
+ * writer threads are running: tsdbWriterThreads, or whatever the
+ * {@link WriterAutoscaler} decides when autoscaling is enabled.
  */
 @Component
 class OpenTsdbWriterManager {
@@ -42,14 +44,23 @@ class OpenTsdbWriterManager {
             MetricServiceConfiguration config,
             @Qualifier("zapp::event-bus::async") EventBus eventBus,
             @Qualifier("zapp::executor::metrics") ExecutorService executorService,
-            TsdbWriterRegistry writerRegistry)
+            TsdbWriterRegistry writerRegistry,
+            MetricsQueue metricsQueue)
     {
         this.appContext = appContext;
         this.executorService = executorService;
         this.eventBus = eventBus;
         this.writerRegistry = writerRegistry;
+        this.metricsQueue = metricsQueue;
         
-        this.minTimeBetweenChecks = config.getMaxIdleTime();
+        final WriterAutoscaleConfiguration autoscale = config.getWriterAutoscaleConfiguration();
+        if (autoscale.isEnabled()) {
+            this.autoscaler = new WriterAutoscaler(autoscale);
+            this.minTimeBetweenChecks = autoscale.getIntervalMillis();
+        } else {
+            this.autoscaler = null;
+            this.minTimeBetweenChecks = config.getMaxIdleTime();
+        }
         this.tsdbWriterThreads = config.getTsdbWriterThreads();
         
         this.lastCheckTime = new AtomicLong();
@@ -75,15 +86,59 @@ class OpenTsdbWriterManager {
                 now > lastCheckTimeExpected + minTimeBetweenChecks &&
                 lastCheckTime.compareAndSet(lastCheckTimeExpected, now)
             ) {
-                createWriters();
+                if (autoscaler == null) {
+                    createWriters();
+                } else {
+                    rescale(now);
+                }
             }
         }
     }
     
     void createWriters() {
-        log.debug("createWriters(): tsdbWriterThreads = {}, writerRegistry.size() = {}. WritersToCreate = {}",
-            tsdbWriterThreads, writerRegistry.size(), tsdbWriterThreads - writerRegistry.size());
-        final int writersToCreate = tsdbWriterThreads - writerRegistry.size();
+        createWriters(tsdbWriterThreads);
+    }
+
+    /**
+     * Feed the autoscaler what happened since the last call and bring the
+     * number of writers to its target.
+     */
+    synchronized void rescale(long now) {
+        final long outgoing = metricsQueue.getTotalOutgoing();
+        final long batches = OpenTsdbWriter.BATCH_TIMES.count();
+        final double batchMillis = OpenTsdbWriter.BATCH_TIMES.sum();
+        final long failures = OpenTsdbWriter.BATCH_FAILURES.count();
+        if (lastRescaleTime > 0 && now > lastRescaleTime) {
+            final long newBatches = batches - lastBatches;
+            final double throughput = (outgoing - lastOutgoing) * 1000.0 / (now - lastRescaleTime);
+            final double errorRate = newBatches > 0 ? (double) (failures - lastFailures) / newBatches : 0;
+            final double batchLatency = newBatches > 0 ? (batchMillis - lastBatchMillis) / newBatches : 0;
+            final int previous = autoscaler.target();
+            final int target = autoscaler.update(metricsQueue.getTotalInFlight(), throughput, errorRate, batchLatency);
+            if (target != previous) {
+                log.info("Writer target {} -> {}: {} metrics/s, {} ms per batch, {} of batches failed",
+                        previous, target, (long) throughput, (long) batchLatency, errorRate);
+            }
+        }
+        lastRescaleTime = now;
+        lastOutgoing = outgoing;
+        lastBatches = batches;
+        lastBatchMillis = batchMillis;
+        lastFailures = failures;
+
+        final int target = autoscaler.target();
+        final int excess = writerRegistry.size() - target;
+        if (excess > 0) {
+            log.info("Stopped {} writers", writerRegistry.cancel(excess));
+        } else {
+            createWriters(target);
+        }
+    }
+
+    private void createWriters(int writers) {
+        log.debug("createWriters(): writers = {}, writerRegistry.size() = {}. WritersToCreate = {}",
+            writers, writerRegistry.size(), writers - writerRegistry.size());
+        final int writersToCreate = writers - writerRegistry.size();
         int created = 0;
 
         while (created < writersToCreate) {
@@ -103,6 +158,7 @@ class OpenTsdbWriterManager {
     private final ExecutorService executorService;
     private final EventBus eventBus;
     private final TsdbWriterRegistry writerRegistry;
+    private final MetricsQueue metricsQueue;
     
     // Configuration
     private final int tsdbWriterThreads;
@@ -110,4 +166,14 @@ class OpenTsdbWriterManager {
     
     // State
     private final AtomicLong lastCheckTime;
+
+    /** Null unless the writer pool is sized automatically */
+    private final WriterAutoscaler autoscaler;
+
+    // Totals at the last rescale
+    private long lastRescaleTime;
+    private long lastOutgoing;
+    private long lastBatches;
+    private double lastBatchMillis;
+    private long lastFailures;
 }
@@ -11,6 +11,7 @@
 package org.zenoss.app.consumer.metric.impl;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zenoss.app.consumer.metric.TsdbWriter;
@@ -18,6 +19,8 @@ import org.zenoss.app.consumer.metric.TsdbWriterRegistry;
 import org.zenoss.dropwizardspring.annotations.Managed;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 
 
 /**
@@ -31,6 +34,7 @@ class OpenTsdbWriterRegistry implements TsdbWriterRegistry, com.yammer.dropwizar
 
     OpenTsdbWriterRegistry() {
         this.createdWriters = Lists.newCopyOnWriteArrayList();
+        this.canceledWriters = Sets.newConcurrentHashSet();
     }
 
     @Override
@@ -41,13 +45,30 @@ class OpenTsdbWriterRegistry implements TsdbWriterRegistry, com.yammer.dropwizar
     @Override
     public void unregister(TsdbWriter writer) {
         createdWriters.remove(writer);
+        canceledWriters.remove(writer);
     }
 
     @Override
     public int size() {
-        return createdWriters.size();
+        return createdWriters.size() - canceledWriters.size();
     }
     
+    @Override
+    public synchronized int cancel(int count) {
+        final List<TsdbWriter> writers = Lists.reverse(Lists.newArrayList(createdWriters));
+        int canceled = 0;
+        for (TsdbWriter writer : writers) {
+            if (canceled >= count) {
+                break;
+            }
+            if (canceledWriters.add(writer)) {
+                writer.cancel();
+                canceled++;
+            }
+        }
+        return canceled;
+    }
+
     @Override
     public void start() throws Exception {
         log.debug("Starting");
@@ -65,4 +86,6 @@ class OpenTsdbWriterRegistry implements TsdbWriterRegistry, com.yammer.dropwizar
     
     // State
     private final Collection<TsdbWriter> createdWriters;
+    // Asked to stop, but still registered until they exit
+    private final Set<TsdbWriter> canceledWriters;
 }
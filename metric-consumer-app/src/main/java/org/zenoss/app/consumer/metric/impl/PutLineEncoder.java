@@ -0,0 +1,285 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
+import org.zenoss.app.consumer.metric.data.TagSet;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Appends OpenTSDB put lines for metrics to a buffer, producing what
+ * {@link OpenTsdbWriter#convert(Metric)} would for the metric without its
+ * skipped tags, but without copying the metric, building a tag map or
+ * creating intermediate strings.
+ *
+ * Names, tag keys and tag values are sanitized as they are copied, and the
+ * value of the {@link Metric#TRACER_KEY} tag is written as "1". In the rare
+ * case that two tag keys sanitize to the same key the line is built by
+ * {@link OpenTsdbWriter#convert(Metric)} instead, so the last one wins as
+ * before.
+ *
+ * Metrics in a {@link MetricBatch} share names and tag sets, so for those
+ * the sanitized name and the tag part of the line are kept by dictionary id
+ * and only built the first time an id is seen. An encoder is therefore not
+ * thread safe.
+ */
+final class PutLineEncoder {
+
+    private static final int MAX_FRACTION_DIGITS = 9;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_FRACTION_DIGITS + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /** Largest magnitude below which every long is exactly a double */
+    private static final double MAX_EXACT = (double) (1L << 53);
+
+    /**
+     * @param skippedTags tag keys left out of every line
+     */
+    PutLineEncoder(Collection<String> skippedTags) {
+        this.skippedTags = ImmutableSet.copyOf(skippedTags);
+    }
+
+    /**
+     * Append the put line for a metric, including its trailing newline.
+     *
+     * @throws IllegalArgumentException if the metric can't be written; nothing is appended
+     */
+    void encode(Metric metric, StringBuilder out) {
+        final String name = metric.getMetric();
+        if (Strings.isNullOrEmpty(name)) {
+            throw new IllegalArgumentException("missing name");
+        }
+        final double value = metric.getValue();
+        if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("Value is NaN: %s" + metric.toString());
+        }
+        final int start = out.length();
+        out.append("put ");
+        appendSanitized(out, name, true);
+        out.append(' ').append(metric.getTimestamp()).append(' ');
+        appendDouble(out, value);
+
+        if (!appendTags(out, metric.getTags())) {
+            out.setLength(start);
+            out.append(OpenTsdbWriter.convert(withoutSkippedTags(metric)));
+            return;
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Append the put line for a metric of a batch, including its trailing newline.
+     *
+     * @throws IllegalArgumentException if the metric can't be written; nothing is appended
+     */
+    void encode(MetricBatch batch, int i, StringBuilder out) {
+        final String name = batch.name(i);
+        if (Strings.isNullOrEmpty(name)) {
+            throw new IllegalArgumentException("missing name");
+        }
+        final double value = batch.value(i);
+        if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("Value is NaN: %s" + batch.metric(i));
+        }
+        final String tags = tagPart(batch.tagSetId(i), batch.tags(i));
+        if (tags == null) {
+            encode(batch.metric(i), out);
+            return;
+        }
+        out.append("put ").append(sanitizedName(batch.nameId(i), name))
+                .append(' ').append(batch.timestamp(i)).append(' ');
+        appendDouble(out, value);
+        out.append(tags).append('\n');
+    }
+
+    /**
+     * Append " key=value" for every tag that isn't skipped.
+     *
+     * @return false if two keys sanitize to the same key, and the line has to be built the slow way
+     */
+    private boolean appendTags(StringBuilder out, TagSet tags) {
+        if (tags == null) {
+            return true;
+        }
+        boolean renamedKey = false;
+        for (int i = 0; i < tags.size(); i++) {
+            final String key = tags.keyAt(i);
+            final String tagValue = tags.valueAt(i);
+            if (key == null || tagValue == null || skippedTags.contains(key)) {
+                continue;
+            }
+            out.append(' ');
+            renamedKey |= appendSanitized(out, key, false);
+            out.append('=');
+            if (Metric.TRACER_KEY.equals(key)) {
+                // clear value on trace key to prevent OpenTSDB UID exhaustion
+                out.append('1');
+            } else {
+                appendSanitized(out, tagValue, false);
+            }
+        }
+        return !renamedKey || tags.size() <= 1;
+    }
+
+    private String sanitizedName(int id, String name) {
+        if (id < nameKeys.length && nameKeys[id] == name) {
+            return names[id];
+        }
+        scratch.setLength(0);
+        appendSanitized(scratch, name, true);
+        final String sanitized = scratch.toString();
+        if (id >= nameKeys.length) {
+            nameKeys = Arrays.copyOf(nameKeys, Math.max(id + 1, nameKeys.length * 2));
+            names = Arrays.copyOf(names, nameKeys.length);
+        }
+        nameKeys[id] = name;
+        names[id] = sanitized;
+        return sanitized;
+    }
+
+    /**
+     * @return the tag part of the line for a tag set, or null if the line has to be built the slow way
+     */
+    private String tagPart(int id, TagSet tags) {
+        if (id < tagKeys.length && tagKeys[id] == tags) {
+            return tagParts[id];
+        }
+        scratch.setLength(0);
+        final String part = appendTags(scratch, tags) ? scratch.toString() : null;
+        if (id >= tagKeys.length) {
+            tagKeys = Arrays.copyOf(tagKeys, Math.max(id + 1, tagKeys.length * 2));
+            tagParts = Arrays.copyOf(tagParts, tagKeys.length);
+        }
+        tagKeys[id] = tags;
+        tagParts[id] = part;
+        return part;
+    }
+
+    private Metric withoutSkippedTags(Metric metric) {
+        final Map<String, String> tags = Maps.newHashMapWithExpectedSize(metric.getTags().size());
+        for (Map.Entry<String, String> tag : metric.getTags().entrySet()) {
+            if (!skippedTags.contains(tag.getKey())) {
+                tags.put(tag.getKey(), Metric.TRACER_KEY.equals(tag.getKey()) ? "1" : tag.getValue());
+            }
+        }
+        return new Metric(metric.getMetric(), metric.getTimestamp(), metric.getValue(), tags);
+    }
+
+    /**
+     * Copy a string replacing anything {@link OpenTsdbWriter#sanitize(String)} would,
+     * and spaces in metric names with {@link OpenTsdbWriter#SPACE_REPLACEMENT}.
+     *
+     * @return true if anything was replaced
+     */
+    static boolean appendSanitized(StringBuilder out, String s, boolean metricName) {
+        boolean replaced = false;
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (isValid(c)) {
+                out.append(c);
+                continue;
+            }
+            replaced = true;
+            if (metricName && c == ' ') {
+                out.append(OpenTsdbWriter.SPACE_REPLACEMENT);
+            } else {
+                out.append('-');
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // The pattern replaces a whole code point
+                    i++;
+                }
+            }
+        }
+        return replaced;
+    }
+
+    private static boolean isValid(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                c == '_' || c == '.' || c == '/' || c == '-';
+    }
+
+    /**
+     * Append a double in plain decimal notation using the fewest fractional
+     * digits (up to {@value #MAX_FRACTION_DIGITS}) that read back as the same
+     * value, falling back to {@link StringBuilder#append(double)} for values
+     * outside the range where that is possible.
+     */
+    static void appendDouble(StringBuilder out, double value) {
+        final double abs = Math.abs(value);
+        if (abs < 1e7 && (abs >= 1e-3 || abs == 0)) {
+            for (int k = 0; k <= MAX_FRACTION_DIGITS; k++) {
+                final double scaled = abs * POWERS_OF_TEN[k];
+                if (scaled >= MAX_EXACT) {
+                    break;
+                }
+                long digits = Math.round(scaled);
+                if (digits / (double) POWERS_OF_TEN[k] == abs) {
+                    if (value < 0) {
+                        out.append('-');
+                    }
+                    // Rounding in the multiplication can leave trailing zeros
+                    int fractionDigits = k;
+                    while (fractionDigits > 0 && digits % 10 == 0) {
+                        digits /= 10;
+                        fractionDigits--;
+                    }
+                    appendFixed(out, digits, fractionDigits);
+                    return;
+                }
+            }
+        }
+        out.append(value);
+    }
+
+    private static void appendFixed(StringBuilder out, long digits, int fractionDigits) {
+        final long scale = POWERS_OF_TEN[fractionDigits];
+        out.append(digits / scale).append('.');
+        if (fractionDigits == 0) {
+            out.append('0');
+            return;
+        }
+        final long fraction = digits % scale;
+        for (long p = scale / 10; p > fraction && p > 1; p /= 10) {
+            out.append('0');
+        }
+        out.append(fraction);
+    }
+
+    private final Set<String> skippedTags;
+
+    /*
+     * What was built for a dictionary id, and the name or tag set it was built
+     * from. The dictionary keeps handing out the same instance for an id until
+     * the id is reused, so an identity check tells whether an entry still holds.
+     */
+    private String[] nameKeys = new String[0];
+    private String[] names = new String[0];
+    private TagSet[] tagKeys = new TagSet[0];
+    private String[] tagParts = new String[0];
+
+    private final StringBuilder scratch = new StringBuilder();
+}
@@ -0,0 +1,211 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.eventbus.EventBus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
+import org.zenoss.app.consumer.metric.TsdbMetricsQueue;
+import org.zenoss.app.consumer.metric.data.Control;
+import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.zing.ZingQueue;
+import org.zenoss.dropwizardspring.annotations.Managed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves the contents of the TSDB and Zing queues to disk when the service
+ * stops, and queues them again when it starts, so that a restart doesn't lose
+ * what was in flight.
+ *
+ * A snapshot is a gzipped stream: a magic number, then every metric in
+ * {@link MetricRecords} form preceded by a 1 byte, then a 0 byte. It is written
+ * to a temporary file and renamed into place, and deleted once restored; one
+ * that can't be fully read is renamed with a {@code .corrupt} suffix instead.
+ * Metrics spilled to disk by the TSDB queue are left where they are.
+ */
+@Managed
+class QueueSnapshots implements com.yammer.dropwizard.lifecycle.Managed {
+
+    private static final Logger log = LoggerFactory.getLogger(QueueSnapshots.class);
+
+    static final int MAGIC = 0x4d515331; // "MQS1"
+
+    static final String TSDB_FILE = "tsdb-queue.snapshot";
+    static final String ZING_FILE = "zing-queue.snapshot";
+
+    /** Metrics taken from a queue at a time while saving, and queued at a time while restoring. */
+    private static final int BATCH_SIZE = 1000;
+
+    @Autowired
+    QueueSnapshots(
+            MetricServiceConfiguration config,
+            @Qualifier("zapp::event-bus::async") EventBus eventBus,
+            MetricsQueue metricsQueue,
+            ZingQueue zingQueue) {
+        this.eventBus = eventBus;
+        this.metricsQueue = metricsQueue;
+        this.zingQueue = zingQueue;
+        this.enabled = config.getSnapshotConfiguration().isEnabled();
+        this.directory = Paths.get(config.getSnapshotConfiguration().getDirectory());
+        this.zingEnabled = config.getZingConfiguration().isEnabled();
+    }
+
+    @Override
+    public void start() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        long restored = restore(directory.resolve(TSDB_FILE), metricsQueue);
+        if (zingEnabled) {
+            restore(directory.resolve(ZING_FILE), zingQueue);
+        }
+        if (restored > 0) {
+            eventBus.post(Control.dataReceived());
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+        save(directory.resolve(TSDB_FILE), new Source() {
+            @Override
+            public Collection<Metric> take(int size) throws InterruptedException {
+                return metricsQueue.drain(size);
+            }
+        });
+        if (zingEnabled) {
+            save(directory.resolve(ZING_FILE), new Source() {
+                @Override
+                public Collection<Metric> take(int size) throws InterruptedException {
+                    return zingQueue.poll(size, 0);
+                }
+            });
+        }
+    }
+
+    /** Removes metrics from a queue for saving. */
+    interface Source {
+        Collection<Metric> take(int size) throws InterruptedException;
+    }
+
+    static long save(Path file, Source source) throws IOException, InterruptedException {
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long saved = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(temp))))) {
+            out.writeInt(MAGIC);
+            for (Collection<Metric> metrics = source.take(BATCH_SIZE); !metrics.isEmpty(); metrics = source.take(BATCH_SIZE)) {
+                for (Metric m : metrics) {
+                    out.writeByte(1);
+                    MetricRecords.writeMetric(out, m);
+                }
+                saved += metrics.size();
+            }
+            out.writeByte(0);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Saved {} queued metrics to {}", saved, file);
+        return saved;
+    }
+
+    /**
+     * Queue the metrics in a snapshot and delete it. A snapshot that can't be read to the end
+     * has whatever was read before the problem restored, and is kept aside as {@code .corrupt}.
+     */
+    static long restore(Path file, TsdbMetricsQueue queue) {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long restored = 0;
+        boolean corrupt = false;
+        List<Metric> batch = new ArrayList<>(BATCH_SIZE);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a queue snapshot");
+            }
+            while (in.readByte() != 0) {
+                batch.add(MetricRecords.readMetric(in));
+                if (batch.size() == BATCH_SIZE) {
+                    queue.restoreAll(batch);
+                    restored += batch.size();
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+        } catch (EOFException e) {
+            log.warn("Snapshot {} is truncated, restoring what was readable", file);
+            corrupt = true;
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to read snapshot {}, restoring what was readable", file, e);
+            corrupt = true;
+        }
+        queue.restoreAll(batch);
+        restored += batch.size();
+        if (corrupt) {
+            setAside(file);
+        } else {
+            try {
+                Files.delete(file);
+            } catch (IOException e) {
+                log.error("Unable to delete restored snapshot {}", file, e);
+            }
+        }
+        log.info("Restored {} queued metrics from {}", restored, file);
+        return restored;
+    }
+
+    /**
+     * Move a snapshot that couldn't be fully restored out of the way, so it isn't restored again.
+     */
+    private static void setAside(Path file) {
+        final Path aside = file.resolveSibling(file.getFileName() + ".corrupt");
+        try {
+            Files.move(file, aside, StandardCopyOption.REPLACE_EXISTING);
+            log.warn("Kept unreadable snapshot as {}", aside);
+        } catch (IOException e) {
+            log.error("Unable to move snapshot {} aside, deleting it", file, e);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                log.error("Unable to delete snapshot {}", file, ex);
+            }
+        }
+    }
+
+    private final EventBus eventBus;
+    private final MetricsQueue metricsQueue;
+    private final ZingQueue zingQueue;
+
+    private final boolean enabled;
+    private final Path directory;
+    private final boolean zingEnabled;
+}
@@ -0,0 +1,424 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.base.Preconditions;
+import com.google.common.math.IntMath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
+import org.zenoss.app.consumer.metric.data.MetricDictionary;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded multi-producer/multi-consumer {@link MetricsBuffer} on a preallocated ring.
+ *
+ * Slots are columns: the timestamp and value of each metric, and the ids of its
+ * name and tag set in a {@link MetricDictionary}, which the ring holds a
+ * reference to while the metric is buffered. A full ring holds no objects per
+ * metric, and polls hand the columns on as a {@link MetricBatch}.
+ *
+ * Every slot carries a sequence number. A slot at position p is free for the
+ * producer that claimed p when its sequence equals p, and holds a published
+ * metric for the consumer that claims p when its sequence equals p + 1.
+ * Producers claim a whole batch with one CAS on {@link #tail}; consumers claim
+ * every contiguous published slot (up to the requested size) with one CAS on
+ * {@link #head}. Nothing is allocated per metric.
+ *
+ * Consumers that find the ring empty block on a condition; producers only take
+ * the lock to signal when somebody is actually waiting. When the ring is full,
+ * producers back off until consumers free up space, except through
+ * {@link #offerAll}, which writers handing back metrics use so that they never
+ * wait on themselves.
+ */
+class RingMetricsBuffer implements MetricsBuffer {
+
+    private static final Logger log = LoggerFactory.getLogger(RingMetricsBuffer.class);
+
+    /** How long a producer parks between checks for free space on a full ring. */
+    private static final long FULL_BACK_OFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * @param capacity minimum number of slots; rounded up to a power of two.
+     */
+    RingMetricsBuffer(int capacity) {
+        this(capacity, new MetricDictionary());
+    }
+
+    /**
+     * @param capacity minimum number of slots; rounded up to a power of two.
+     * @param dictionary names and tag sets of the buffered metrics
+     */
+    RingMetricsBuffer(int capacity, MetricDictionary dictionary) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        this.capacity = IntMath.ceilingPowerOfTwo(capacity);
+        this.mask = this.capacity - 1;
+        this.dictionary = dictionary;
+        this.timestamps = new long[this.capacity];
+        this.values = new double[this.capacity];
+        this.names = new int[this.capacity];
+        this.tagSets = new int[this.capacity];
+        this.clients = new ClientSlot[this.capacity];
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.head = new AtomicLong();
+        this.tail = new AtomicLong();
+        this.waiters = new AtomicInteger();
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+    }
+
+    @Override
+    public void addAll(Collection<Metric> metrics, ClientSlot client) {
+        add(metrics, client, true);
+    }
+
+    @Override
+    public boolean offerAll(Collection<Metric> metrics, ClientSlot client) {
+        return add(metrics, client, false);
+    }
+
+    /**
+     * @param wait true to wait for room, false to add nothing unless all the metrics fit now
+     * @return true if the metrics were added
+     */
+    private boolean add(Collection<Metric> metrics, ClientSlot client, boolean wait) {
+        if (!wait && metrics.size() > capacity) {
+            return false;
+        }
+        final Iterator<Metric> it = metrics.iterator();
+        int remaining = metrics.size();
+        while (remaining > 0) {
+            final int batch = Math.min(remaining, capacity);
+            // Everything that can fail happens before the claim, as a claimed slot left
+            // unpublished would stall every consumer behind it.
+            final long[] batchTimestamps = new long[batch];
+            final double[] batchValues = new double[batch];
+            final int[] batchNames = new int[batch];
+            final int[] batchTagSets = new int[batch];
+            int resolved = 0;
+            try {
+                for (; resolved < batch; resolved++) {
+                    final Metric m = it.next();
+                    batchTimestamps[resolved] = m.getTimestamp();
+                    batchValues[resolved] = m.getValue();
+                    batchNames[resolved] = dictionary.acquireName(m.getMetric(), 1);
+                    try {
+                        batchTagSets[resolved] = dictionary.acquireTags(m.getTags(), 1);
+                    } catch (RuntimeException | Error e) {
+                        dictionary.releaseName(batchNames[resolved], 1);
+                        throw e;
+                    }
+                }
+            } finally {
+                if (resolved < batch) {
+                    release(batchNames, batchTagSets, resolved);
+                }
+            }
+            final long start = wait ? claim(batch) : tryClaim(batch);
+            if (start < 0) {
+                release(batchNames, batchTagSets, batch);
+                return false;
+            }
+            for (int i = 0; i < batch; i++) {
+                final int index = await(start + i);
+                timestamps[index] = batchTimestamps[i];
+                values[index] = batchValues[i];
+                names[index] = batchNames[i];
+                tagSets[index] = batchTagSets[i];
+                publish(start + i, client);
+            }
+            remaining -= batch;
+        }
+        signal();
+        return true;
+    }
+
+    private void release(int[] nameIds, int[] tagSetIds, int count) {
+        for (int i = 0; i < count; i++) {
+            dictionary.releaseName(nameIds[i], 1);
+            dictionary.releaseTags(tagSetIds[i], 1);
+        }
+    }
+
+    @Override
+    public void addAll(MetricBatch metrics, int from, int to, ClientSlot client) {
+        if (metrics.dictionary() != dictionary) {
+            add(metrics.toMetrics(from, to), client, true);
+            return;
+        }
+        add(metrics, from, to, client, true);
+    }
+
+    @Override
+    public boolean offerAll(MetricBatch metrics, int from, int to, ClientSlot client) {
+        if (metrics.dictionary() != dictionary) {
+            return add(metrics.toMetrics(from, to), client, false);
+        }
+        return add(metrics, from, to, client, false);
+    }
+
+    /**
+     * @param wait true to wait for room, false to add nothing unless all the metrics fit now
+     * @return true if the metrics were added
+     */
+    private boolean add(MetricBatch metrics, int from, int to, ClientSlot client, boolean wait) {
+        if (!wait && to - from > capacity) {
+            return false;
+        }
+        int next = from;
+        while (next < to) {
+            final int batch = Math.min(to - next, capacity);
+            final long start = wait ? claim(batch) : tryClaim(batch);
+            if (start < 0) {
+                return false;
+            }
+            for (int i = 0; i < batch; i++, next++) {
+                final int index = await(start + i);
+                timestamps[index] = metrics.timestamp(next);
+                values[index] = metrics.value(next);
+                names[index] = metrics.nameId(next);
+                tagSets[index] = metrics.tagSetId(next);
+                dictionary.retainName(names[index], 1);
+                dictionary.retainTags(tagSets[index], 1);
+                publish(start + i, client);
+            }
+        }
+        signal();
+        return true;
+    }
+
+    /**
+     * Wait for a claimed position's slot to be free.
+     * @return its index
+     */
+    private int await(long position) {
+        final int index = index(position);
+        // A consumer may have claimed this slot on the previous lap and not yet released it.
+        while (sequences.get(index) != position) {
+            Thread.yield();
+        }
+        return index;
+    }
+
+    private void publish(long position, ClientSlot client) {
+        final int index = index(position);
+        clients[index] = client;
+        sequences.set(index, position + 1);
+    }
+
+    private void signal() {
+        if (waiters.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Collection<Metric> poll(int size, long maxWaitMillis) throws InterruptedException {
+        final MetricBatch batch = pollBatch(size, maxWaitMillis);
+        try {
+            return batch.toMetrics();
+        } finally {
+            batch.release();
+        }
+    }
+
+    @Override
+    public MetricBatch pollBatch(int size, long maxWaitMillis) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (true) {
+            final MetricBatch metrics = drain(size);
+            if (!metrics.isEmpty()) {
+                return metrics;
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                log.debug("Unable to retrieve a single element after max wait");
+                return metrics;
+            }
+            lock.lockInterruptibly();
+            try {
+                waiters.incrementAndGet();
+                try {
+                    if (!isReadable()) {
+                        notEmpty.awaitNanos(remaining);
+                    }
+                } finally {
+                    waiters.decrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0L, Math.min(capacity, size));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Reserve batch consecutive positions for a producer, waiting while the ring is full.
+     * @return the first reserved position
+     */
+    private long claim(int batch) {
+        boolean logged = false;
+        while (true) {
+            final long start = tryClaim(batch);
+            if (start >= 0) {
+                return start;
+            }
+            if (!logged) {
+                log.debug("Ring buffer full ({} slots), waiting for consumers", capacity);
+                logged = true;
+            }
+            LockSupport.parkNanos(this, FULL_BACK_OFF_NANOS);
+        }
+    }
+
+    /**
+     * Reserve batch consecutive positions if there is room for them now.
+     * @return the first reserved position, or -1 if the ring is too full
+     */
+    private long tryClaim(int batch) {
+        while (true) {
+            final long t = tail.get();
+            if (t + batch - head.get() > capacity) {
+                return -1;
+            }
+            if (tail.compareAndSet(t, t + batch)) {
+                return t;
+            }
+        }
+    }
+
+    /**
+     * Claim and remove every contiguous published element at the head, up to size.
+     * The ring's dictionary references pass on to the batch.
+     */
+    private MetricBatch drain(int size) {
+        while (true) {
+            final long h = head.get();
+            int available = 0;
+            while (available < size && sequences.get(index(h + available)) == h + available + 1) {
+                available++;
+            }
+            if (available == 0) {
+                return new MetricBatch(dictionary, 1);
+            }
+            if (head.compareAndSet(h, h + available)) {
+                final MetricBatch metrics = new MetricBatch(dictionary, available);
+                ClientSlot client = null;
+                int run = 0;
+                for (int i = 0; i < available; i++) {
+                    final long position = h + i;
+                    final int index = index(position);
+                    metrics.append(names[index], timestamps[index], values[index], tagSets[index]);
+                    if (clients[index] != client) {
+                        if (run > 0) {
+                            client.release(run);
+                        }
+                        client = clients[index];
+                        run = 0;
+                    }
+                    run++;
+                    clients[index] = null;
+                    sequences.set(index, position + capacity);
+                }
+                client.release(run);
+                return metrics;
+            }
+        }
+    }
+
+    private boolean isReadable() {
+        final long h = head.get();
+        return sequences.get(index(h)) == h + 1;
+    }
+
+    private int index(long position) {
+        return (int) (position & mask);
+    }
+
+    /**
+     * Number of slots, always a power of two.
+     */
+    private final int capacity;
+
+    private final int mask;
+
+    /**
+     * Names and tag sets of the metrics in the slots
+     */
+    private final MetricDictionary dictionary;
+
+    /*
+     * Slot contents, a column each. Visibility is piggybacked on the volatile writes to {@link #sequences}.
+     */
+    private final long[] timestamps;
+
+    private final double[] values;
+
+    private final int[] names;
+
+    private final int[] tagSets;
+
+    /**
+     * Client of the metric in the same slot, guarded the same way.
+     */
+    private final ClientSlot[] clients;
+
+    /**
+     * Per-slot sequence numbers, see the class comment.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * Next position a consumer will claim.
+     */
+    private final AtomicLong head;
+
+    /**
+     * Next position a producer will claim.
+     */
+    private final AtomicLong tail;
+
+    /**
+     * Number of consumers blocked (or about to block) on {@link #notEmpty}.
+     */
+    private final AtomicInteger waiters;
+
+    private final ReentrantLock lock;
+
+    private final Condition notEmpty;
+}
@@ -0,0 +1,196 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
+import org.zenoss.app.consumer.metric.data.MetricDictionary;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link MetricsBuffer} with one FIFO per client, drained with deficit round-robin.
+ *
+ * Metrics are sharded on the {@link ClientSlot} they were added with. Every
+ * client with a non-empty shard is in the rotation; on its turn it is credited
+ * {@link #quantum} metrics and may contribute that many to polls before the
+ * next client gets a turn. A client pushing a huge backlog therefore can't
+ * delay a client pushing a few metrics by more than one quantum per active
+ * client. Empty shards leave the rotation, forfeit unused credit, and are
+ * dropped so that departed clients don't accumulate.
+ */
+class ShardedMetricsBuffer implements MetricsBuffer {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardedMetricsBuffer.class);
+
+    /**
+     * @param quantum metrics credited to a client on each of its turns
+     */
+    ShardedMetricsBuffer(int quantum) {
+        Preconditions.checkArgument(quantum > 0, "quantum must be positive");
+        this.quantum = quantum;
+        this.shards = new IdentityHashMap<>();
+        this.rotation = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+    }
+
+    @Override
+    public void addAll(Collection<Metric> metrics, ClientSlot client) {
+        if (metrics.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            Shard shard = shards.get(client);
+            if (shard == null) {
+                shard = new Shard(client);
+                shards.put(client, shard);
+                rotation.addLast(shard);
+            }
+            shard.metrics.addAll(metrics);
+            size += metrics.size();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Collection<Metric> poll(int size, long maxWaitMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        lock.lockInterruptibly();
+        try {
+            while (rotation.isEmpty()) {
+                if (remaining <= 0) {
+                    log.debug("Unable to retrieve a single element after max wait");
+                    return Collections.emptyList();
+                }
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+
+            final List<Metric> metrics = new ArrayList<>(Math.min(size, this.size));
+            while (metrics.size() < size && !rotation.isEmpty()) {
+                final Shard shard = rotation.peekFirst();
+                if (!shard.inTurn) {
+                    shard.deficit += quantum;
+                    shard.inTurn = true;
+                }
+                final int n = Math.min(Math.min(shard.deficit, shard.metrics.size()), size - metrics.size());
+                for (int i = 0; i < n; i++) {
+                    metrics.add(shard.metrics.poll());
+                }
+                shard.deficit -= n;
+                shard.client.release(n);
+                this.size -= n;
+                if (shard.metrics.isEmpty()) {
+                    rotation.pollFirst();
+                    shards.remove(shard.client);
+                } else if (shard.deficit == 0) {
+                    shard.inTurn = false;
+                    rotation.addLast(rotation.pollFirst());
+                }
+                // else the poll is full; this shard keeps the rest of its turn for the next one
+            }
+            log.debug("Retrieved {} metrics, {} clients waiting", metrics.size(), rotation.size());
+            return metrics;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public MetricBatch pollBatch(int size, long maxWaitMillis) throws InterruptedException {
+        return MetricBatch.copyOf(poll(size, maxWaitMillis), dictionary);
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How many clients currently have metrics buffered?
+     */
+    int shardCount() {
+        lock.lock();
+        try {
+            return shards.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Shard {
+        Shard(ClientSlot client) {
+            this.client = client;
+            this.metrics = new ArrayDeque<>();
+        }
+
+        final ClientSlot client;
+
+        final ArrayDeque<Metric> metrics;
+
+        /** Metrics this client may still contribute during its current turn. */
+        int deficit;
+
+        /** Whether this client has been credited for its current turn. */
+        boolean inTurn;
+    }
+
+    /**
+     * Metrics credited to a client per turn.
+     */
+    private final int quantum;
+
+    /**
+     * Non-empty shards by client. Slots are interned by the queue, so identity is enough.
+     * Guarded by {@link #lock}.
+     */
+    private final Map<ClientSlot, Shard> shards;
+
+    /**
+     * Round-robin order of the non-empty shards; the head is the client whose turn it is.
+     * Guarded by {@link #lock}.
+     */
+    private final ArrayDeque<Shard> rotation;
+
+    /**
+     * Total metrics across all shards. Guarded by {@link #lock}.
+     */
+    private int size;
+
+    /**
+     * Backs the batches polled; metrics are buffered as objects
+     */
+    private final MetricDictionary dictionary = new MetricDictionary();
+
+    private final ReentrantLock lock;
+
+    private final Condition notEmpty;
+}
@@ -0,0 +1,402 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.app.consumer.metric.SpillConfiguration.FsyncPolicy;
+import org.zenoss.app.consumer.metric.data.Metric;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only FIFO of metric batches on disk, made of fixed-size memory-mapped
+ * segment files.
+ *
+ * Each batch is one record: its payload length, its metric count and the
+ * {@link MetricRecords} encoding of the metrics. The length is written last,
+ * so a record torn by a crash reads as the end of its segment, and is negated
+ * once read so that a restart only replays unread records. A record that
+ * doesn't fit in the current segment starts a new one, and a segment is
+ * deleted once everything in it has been read. Segments found in the
+ * directory on startup are read before anything appended afterwards.
+ *
+ * Used for the TSDB queue and for Zing batches that can't be delivered.
+ */
+public class SpillLog implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(SpillLog.class);
+
+    private static final String PREFIX = "spill-";
+    private static final String SUFFIX = ".seg";
+
+    /** Length and count */
+    private static final int HEADER_BYTES = 8;
+
+    /** Marks the end of a segment that had no room for the next record. */
+    private static final int END_OF_SEGMENT = -1;
+
+    /**
+     * Records that have been read get their length replaced by a value below
+     * {@link #END_OF_SEGMENT} so they aren't replayed after a restart.
+     */
+    private static int consumed(int length) {
+        return -length - 2;
+    }
+
+    /**
+     * Thrown by {@link #read()} for a record that couldn't be decoded. The
+     * record has been skipped.
+     */
+    public static final class CorruptRecordException extends IOException {
+        CorruptRecordException(int count, Throwable cause) {
+            super("Unable to decode " + count + " spilled metrics", cause);
+            this.count = count;
+        }
+
+        /** Number of metrics in the skipped record. */
+        public final int count;
+    }
+
+    /**
+     * @param directory where segment files live; created if missing
+     * @param maxBytes upper bound on the total size of the segment files
+     * @param segmentBytes size of each segment file
+     * @param fsync when to force appended data to disk
+     */
+    public SpillLog(Path directory, long maxBytes, int segmentBytes, FsyncPolicy fsync) throws IOException {
+        Preconditions.checkArgument(segmentBytes > HEADER_BYTES, "segmentBytes too small");
+        Preconditions.checkArgument(maxBytes >= segmentBytes, "maxBytes must hold at least one segment");
+        this.directory = directory;
+        this.maxSegments = maxBytes / segmentBytes;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+        this.segments = new ArrayDeque<>();
+        this.size = new AtomicLong();
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Append a batch.
+     * @return false if the log is full or the batch is larger than a segment
+     */
+    public boolean append(Collection<Metric> metrics) throws IOException {
+        if (metrics.isEmpty()) {
+            return true;
+        }
+        final byte[] payload = MetricRecords.encode(metrics);
+        final int needed = HEADER_BYTES + payload.length;
+        if (needed > segmentBytes) {
+            log.warn("Batch of {} metrics ({} bytes) doesn't fit in a spill segment", metrics.size(), needed);
+            return false;
+        }
+        synchronized (this) {
+            if (writer == null || writer.writePos + needed > segmentBytes) {
+                if (writer != null) {
+                    seal(writer);
+                    writer = null;
+                }
+                if (segments.size() >= maxSegments) {
+                    full = true;
+                    return false;
+                }
+                writer = open(nextId++);
+                segments.addLast(writer);
+            }
+            final MappedByteBuffer buffer = writer.buffer;
+            final int position = writer.writePos;
+            buffer.position(position + 4);
+            buffer.putInt(metrics.size());
+            buffer.put(payload);
+            buffer.putInt(position, payload.length);
+            writer.writePos = position + needed;
+            writer.count += metrics.size();
+            if (fsync == FsyncPolicy.BATCH) {
+                buffer.force();
+            }
+            size.addAndGet(metrics.size());
+            return true;
+        }
+    }
+
+    /**
+     * Remove the oldest batch.
+     * @return the batch, or an empty list if the log is empty
+     * @throws CorruptRecordException if the oldest batch couldn't be decoded; it is dropped
+     */
+    public synchronized List<Metric> read() throws IOException {
+        while (!segments.isEmpty()) {
+            final Segment reader = segments.peekFirst();
+            final int position = reader.readPos;
+            // Nothing past writePos was written, or survived recovery
+            final int length = position + HEADER_BYTES <= reader.writePos ? reader.buffer.getInt(position) : END_OF_SEGMENT;
+            if (length > 0) {
+                if (position + HEADER_BYTES + length > reader.writePos) {
+                    throw dropRest(reader, "Bad spill record length " + length + " at " + position);
+                }
+                final int count = reader.buffer.getInt(position + 4);
+                final byte[] payload = new byte[length];
+                reader.buffer.position(position + HEADER_BYTES);
+                reader.buffer.get(payload);
+                reader.buffer.putInt(position, consumed(length));
+                reader.readPos = position + HEADER_BYTES + length;
+                reader.count -= count;
+                size.addAndGet(-count);
+                try {
+                    return MetricRecords.decode(payload, count);
+                } catch (IOException | RuntimeException e) {
+                    throw new CorruptRecordException(count, e);
+                }
+            }
+            if (length < END_OF_SEGMENT) {
+                // Read before a restart
+                final int next = position + HEADER_BYTES + consumed(length);
+                if (next > reader.writePos) {
+                    throw dropRest(reader, "Bad spill record length " + length + " at " + position);
+                }
+                reader.readPos = next;
+                continue;
+            }
+            if (reader == writer) {
+                // Caught up with the writer
+                break;
+            }
+            segments.pollFirst();
+            delete(reader);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Give up on the unread records of a segment whose records can't be trusted, and delete it.
+     */
+    private CorruptRecordException dropRest(Segment segment, String problem) {
+        log.error("{} in spill segment {}, dropping the rest of it", problem, segment.path);
+        final long dropped = segment.count;
+        size.addAndGet(-dropped);
+        if (segment == writer) {
+            writer = null;
+        }
+        segments.remove(segment);
+        delete(segment);
+        return new CorruptRecordException((int) Math.min(Integer.MAX_VALUE, dropped), new IOException(problem));
+    }
+
+    /**
+     * How many metrics are spilled?
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * Has an append been refused for lack of space since a segment was last freed?
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Force outstanding writes to disk. Unread data stays in the segment files for the next start.
+     */
+    @Override
+    public synchronized void close() {
+        if (writer != null) {
+            writer.buffer.force();
+            writer = null;
+        }
+        for (Segment segment : segments) {
+            unmap(segment.buffer);
+        }
+        segments.clear();
+    }
+
+    private void recover() throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : files) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        for (Path path : paths) {
+            final long id = id(path);
+            if (id < 0 || Files.size(path) != segmentBytes) {
+                log.warn("Ignoring unexpected file {} in spill directory", path);
+                continue;
+            }
+            nextId = id + 1;
+            final Segment segment = new Segment(path, map(path));
+            long count = 0;
+            int position = 0;
+            while (position + HEADER_BYTES <= segmentBytes) {
+                final int stored = segment.buffer.getInt(position);
+                final int length = stored < END_OF_SEGMENT ? consumed(stored) : stored;
+                if (length <= 0 || position + HEADER_BYTES + length > segmentBytes) {
+                    break;
+                }
+                if (stored > 0) {
+                    count += segment.buffer.getInt(position + 4);
+                }
+                position += HEADER_BYTES + length;
+            }
+            if (count == 0) {
+                delete(segment);
+                continue;
+            }
+            segment.writePos = position;
+            segment.count = count;
+            segments.addLast(segment);
+            size.addAndGet(count);
+        }
+        if (size.get() > 0) {
+            log.info("Recovered {} spilled metrics from {} segments in {}", size.get(), segments.size(), directory);
+        }
+    }
+
+    private Segment open(long id) throws IOException {
+        final Path path = directory.resolve(String.format("%s%016d%s", PREFIX, id, SUFFIX));
+        log.debug("Opening spill segment {}", path);
+        return new Segment(path, map(path));
+    }
+
+    private MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private void seal(Segment segment) {
+        if (segment.writePos + 4 <= segmentBytes) {
+            segment.buffer.putInt(segment.writePos, END_OF_SEGMENT);
+        }
+        if (fsync != FsyncPolicy.NEVER) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Delete a segment, which must not be used afterwards.
+     */
+    private void delete(Segment segment) {
+        log.debug("Deleting spill segment {}", segment.path);
+        // The file's blocks aren't freed while it is mapped
+        unmap(segment.buffer);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            log.warn("Unable to delete spill segment {}", segment.path, e);
+        }
+        full = false;
+    }
+
+    /**
+     * Unmap a buffer now rather than when it is garbage collected. The buffer must not be used afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (NoSuchMethodException e) {
+            // Java 8
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Unable to unmap spill segment", e);
+            return;
+        }
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Unable to unmap spill segment", e);
+        }
+    }
+
+    private static long id(Path path) {
+        final String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static final class Segment {
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        final Path path;
+
+        final MappedByteBuffer buffer;
+
+        /** Offset of the next record to write; segments recovered on startup are never written. */
+        int writePos;
+
+        /** Offset of the next record to read. */
+        int readPos;
+
+        /** Metrics in the records not read yet. */
+        long count;
+    }
+
+    private final Path directory;
+
+    private final long maxSegments;
+
+    private final int segmentBytes;
+
+    private final FsyncPolicy fsync;
+
+    /**
+     * Segments holding unread records, oldest first. The last one may be {@link #writer}.
+     */
+    private final ArrayDeque<Segment> segments;
+
+    /**
+     * Segment being appended to, or null until the next append opens one.
+     */
+    private Segment writer;
+
+    private long nextId;
+
+    private final AtomicLong size;
+
+    private volatile boolean full;
+}
@@ -0,0 +1,113 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.base.Preconditions;
+import org.zenoss.app.consumer.metric.WriterAutoscaleConfiguration;
+
+/**
+ * Decides how many TSDB writers should run from what happened over the last
+ * interval. Not thread safe; {@link OpenTsdbWriterManager} calls it from one
+ * thread at a time.
+ *
+ * <ul>
+ * <li>While OpenTSDB fails too many batches or takes too long to accept
+ * them, a quarter of the writers are shed: more concurrency only makes
+ * that worse.</li>
+ * <li>While the backlog isn't shrinking, one writer is added per interval.
+ * If the interval after adding one shows no real gain in outgoing
+ * throughput, it is taken back and growth stops at that size, the
+ * ceiling, for {@link #PROBE_INTERVALS} intervals before being tried
+ * again.</li>
+ * <li>While there is no backlog, writers drift down to the minimum.</li>
+ * <li>Otherwise the backlog is draining and nothing changes.</li>
+ * </ul>
+ */
+final class WriterAutoscaler {
+
+    /** Intervals to hold a ceiling found by probing before probing again. */
+    static final int PROBE_INTERVALS = 12;
+
+    WriterAutoscaler(WriterAutoscaleConfiguration config) {
+        Preconditions.checkArgument(config.getMinWriters() <= config.getMaxWriters(), "minWriters > maxWriters");
+        this.minWriters = config.getMinWriters();
+        this.maxWriters = config.getMaxWriters();
+        this.minThroughputGain = config.getMinThroughputGain();
+        this.maxErrorRate = config.getMaxErrorRate();
+        this.maxBatchLatency = config.getMaxBatchLatency();
+        this.target = minWriters;
+        this.ceiling = maxWriters;
+        this.lastBacklog = 0;
+    }
+
+    /**
+     * Take in the last interval and decide on the number of writers.
+     *
+     * @param backlog metrics waiting to be written
+     * @param throughput metrics written per second over the interval
+     * @param errorRate fraction of batches that failed over the interval
+     * @param batchLatency mean milliseconds per batch over the interval, 0 if none were written
+     * @return the number of writers that should be running
+     */
+    int update(long backlog, double throughput, double errorRate, double batchLatency) {
+        final boolean grew = growing;
+        growing = false;
+        if (ceilingAge > 0 && --ceilingAge == 0) {
+            ceiling = maxWriters;
+        }
+
+        if (errorRate > maxErrorRate || batchLatency > maxBatchLatency) {
+            target = Math.max(minWriters, target - Math.max(1, target / 4));
+            holdCeiling(target);
+        } else if (backlog > 0 && backlog >= lastBacklog) {
+            if (grew && throughput < throughputBeforeGrowth * (1 + minThroughputGain)) {
+                target = Math.max(minWriters, target - 1);
+                holdCeiling(target);
+            } else if (target < ceiling) {
+                throughputBeforeGrowth = throughput;
+                target++;
+                growing = true;
+            }
+        } else if (backlog == 0) {
+            target = Math.max(minWriters, target - 1);
+        }
+        lastBacklog = backlog;
+        return target;
+    }
+
+    int target() {
+        return target;
+    }
+
+    int ceiling() {
+        return ceiling;
+    }
+
+    private void holdCeiling(int writers) {
+        ceiling = writers;
+        ceilingAge = PROBE_INTERVALS;
+    }
+
+    // Configuration
+    private final int minWriters;
+    private final int maxWriters;
+    private final double minThroughputGain;
+    private final double maxErrorRate;
+    private final long maxBatchLatency;
+
+    // State
+    private int target;
+    private int ceiling;
+    private int ceilingAge;
+    private long lastBacklog;
+    private boolean growing;
+    private double throughputBeforeGrowth;
+}
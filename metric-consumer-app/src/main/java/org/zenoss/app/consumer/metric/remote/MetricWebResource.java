@@ -72,24 +72,23 @@ public class MetricWebResource {
             if (metrics != null) {
                 metricService.incrementReceived(metrics.size());
             }
-            //tag metrics with http parameters
+            //tag metrics with http parameters and tenant id, then filter tags using configuration white lists
             log.debug("Tagging metrics with http parameter prefixes: {}", configuration.getHttpParameterTags());
-            Utils.tagMetrics(request, metrics, configuration.getHttpParameterTags());
-
-            //tag metrics with tenant id
+            TagPipeline pipeline = Utils.parameterTags(request, configuration.getHttpParameterTags());
             if (configuration.isAuthEnabled()) {
                 Subject subject = security.getSubject();
                 ZenossTenant tenant = subject.getPrincipals().oneByType(ZenossTenant.class);
 
                 log.debug("Tagging metrics with tenant-id: {}", tenant.id());
-                Utils.injectTag("zenoss_tenant_id", tenant.id(), metrics);
+                pipeline = pipeline.inject("zenoss_tenant_id", tenant.id());
+            }
+            if (metrics != null) {
+                pipeline.filter(configuration.getTagFilter()).applyTo(metrics);
             }
 
-            //filter tags using configuration white lists
-            Utils.filterMetricTags(metrics, configuration.getTagWhiteList(), configuration.getTagWhiteListPrefixes());
-
+            // Jersey 1 can't suspend the request, so wait here without polling the queue
             String remoteIp = Utils.remoteAddress(request);
-            return metricService.push(metrics, remoteIp, null);
+            return metricService.pushAsync(metrics, remoteIp, null).get();
         } catch (Exception e) {
             log.info("post(metricCollection={}, request={}", metricCollection, request);
             log.error("Unexpected exception: " + e.getMessage(), e);
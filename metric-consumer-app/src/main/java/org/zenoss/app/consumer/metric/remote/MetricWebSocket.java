@@ -11,10 +11,8 @@
 package org.zenoss.app.consumer.metric.remote;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.google.common.base.Supplier;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.MapMaker;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import org.apache.shiro.subject.Subject;
@@ -30,6 +28,8 @@ import org.zenoss.app.consumer.metric.MetricService;
 import org.zenoss.app.consumer.metric.data.Control;
 import org.zenoss.app.consumer.metric.data.Message;
 import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.StringPool;
+import org.zenoss.app.consumer.metric.data.UnknownCodeException;
 import org.zenoss.dropwizardspring.websockets.WebSocketBroadcast;
 import org.zenoss.dropwizardspring.websockets.WebSocketSession;
 import org.zenoss.dropwizardspring.websockets.annotations.OnClose;
@@ -37,11 +37,11 @@ import org.zenoss.dropwizardspring.websockets.annotations.OnMessage;
 import org.zenoss.dropwizardspring.websockets.annotations.WebSocketListener;
 
 import javax.annotation.PostConstruct;
-import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Path;
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 @WebSocketListener(name = "metrics/store")
@@ -52,23 +52,17 @@ public class MetricWebSocket {
 
     private ConsumerAppConfiguration configuration;
 
-    private final Map<WebSocket.Connection, BinaryDecoder> decoders = Collections.synchronizedMap(
-        new WeakHashMap<WebSocket.Connection, BinaryDecoder>()
-    );
     private final AtomicLong sequence = new AtomicLong();
-    private final LoadingCache<WebSocketSession, String> connectionIds = CacheBuilder
-            .newBuilder()
-            .expireAfterAccess(6, TimeUnit.MINUTES)
+
+    /**
+     * State of each open connection. Weak keys compare by identity, and nothing in a
+     * {@link SessionState} refers back to its connection, so closed ones are collected
+     * even if {@link #onClose} never runs.
+     */
+    private final ConcurrentMap<WebSocket.Connection, SessionState> sessions = new MapMaker()
             .weakKeys()
-            .build(CacheLoader.from(new Supplier<String>() {
-                @Override
-                public String get() {
-                    return String.format("websocket%d",sequence.incrementAndGet());
-                }
-            }));
-    private final Map<WebSocketSession, String> tenantIds = Collections.synchronizedMap(
-        new WeakHashMap<WebSocketSession, String>()
-    );
+            .makeMap();
+    private final ObjectMapper mapper = new ObjectMapper();
 
     @Autowired
     public MetricWebSocket(
@@ -80,9 +74,11 @@ public class MetricWebSocket {
         this.configuration = configuration;
         this.minTimeBetweenBroadcast = configuration.getMetricServiceConfiguration().getMinTimeBetweenBroadcast();
         this.minTimeBetweenNotification = configuration.getMetricServiceConfiguration().getMinTimeBetweenNotification();
+        this.maxPendingPushes = configuration.getMetricServiceConfiguration().getPerClientMaxPendingPushes();
+        this.maxDictionarySize = configuration.getMetricServiceConfiguration().getMaxDictionarySize();
+        this.stringPool = new StringPool(configuration.getMetricServiceConfiguration().getStringPoolSize());
         this.lastHighCollisionBroadcast = new AtomicLong();
         this.lastLowCollisionBroadcast = new AtomicLong();
-        this.lastClientCollisionSent = new AtomicLong();
     }
 
     @PostConstruct
@@ -98,22 +94,21 @@ public class MetricWebSocket {
     @OnClose
     public void onClose(Integer closeCode, String message, WebSocketSession session) {
         log.info("onClose( closeCode={}, message={})", closeCode, message);
-        decoders.remove(session.getConnection());
+        sessions.remove(session.getConnection());
     }
 
     @OnMessage
     public Control onMessage(byte[] data, WebSocketSession session) throws Exception {
         try {
-            BinaryDecoder decoder;
-            synchronized(decoders) {
-                decoder = decoders.get(session.getConnection());
-                if (decoder == null) {
-                    decoder = new BinaryDecoder();
-                    decoders.put(session.getConnection(), decoder);
-                }
-            }
+            SessionState state = getSessionState(session);
+            BinaryDecoder decoder = state.decoder();
             try {
                 return onMessage(decoder.decode(data), session);
+            } catch (UnknownCodeException e) {
+                // Start both sides over rather than guess at what the code meant
+                log.info("Resetting dictionary of {}: {}", state.clientId, e.getMessage());
+                decoder.reset();
+                return Control.dictionaryReset(e.getMessage());
             } catch (IOException e) {
                 log.error("Invalid message");
                 return Control.malformedRequest("Invalid message");
@@ -129,8 +124,37 @@ public class MetricWebSocket {
         }
     }
 
-    private String getClientId(WebSocketSession session) {
-        return connectionIds.getUnchecked(session);
+    /**
+     * The state of a session, created on its first message. Looking it up takes no lock
+     * once it exists.
+     */
+    private SessionState getSessionState(WebSocketSession session) {
+        SessionState state = sessions.get(session.getConnection());
+        if (state == null) {
+            SessionState created = new SessionState(
+                    String.format("websocket%d", sequence.incrementAndGet()), sessionTags(session));
+            state = sessions.putIfAbsent(session.getConnection(), created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * The tags of a session's http parameters (and tenant, obviously identified through
+     * authentication) merged into one set, followed by the configuration white lists.
+     */
+    private TagPipeline sessionTags(WebSocketSession session) {
+        log.debug("Tagging metrics with parameters: {}", configuration.getHttpParameterTags());
+        TagPipeline pipeline = Utils.parameterTags(session.getHttpServletRequest(), configuration.getHttpParameterTags());
+        if (configuration.isAuthEnabled()) {
+            Subject subject = session.getSubject();
+            ZenossTenant tenant = subject.getPrincipals().oneByType(ZenossTenant.class);
+            log.debug("Tagging metrics with tenant_id: {}", tenant.id());
+            pipeline = pipeline.inject("zenoss_tenant_id", tenant.id());
+        }
+        return pipeline.filter(configuration.getTagFilter());
     }
 
     @OnMessage
@@ -143,35 +167,32 @@ public class MetricWebSocket {
             //process metrics
             if (metrics != null) {
                 service.incrementReceived(metrics.length);
-                log.debug( "Tagging metrics with parameters: {}", configuration.getHttpParameterTags());
-                HttpServletRequest request = session.getHttpServletRequest();
 
-                //tag metrics using configured http parameters
+                //tag metrics using configured http parameters and tenant id, then filter tags using
+                //configuration white lists, all in one pass
+                SessionState state = getSessionState(session);
                 List<Metric> metricList = Arrays.asList(metrics);
-                Utils.tagMetrics(request, metricList, configuration.getHttpParameterTags());
-
-                //tag metrics with tenant id (obviously, tenant-id's identified through authentication)
-                if (configuration.isAuthEnabled()) {
-                    synchronized(tenantIds) {
-                        if (!tenantIds.containsKey(session)) {
-                            Subject subject = session.getSubject();
-                            ZenossTenant tenant = subject.getPrincipals().oneByType(ZenossTenant.class);
-                            tenantIds.put(session, tenant.id());
-                        }
-                        String tenantId = tenantIds.get(session);
-                        log.debug("Tagging metrics with tenant_id: {}", tenantId);
-                        Utils.injectTag("zenoss_tenant_id", tenantId, metricList);
-                    }
-                }
-
-                //filter tags using configuration white lists
-                Utils.filterMetricTags( metricList, configuration.getTagWhiteList(), configuration.getTagWhiteListPrefixes());
+                state.tags.applyTo(metricList);
 
                 //enqueue metrics for transfer
-                final String clientId = getClientId(session);
-                Control control = service.push(metricList, clientId, onCollision(clientId, session));
-                log.debug("Message(control={}, len(metrics)={}) -> {}", message.getControl(), metricsLength, control);
-                return control;
+                CompletableFuture<Control> pushed = push(metricList, state, session);
+                if (pushed.isDone()) {
+                    Control control = pushed.join();
+                    log.debug("Message(control={}, len(metrics)={}) -> {}", message.getControl(), metricsLength, control);
+                    return control;
+                }
+
+                //the queue is backlogged, answer once the metrics are accepted or given up on
+                final Control received = message.getControl();
+                pushed.whenComplete((control, e) -> {
+                    if (e != null) {
+                        log.error("Unexpected exception: " + e.getMessage(), e);
+                        control = Control.error(e.getMessage());
+                    }
+                    log.debug("Message(control={}, len(metrics)={}) -> {}", received, metricsLength, control);
+                    reply(control, session);
+                });
+                return null;
             } else {
                 return Control.malformedRequest("Null metrics not accepted");
             }
@@ -182,6 +203,90 @@ public class MetricWebSocket {
         }
     }
 
+    /**
+     * Push metrics for a session, behind any of its earlier messages still
+     * waiting on the queue so they are accepted in the order they arrived.
+     */
+    private CompletableFuture<Control> push(final List<Metric> metrics, final SessionState state, final WebSocketSession session) {
+        final String clientId = state.clientId;
+        final Runnable onCollision = onCollision(state, session);
+        final PendingPushes pending = state.pending;
+
+        final CompletableFuture<Control> pushed;
+        synchronized (pending) {
+            if (pending.count == 0) {
+                pushed = service.pushAsync(metrics, clientId, onCollision);
+            } else if (pending.count >= maxPendingPushes) {
+                log.info("Rejected: [{}] too many messages waiting from {}", metrics.size(), clientId);
+                return CompletableFuture.completedFuture(Control.dropped("too many messages waiting"));
+            } else {
+                pushed = pending.last
+                        .handle((control, e) -> null)
+                        .thenCompose(ignored -> service.pushAsync(metrics, clientId, onCollision));
+            }
+            if (pushed.isDone()) {
+                return pushed;
+            }
+            pending.count++;
+            pending.last = pushed;
+        }
+        pushed.whenComplete((control, e) -> {
+            synchronized (pending) {
+                pending.count--;
+            }
+        });
+        return pushed;
+    }
+
+    void reply(Control control, WebSocketSession session) {
+        try {
+            session.sendMessage(mapper.writeValueAsString(control));
+        } catch (IOException e) {
+            log.warn("Failed to send reply to client: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Messages from one session waiting on a backlogged queue.
+     */
+    private static final class PendingPushes {
+        private CompletableFuture<Control> last;
+        private int count;
+    }
+
+    /**
+     * What we keep for one session. Fields are fixed when it is created, apart from the
+     * decoder, which is only created for sessions sending binary frames.
+     */
+    private final class SessionState {
+
+        SessionState(String clientId, TagPipeline tags) {
+            this.clientId = clientId;
+            this.tags = tags;
+        }
+
+        BinaryDecoder decoder() {
+            BinaryDecoder d = decoder;
+            if (d == null) {
+                synchronized (this) {
+                    d = decoder;
+                    if (d == null) {
+                        d = new BinaryDecoder(maxDictionarySize, stringPool);
+                        decoder = d;
+                    }
+                }
+            }
+            return d;
+        }
+
+        final String clientId;
+        final TagPipeline tags;
+        final PendingPushes pending = new PendingPushes();
+        /** When the session was last sent a client collision */
+        final AtomicLong lastCollisionSent = new AtomicLong();
+        private volatile BinaryDecoder decoder;
+    }
+
     @Subscribe
     public void handle(Control event) throws Exception {
         log.debug("Handle control event: {}", event);
@@ -205,22 +310,28 @@ public class MetricWebSocket {
         }
     }
 
-    Runnable onCollision(final String clientId, final WebSocketSession session) {
+    /**
+     * Notifies the session of collisions, on the state its metrics were pushed with. Looking
+     * the state up again could create it anew for a session closed in the meantime.
+     */
+    private Runnable onCollision(final SessionState state, final WebSocketSession session) {
         return new Runnable(){
             @Override
             public void run() {
-                clientCollisionNotification(Control.clientCollision(clientId), session);
+                clientCollisionNotification(state, session);
             }
         };
     }
 
-    void clientCollisionNotification(Control event, WebSocketSession session) {
-        // We send at most every X milliseconds. Check the LOW time.
+    private void clientCollisionNotification(SessionState state, WebSocketSession session) {
+        // We send each session at most one every X milliseconds, which stands for all its collisions in between.
+        String clientId = state.clientId;
         long now = System.currentTimeMillis();
-        long lastCheckTimeExpected = lastClientCollisionSent.get();
+        long lastCheckTimeExpected = state.lastCollisionSent.get();
         if (now > lastCheckTimeExpected + minTimeBetweenNotification &&
-                lastClientCollisionSent.compareAndSet(lastCheckTimeExpected, now)) {
+                state.lastCollisionSent.compareAndSet(lastCheckTimeExpected, now)) {
             try {
+                Control event = Control.clientCollision(clientId, service.suggestedBackOff(clientId));
                 String message = WebSocketBroadcast.newMessage(getClass(), event).asString();
                 session.sendMessage(message);
                 service.incrementSentClientCollision();
@@ -292,6 +403,21 @@ public class MetricWebSocket {
      */
     private final int minTimeBetweenNotification;
 
+    /**
+     * How many messages from one session may wait on a backlogged queue at once?
+     */
+    private final int maxPendingPushes;
+
+    /**
+     * How many dictionary codes to hold per connection?
+     */
+    private final int maxDictionarySize;
+
+    /**
+     * Deduplicates names and tags decoded from all connections
+     */
+    private final StringPool stringPool;
+
     /**
      * Last timestamp when we broadcast a low collision message
      */
@@ -301,9 +427,4 @@ public class MetricWebSocket {
      * Last timestamp when we broadcast a high collision message
      */
     private final AtomicLong lastHighCollisionBroadcast;
-
-    /**
-     * Last timestamp when we sent a client-collision message
-     */
-    private final AtomicLong lastClientCollisionSent;
 }
@@ -0,0 +1,151 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.remote;
+
+import org.zenoss.app.consumer.metric.data.TagSet;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * The tag white lists compiled into one matcher: tag names kept as a hash
+ * set and prefixes as a trie, so a key is checked in one walk over its
+ * characters however many prefixes there are.
+ *
+ * Tag sets are canonical, so the result for each is cached by instance
+ * in a small lossy cache; metrics of the same device are filtered once.
+ * Thread safe.
+ */
+public final class TagFilter implements Predicate<String> {
+
+    private static final int CACHE_SIZE = 1 << 12;
+
+    /** Keeps every tag */
+    public static final TagFilter ALL = new TagFilter(null, null);
+
+    /**
+     * A filter keeping tags named in whiteList or starting with one of whiteListPrefixes.
+     * If both are null every tag is kept, and if one is null it is ignored.
+     */
+    public static TagFilter compile(Collection<String> whiteList, Collection<String> whiteListPrefixes) {
+        return whiteList == null && whiteListPrefixes == null ? ALL : new TagFilter(whiteList, whiteListPrefixes);
+    }
+
+    private TagFilter(Collection<String> whiteList, Collection<String> whiteListPrefixes) {
+        this.keepAll = whiteList == null && whiteListPrefixes == null;
+        this.names = whiteList == null ? new HashSet<>() : new HashSet<>(whiteList);
+        this.prefixes = new Node();
+        if (whiteListPrefixes != null) {
+            for (String prefix : whiteListPrefixes) {
+                prefixes.add(prefix);
+            }
+        }
+    }
+
+    /**
+     * @return the tags this filter keeps, which are the same instance if it keeps all of them
+     */
+    public TagSet filter(TagSet tags) {
+        if (keepAll || tags.isEmpty()) {
+            return tags;
+        }
+        final int slot = tags.hashCode() & (CACHE_SIZE - 1);
+        final Cached cached = cache[slot];
+        if (cached != null && cached.tags == tags) {
+            return cached.filtered;
+        }
+        final TagSet filtered = tags.retainKeys(this);
+        cache[slot] = new Cached(tags, filtered);
+        return filtered;
+    }
+
+    /**
+     * @return true if the tag named key is kept
+     */
+    @Override
+    public boolean test(String key) {
+        return keepAll || names.contains(key) || (key != null && prefixes.matches(key));
+    }
+
+    /** The result for one tag set; replaced as a whole so readers never see half of it */
+    private static final class Cached {
+        Cached(TagSet tags, TagSet filtered) {
+            this.tags = tags;
+            this.filtered = filtered;
+        }
+
+        final TagSet tags;
+        final TagSet filtered;
+    }
+
+    /** A trie node; children are kept sorted by their character */
+    private static final class Node {
+
+        void add(String prefix) {
+            Node node = this;
+            for (int i = 0; i < prefix.length() && !node.terminal; i++) {
+                node = node.child(prefix.charAt(i), true);
+            }
+            // A shorter prefix matches everything a longer one would
+            node.terminal = true;
+            node.labels = new char[0];
+            node.children = new Node[0];
+        }
+
+        /**
+         * @return true if key starts with a prefix added to this node
+         */
+        boolean matches(String key) {
+            Node node = this;
+            for (int i = 0; !node.terminal; i++) {
+                if (i == key.length() || (node = node.child(key.charAt(i), false)) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private Node child(char c, boolean create) {
+            final int i = Arrays.binarySearch(labels, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            if (!create) {
+                return null;
+            }
+            final int at = -(i + 1);
+            final Node child = new Node();
+            final char[] newLabels = new char[labels.length + 1];
+            final Node[] newChildren = new Node[labels.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, at);
+            System.arraycopy(children, 0, newChildren, 0, at);
+            newLabels[at] = c;
+            newChildren[at] = child;
+            System.arraycopy(labels, at, newLabels, at + 1, labels.length - at);
+            System.arraycopy(children, at, newChildren, at + 1, labels.length - at);
+            labels = newLabels;
+            children = newChildren;
+            return child;
+        }
+
+        private boolean terminal;
+        private char[] labels = new char[0];
+        private Node[] children = new Node[0];
+    }
+
+    private final boolean keepAll;
+    private final Set<String> names;
+    private final Node prefixes;
+    private final Cached[] cache = new Cached[CACHE_SIZE];
+}
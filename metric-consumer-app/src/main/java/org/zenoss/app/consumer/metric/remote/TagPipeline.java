@@ -0,0 +1,129 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.remote;
+
+import com.google.common.base.Strings;
+import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.TagSet;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The tag changes made to metrics on the way in: tags injected from http
+ * parameters and the tenant, then the white lists. A pipeline is built once
+ * per request or session and applied to every metric in one pass, and the
+ * tags it injects are merged up front into one tag set.
+ *
+ * Pipelines are immutable; adding a step returns a new one.
+ */
+public final class TagPipeline {
+
+    /** Changes nothing */
+    public static final TagPipeline NONE = new TagPipeline(new Step[0]);
+
+    private TagPipeline(Step[] steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * @return this pipeline followed by setting tag name to value, or this one if the value is empty
+     */
+    public TagPipeline inject(String name, String value) {
+        return Strings.isNullOrEmpty(value) ? this : inject(TagSet.EMPTY.with(name, value));
+    }
+
+    /**
+     * @return this pipeline followed by setting every tag in tags. Tags injected one after the
+     * other are merged into one step, so they cost one merge per distinct tag set.
+     */
+    public TagPipeline inject(TagSet tags) {
+        if (tags.isEmpty()) {
+            return this;
+        }
+        final int last = steps.length - 1;
+        if (last >= 0 && steps[last] instanceof Inject) {
+            final Step[] merged = steps.clone();
+            merged[last] = new Inject(((Inject) steps[last]).tags.withAll(tags));
+            return new TagPipeline(merged);
+        }
+        return then(new Inject(tags));
+    }
+
+    /**
+     * @return this pipeline followed by a white list filter
+     */
+    public TagPipeline filter(TagFilter filter) {
+        return filter == TagFilter.ALL ? this : then(filter::filter);
+    }
+
+    /**
+     * @return tags with every step applied
+     */
+    public TagSet apply(TagSet tags) {
+        for (Step step : steps) {
+            tags = step.apply(tags);
+        }
+        return tags;
+    }
+
+    /**
+     * Apply the pipeline to each metric. Metrics from the same device tend to follow each
+     * other with the same tag set, so the steps only run when the tag set changes.
+     */
+    public void applyTo(Collection<Metric> metrics) {
+        if (steps.length == 0) {
+            return;
+        }
+        TagSet in = null;
+        TagSet out = null;
+        for (Metric metric : metrics) {
+            final TagSet tags = metric.getTags();
+            if (tags != in) {
+                in = tags;
+                out = apply(tags);
+            }
+            metric.setTags(out);
+        }
+    }
+
+    /**
+     * @return number of steps, for tests
+     */
+    int size() {
+        return steps.length;
+    }
+
+    private TagPipeline then(Step step) {
+        final Step[] more = Arrays.copyOf(steps, steps.length + 1);
+        more[steps.length] = step;
+        return new TagPipeline(more);
+    }
+
+    private interface Step {
+        TagSet apply(TagSet tags);
+    }
+
+    private static final class Inject implements Step {
+        Inject(TagSet tags) {
+            this.tags = tags;
+        }
+
+        @Override
+        public TagSet apply(TagSet tags) {
+            return tags.withAll(this.tags);
+        }
+
+        final TagSet tags;
+    }
+
+    private final Step[] steps;
+}
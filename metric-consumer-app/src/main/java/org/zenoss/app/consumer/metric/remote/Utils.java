@@ -11,11 +11,11 @@
 package org.zenoss.app.consumer.metric.remote;
 
 import com.google.common.base.Strings;
-import com.google.common.collect.Maps;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zenoss.app.consumer.ConsumerAppConfiguration;
 import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.TagSet;
 
 import javax.servlet.http.HttpServletRequest;
 import java.util.*;
@@ -52,8 +52,19 @@ public final class Utils {
      * @param tagPrefixes The prefixes to find int he servlet request
      */
     public static void tagMetrics(HttpServletRequest request, List<Metric> metrics, List<String> tagPrefixes) {
+        parameterTags(request, tagPrefixes).applyTo(metrics);
+    }
+
+    /**
+     * A pipeline injecting all parameters in the servlet request matching the provided prefixes.
+     *
+     * @param request     The http servlet request
+     * @param tagPrefixes The prefixes to find in the servlet request
+     */
+    public static TagPipeline parameterTags(HttpServletRequest request, List<String> tagPrefixes) {
+        TagPipeline pipeline = TagPipeline.NONE;
         if (tagPrefixes == null || tagPrefixes.isEmpty()) {
-            return;
+            return pipeline;
         }
 
         Enumeration<String> parameters = request.getParameterNames();
@@ -61,42 +72,63 @@ public final class Utils {
             String parameter = parameters.nextElement();
             for (String prefix : tagPrefixes) {
                 if (parameter.startsWith(prefix)) {
-                    injectTag(parameter, request.getParameter(parameter), metrics);
+                    pipeline = pipeline.inject(parameter, request.getParameter(parameter));
+                    break;
                 }
             }
         }
+        return pipeline;
     }
 
     /**
      * Add tag into each metric.  No tag's added if the value's empty.
      *
+     * Metrics from the same device tend to follow each other with the same tag set, so the
+     * tagged set is only looked up when the tag set changes.
+     *
      * @param name    tag name
      * @param value   tag value
      * @param metrics the metrics to tag
      */
     public static void injectTag(String name, String value, Collection<Metric> metrics) {
         if (!Strings.isNullOrEmpty(value)) {
+            TagSet untagged = null;
+            TagSet tagged = null;
             for (Metric metric : metrics) {
-                metric.addTag(name, value);
+                final TagSet tags = metric.getTags();
+                if (tags != untagged) {
+                    untagged = tags;
+                    tagged = tags.with(name, value);
+                }
+                metric.setTags(tagged);
             }
         }
     }
 
     /**
-     * Filter tags in each metric using a white list of specific tags, and a white list of tag prefixes.  Tags matching
-     * the explicit whitelist have priority, and are placed in the resulting map first.
+     * Filter tags in each metric using a white list of specific tags, and a white list of tag prefixes.
      *
      * If both white lists are null, all tags are preserved.  If one white list is null, then it is ignored.
+     * Callers filtering more than once should compile the white lists once with {@link TagFilter#compile}.
      *
      * @param metrics           the metrics to tag
      * @param whiteList         tags to white list
      * @param whiteListPrefixes tag prefixes to white list
      */
     public static void filterMetricTags(List<Metric> metrics, List<String> whiteList, List<String> whiteListPrefixes) {
-        if (!(whiteList == null && whiteListPrefixes == null)) {
+        filterMetricTags(metrics, TagFilter.compile(whiteList, whiteListPrefixes));
+    }
+
+    /**
+     * Filter tags in each metric.
+     *
+     * @param metrics the metrics to tag
+     * @param filter  the compiled white lists
+     */
+    public static void filterMetricTags(List<Metric> metrics, TagFilter filter) {
+        if (filter != TagFilter.ALL) {
             for (Metric m : metrics) {
-                Map<String, String> tags = filterTags(m.getTags(), whiteList, whiteListPrefixes);
-                m.setTags(tags);
+                m.setTags(filter.filter(m.getTags()));
             }
         }
     }
@@ -105,8 +137,6 @@ public final class Utils {
      * Create a new tag map from an existing tag map using an explicit white list, and a white list prefix list.
      * If both white lists are null, the old tags are the new tags.  If one white list is null, then it is ignored.
      *
-     * The current implementation returns an ordered Map with the explicit white list matches appearing first in the map.
-     *
      * @param tags              the tags to filter
      * @param whiteList         tags to white list
      * @param whiteListPrefixes tag prefixes to white list
@@ -116,36 +146,7 @@ public final class Utils {
         if (whiteList == null && whiteListPrefixes == null) {
             return tags;
         }
-
-        final Map<String, String> tagsCopy = Maps.newHashMap(tags);
-        final Map<String, String> newTags = Maps.newLinkedHashMap();
-        String key;
-
-        // First add explicitly white listed tags
-        if (whiteList != null) {
-            for (Map.Entry<String, String> entry : tags.entrySet()) {
-                key = entry.getKey();
-                if (whiteList.contains(key)) {
-                    newTags.put(key, entry.getValue());
-                    tagsCopy.remove(key);
-                }
-            }
-        }
-        // Now loop through again and check remaining tags against the prefix white list.  Only look @ the copy
-        // of the tags at this point, in case any were removed by the explicit white list.
-        if (whiteListPrefixes != null) {
-            for (Map.Entry<String, String> entry : tagsCopy.entrySet()) {
-                key = entry.getKey();
-                for (String prefix : whiteListPrefixes) {
-                    if (key.startsWith(prefix)) {
-                        newTags.put(key, entry.getValue());
-                        break;
-                    }
-                }
-            }
-
-        }
-        return newTags;
+        return TagFilter.compile(whiteList, whiteListPrefixes).filter(TagSet.of(tags));
     }
 
 }
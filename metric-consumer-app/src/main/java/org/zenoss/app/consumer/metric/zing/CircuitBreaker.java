@@ -0,0 +1,96 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.zing;
+
+/**
+ * Stops calls to a failing service for a while. After failureThreshold
+ * failures in a row the circuit opens and {@link #allowRequest()} refuses
+ * everything for openMillis. Then it lets one call through to try the
+ * service: the circuit closes again if that call succeeds, and stays open
+ * for another openMillis if it fails. Thread safe.
+ */
+class CircuitBreaker {
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return true if the caller may make a call, and must then report how it went
+     */
+    synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now() - openedAt < openMillis) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                // A trial call is already out
+                return false;
+        }
+    }
+
+    synchronized void onSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = now();
+        }
+    }
+
+    /**
+     * @return true while calls are refused, without starting a trial call
+     */
+    synchronized boolean isOpen() {
+        return state == State.HALF_OPEN || (state == State.OPEN && now() - openedAt < openMillis);
+    }
+
+    /**
+     * @return how long calls will still be refused: the rest of the open period, or a whole
+     * one while a trial call is out, in case it fails; 0 when they may be made
+     */
+    synchronized long millisUntilTrial() {
+        switch (state) {
+            case OPEN:
+                return Math.max(0, openMillis - (now() - openedAt));
+            case HALF_OPEN:
+                return openMillis;
+            default:
+                return 0;
+        }
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+}
@@ -0,0 +1,92 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.zing;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.zenoss.app.consumer.metric.data.Metric;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes metrics as the JSON of a MetricCollection straight to the
+ * connection, optionally gzipped, instead of building the whole document in
+ * memory first. The length isn't known beforehand, so it is sent chunked.
+ * Repeatable, since the metrics are kept and written again on a retry.
+ */
+class MetricsJsonEntity extends AbstractHttpEntity {
+
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    /**
+     * @param metricWriter writes a single metric; must not close or flush its target
+     */
+    MetricsJsonEntity(Collection<Metric> metrics, ObjectWriter metricWriter, boolean gzip) {
+        this.metrics = metrics;
+        this.metricWriter = metricWriter;
+        this.gzip = gzip;
+        setContentType("application/json");
+        if (gzip) {
+            setContentEncoding("gzip");
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final GZIPOutputStream compressed = gzip ? new GZIPOutputStream(out, GZIP_BUFFER_SIZE) : null;
+        try (JsonGenerator gen = metricWriter.getFactory().createGenerator(compressed != null ? compressed : out)) {
+            gen.writeStartObject();
+            gen.writeArrayFieldStart("metrics");
+            for (Metric metric : metrics) {
+                metricWriter.writeValue(gen, metric);
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+        if (compressed != null) {
+            // Ends the gzip stream without closing the connection
+            compressed.finish();
+        }
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    private final Collection<Metric> metrics;
+    private final ObjectWriter metricWriter;
+    private final boolean gzip;
+}
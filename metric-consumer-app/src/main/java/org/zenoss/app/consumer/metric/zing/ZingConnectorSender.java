@@ -10,13 +10,16 @@
  */
 package org.zenoss.app.consumer.metric.zing;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Timer;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
@@ -30,14 +33,13 @@ import org.springframework.stereotype.Component;
 import org.zenoss.app.consumer.metric.ZingConfiguration;
 import org.zenoss.app.consumer.metric.ZingSender;
 import org.zenoss.app.consumer.metric.data.Metric;
-import org.zenoss.app.consumer.metric.data.MetricCollection;
 
 import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -47,17 +49,23 @@ import java.util.Collection;
 public class ZingConnectorSender implements ZingSender {
     private static final Logger log = LoggerFactory.getLogger(ZingConnectorSender.class);
 
-    private static final CloseableHttpClient newHttpClient(int maxThreads) {
+    /**
+     * Round trip time of every request to Zing, whether it succeeded or not
+     */
+    static final Timer REQUEST_TIMES = Metrics.newTimer(ZingConnectorSender.class, "requestTimes",
+            TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+
+    private static final CloseableHttpClient newHttpClient(int maxConnections) {
         // TODO: make retry count configurable
         // TODO: make http connect timeout configurable
 
         // We only have 1 route to zing and 1 blocking call per thread,
         //      so set the max connections per route and total connections
-        //      to match the number of worker threads
+        //      to match the number of threads making requests
         return HttpClientBuilder
                 .create()
-                .setMaxConnPerRoute(maxThreads)
-                .setMaxConnTotal(maxThreads)
+                .setMaxConnPerRoute(maxConnections)
+                .setMaxConnTotal(maxConnections)
                 .build();
     }
 
@@ -65,17 +73,25 @@ public class ZingConnectorSender implements ZingSender {
 
     private final ZingConfiguration configuration;
 
-    private final ObjectMapper mapper;
+    /**
+     * Writes one metric at a time into a request, reused for every request
+     */
+    private final ObjectWriter metricWriter;
 
     @Autowired
     public ZingConnectorSender(ZingConfiguration configuration) {
-        this(configuration, newHttpClient(configuration.getWriterThreads()));
+        this(configuration, newHttpClient(
+                Math.max(configuration.getWriterThreads(), configuration.getMaxInFlightRequests())));
     }
 
     ZingConnectorSender(ZingConfiguration configuration, CloseableHttpClient httpClient) {
         this.configuration = configuration;
         this.httpClient = httpClient;
-        this.mapper = new ObjectMapper();
+        // The entity owns the stream, and flushing after every metric would send tiny chunks
+        this.metricWriter = new ObjectMapper()
+                .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false)
+                .writerFor(Metric.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
     }
 
     @Override
@@ -106,14 +122,13 @@ public class ZingConnectorSender implements ZingSender {
         request.addHeader("Accept-Language", "en-US,en;q=0.8");
     }
 
-    private void setPayload(HttpPut request, Collection<Metric> metrics) throws Exception {
-        StringEntity payload = new StringEntity(toJson(metrics),"UTF-8");
-        payload.setContentType("application/json");
-        request.setEntity(payload);
+    private void setPayload(HttpPut request, Collection<Metric> metrics) {
+        request.setEntity(new MetricsJsonEntity(metrics, metricWriter, configuration.isCompress()));
     }
 
     private void sendRequest(HttpPut request) throws IOException {
         CloseableHttpResponse response = null;
+        final long started = System.nanoTime();
         try {
             response = httpClient.execute(request);
             StatusLine statusLine = response.getStatusLine();
@@ -140,16 +155,11 @@ public class ZingConnectorSender implements ZingSender {
             } catch( NullPointerException | IOException ex) {
                 log.warn( "Failed to close request: {}", ex);
             } finally {
+                REQUEST_TIMES.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
                 if (response != null) {
                     response.close();
                 }
             }
         }
     }
-
-    private String toJson(Collection<Metric> metrics) throws JsonProcessingException {
-        MetricCollection mc = new MetricCollection();
-        mc.setMetrics(new ArrayList<Metric>(metrics));
-        return mapper.writeValueAsString(mc);
-    }
 }
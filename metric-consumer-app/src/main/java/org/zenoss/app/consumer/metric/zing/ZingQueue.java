@@ -21,11 +21,18 @@ import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
 import org.zenoss.app.consumer.metric.TsdbMetricsQueue;
 import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
+import org.zenoss.app.consumer.metric.data.MetricDictionary;
+import org.zenoss.app.consumer.metric.data.TagSet;
+import org.zenoss.app.consumer.metric.impl.IngestLog;
 import org.zenoss.app.consumer.metric.remote.Utils;
 
+import javax.annotation.PreDestroy;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -36,19 +43,56 @@ import java.util.concurrent.TimeUnit;
 /**
  * A threadsafe queue to distribute metrics bound for Zing across multiple sender threads.
  *
+ * The queue is Zing's cursor on the {@link IngestLog}, so it doesn't store
+ * metrics itself, apart from ones put back with {@link #reAddAll(Collection)}.
+ * The cursor is only opened while Zing is enabled.
+ *
  * TODO - add yammer Metrics to monitor the state of the queue
  */
 @Component
 public class ZingQueue implements TsdbMetricsQueue {
     private static final Logger logger = LoggerFactory.getLogger(ZingQueue.class);
-    private BlockingQueue<Metric> queue = null;
+    private final IngestLog ingestLog;
+
+    /**
+     * Where Zing is in the ingest log, or null if Zing is disabled
+     */
+    private final IngestLog.Cursor cursor;
+
+    /**
+     * Metrics put back, which are read before the log
+     */
+    private final BlockingQueue<Metric> requeued = new LinkedBlockingQueue<Metric>();
+
+    /**
+     * Held by pollers while they take more than the first element, so that pollers see
+     * contiguous runs of metrics.
+     */
+    private final Object batchLock = new Object();
+
+    /**
+     * Backs the batches polled; metrics are queued as objects.
+     */
+    private final MetricDictionary dictionary = new MetricDictionary();
 
     private final static Supplier<Boolean> YEPYEP = new Supplier<Boolean>() {
         @Override public Boolean get() {return true;}
     };
 
+    /**
+     * A queue on a log of its own, for tests.
+     */
     public ZingQueue() {
-        this.queue = new LinkedBlockingQueue<Metric>();
+        this(new IngestLog(), true);
+    }
+
+    @Autowired
+    public ZingQueue(IngestLog ingestLog, MetricServiceConfiguration config) {
+        this(ingestLog, config.getZingConfiguration().isEnabled());
+    }
+
+    private ZingQueue(IngestLog ingestLog, boolean enabled) {
+        this.ingestLog = ingestLog;
         this.perClientBacklog = AtomicLongMap.create();
         this.totalErrorsMetric = Metrics.newCounter(errorsMetricName());
         this.totalInFlightMetric = Metrics.newCounter(inFlightMetricName());
@@ -70,6 +114,21 @@ public class ZingQueue implements TsdbMetricsQueue {
         this.totalBroadcastLowCollisionMetric = registerBroadcastLowCollision();
         this.totalSentClientCollisionMetric = registerSentClientCollision();
         this.recentClientIds = CacheBuilder.newBuilder().expireAfterAccess(60, TimeUnit.SECONDS).build(CacheLoader.from(YEPYEP));
+        this.cursor = enabled ? ingestLog.open(new IngestLog.Listener() {
+            @Override
+            public void appended(int count, String clientId) {
+                perClientBacklog.addAndGet(clientId, count);
+                recentClientIds.getUnchecked(clientId);
+                incrementIncoming(count);
+            }
+        }) : null;
+    }
+
+    @PreDestroy
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+        }
     }
 
 
@@ -84,29 +143,115 @@ public class ZingQueue implements TsdbMetricsQueue {
      */
     @Override
     public Collection<Metric> poll(int size, long maxWaitMillis) throws InterruptedException {
-        logger.debug("Polling. size = {}, queue size = {}", size, queue.size());
-        final Metric first = queue.poll(maxWaitMillis, TimeUnit.MILLISECONDS);
+        return poll(size, Long.MAX_VALUE, 0, maxWaitMillis);
+    }
+
+    /**
+     * Like {@link #poll(int, long)}, but once there is a first element, waits up to lingerMillis
+     * for more until there are size elements or about maxBytes of JSON, whichever comes first.
+     *
+     * @param size          most elements to retrieve
+     * @param maxBytes      stop once the elements retrieved take about this many bytes as JSON
+     * @param lingerMillis  max time to wait for more elements after the first
+     * @param maxWaitMillis max time to wait if the queue is initially empty
+     * @return removed elements
+     */
+    public Collection<Metric> poll(int size, long maxBytes, long lingerMillis, long maxWaitMillis) throws InterruptedException {
+        logger.debug("Polling. size = {}, queue size = {}", size, size());
+        final Metric first = take(TimeUnit.MILLISECONDS.toNanos(maxWaitMillis));
         if (first == null) {
             logger.debug("Unable to retrieve a single element after max wait");
             return Collections.emptyList();
         }
+        final long lingerUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
 
         final Collection<Metric> metrics = new ArrayList<Metric>(size);
         metrics.add(first);
-
-        while (metrics.size() < size) {
-            final Metric m = queue.poll();
+        long bytes = estimatedSize(first);
+
+        while (metrics.size() < size && bytes < maxBytes) {
+            // Take what there is in one go rather than interleaving with other pollers
+            synchronized (batchLock) {
+                while (metrics.size() < size && bytes < maxBytes) {
+                    final Metric m = next();
+                    if (m == null) {
+                        break;
+                    }
+                    metrics.add(m);
+                    bytes += estimatedSize(m);
+                }
+            }
+            if (metrics.size() >= size || bytes >= maxBytes) {
+                break;
+            }
+            final long linger = lingerUntil - System.nanoTime();
+            final Metric m = linger > 0 ? take(linger) : null;
             if (m == null) {
                 logger.debug("No more metrics in queue, retrieved {} metrics", metrics.size());
                 break;
             }
             metrics.add(m);
+            bytes += estimatedSize(m);
         }
 
-
         return metrics;
     }
 
+    /**
+     * @return the next metric, put back ones first, or null if there are none
+     */
+    private Metric next() {
+        final Metric m = requeued.poll();
+        if (m != null || cursor == null) {
+            return m;
+        }
+        return cursor.next();
+    }
+
+    /**
+     * @return the next metric, waiting up to nanos for one, or null if none came
+     */
+    private Metric take(long nanos) throws InterruptedException {
+        final long deadline = System.nanoTime() + nanos;
+        while (true) {
+            final Metric m = next();
+            if (m != null) {
+                return m;
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            if (cursor == null) {
+                return requeued.poll(remaining, TimeUnit.NANOSECONDS);
+            }
+            // Another poller may beat us to what arrives, so go round again
+            cursor.await(remaining);
+        }
+    }
+
+    /**
+     * @return about the number of bytes a metric takes in the JSON sent to Zing
+     */
+    static int estimatedSize(Metric metric) {
+        // Field names, punctuation, timestamp and value
+        int size = 64;
+        final String name = metric.getMetric();
+        size += name == null ? 4 : name.length();
+        final TagSet tags = metric.getTags();
+        for (int i = 0; i < tags.size(); i++) {
+            final String key = tags.keyAt(i);
+            final String value = tags.valueAt(i);
+            size += 6 + (key == null ? 4 : key.length()) + (value == null ? 4 : value.length());
+        }
+        return size;
+    }
+
+    @Override
+    public MetricBatch pollBatch(int size, long maxWaitMillis) throws InterruptedException {
+        return MetricBatch.copyOf(poll(size, maxWaitMillis), dictionary);
+    }
+
     @Override
     public long clientCount() {
         perClientBacklog.removeAllZeros();
@@ -128,28 +273,49 @@ public class ZingQueue implements TsdbMetricsQueue {
         return counts;
     }
 
+    /**
+     * Append metrics to the ingest log, so every sink reads them, not just Zing.
+     */
     @Override
     public void addAll(Collection<Metric> metrics, String clientId) {
-        if (null == queue) {
-            log.warn("queue is null. Nothing will be added.");
-            return;
-        }
-        log.debug("AddAll entry. clientId = {}, queue.size() = {}", clientId, queue.size());
+        log.debug("AddAll entry. clientId = {}, queue.size() = {}", clientId, size());
         Utils.injectTag(TsdbMetricsQueue.CLIENT_TAG, clientId, metrics);
-        queue.addAll(metrics);
-        perClientBacklog.addAndGet(clientId, metrics.size());
-        recentClientIds.getUnchecked(clientId);
-        incrementIncoming(metrics.size());
-        log.debug("AddAll exit. clientId = {}, queue.size() = {}", clientId, queue.size());
+        ingestLog.append(metrics, clientId);
+        log.debug("AddAll exit. clientId = {}, queue.size() = {}", clientId, size());
     }
 
     @Override
     public void reAddAll(Collection<Metric> metrics) {
         Multiset<String> counts = clientCounts(metrics);
-        queue.addAll(metrics);
+        requeued.addAll(metrics);
         for (Multiset.Entry<String> e : counts.entrySet()) {
             perClientBacklog.addAndGet(e.getElement(), e.getCount());
         }
+        if (cursor != null) {
+            cursor.wakeUp();
+        }
+    }
+
+    @Override
+    public void reAddAll(MetricBatch batch) {
+        try {
+            reAddAll(batch.toMetrics());
+        } finally {
+            batch.release();
+        }
+    }
+
+    @Override
+    public void restoreAll(Collection<Metric> metrics) {
+        reAddAll(metrics);
+        totalInFlightMetric.inc(metrics.size());
+    }
+
+    /**
+     * Count metrics left over from a previous run as in flight.
+     */
+    public void incrementRecovered(long recovered) {
+        totalInFlightMetric.inc(recovered);
     }
 
     @Override
@@ -215,7 +381,8 @@ public class ZingQueue implements TsdbMetricsQueue {
     }
 
     public int size() {
-        return this.queue.size();
+        final long backlog = cursor == null ? 0 : cursor.backlog();
+        return (int) Math.min(Integer.MAX_VALUE, backlog + requeued.size());
     }
 
     private Meter registerIncoming() {
@@ -15,15 +15,48 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.zenoss.app.consumer.metric.ZingConfiguration;
+import org.zenoss.app.consumer.metric.SpillConfiguration;
 import org.zenoss.app.consumer.metric.ZingSender;
 import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.TagSet;
+import org.zenoss.app.consumer.metric.impl.SpillLog;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * Pulls from a queue of metrics and sends batches of them to Zing.
+ *
+ * A batch that fails is retried a few times after an exponential back-off.
+ * Failures from every writer thread feed one circuit breaker, so while Zing
+ * is down nothing is sent until it is tried again, and writers stop polling
+ * so that metrics back up in the queue instead of being given up. Batches
+ * that can't be sent go to a spill on disk if there is one, and are sent
+ * again once the circuit closes; without a spill they are lost.
+ *
+ * Batches are batchSize metrics, or more when the queue backs up: each
+ * writer takes its share of the queue, up to maxBatchSize. A batch is sent
+ * once it is full, reaches maxBatchBytes, or has waited lingerTime for
+ * more metrics, so under light load metrics aren't held for long and under
+ * heavy load requests carry as much as they can.
+ *
+ * With maxInFlightRequests set, writer threads don't send batches themselves
+ * but hand them to that many request threads, so a writer thread can keep
+ * polling while earlier batches are on their way and a couple of writers
+ * are enough to keep many requests going.
  */
 @Component
 public class ZingWriter implements Runnable {
@@ -51,6 +84,21 @@ public class ZingWriter implements Runnable {
      */
     private final int batchSize;
 
+    /**
+     * Most metrics in a batch, however far behind the queue is
+     */
+    private final int maxBatchSize;
+
+    /**
+     * Send a batch once its metrics take about this many bytes as JSON
+     */
+    private final long maxBatchBytes;
+
+    /**
+     * Max time to wait for a batch to fill once it has a metric
+     */
+    private final int lingerTime;
+
     /**
      * Max idle time before suicide
      */
@@ -66,6 +114,38 @@ public class ZingWriter implements Runnable {
      */
     private final ArrayList<String> cleanupTags;
 
+    /**
+     * Retries of a failed batch before giving up on it
+     */
+    private final int maxRetries;
+
+    /**
+     * Wait before the first retry, doubled for each further one up to maxRetryInterval
+     */
+    private final int initialRetryInterval;
+
+    private final int maxRetryInterval;
+
+    /**
+     * Shared by all writer threads, which all run this instance
+     */
+    private final CircuitBreaker breaker;
+
+    /**
+     * Batches that couldn't be sent, or null to count them as lost
+     */
+    private final SpillLog spill;
+
+    /**
+     * Threads sending batches for the writer threads, or null if writer threads send their own
+     */
+    private final ExecutorService requests;
+
+    /**
+     * A permit per request thread, taken by a writer thread before handing it a batch
+     */
+    private final Semaphore requestPermits;
+
     /**
      * Is this instance currently running?
      */
@@ -81,6 +161,11 @@ public class ZingWriter implements Runnable {
      */
     protected transient long lastWorkTime;
 
+    /**
+     * Spill reads that failed in a row, to back off from a spill that can't be read
+     */
+    private final AtomicInteger spillReadFailures = new AtomicInteger();
+
     @Autowired
     ZingWriter(ZingConfiguration config,
                ZingWriterRegistry registry,
@@ -92,14 +177,70 @@ public class ZingWriter implements Runnable {
         this.sender= sender;
 
         this.batchSize = zingConfiguration.getBatchSize();
+        this.maxBatchSize = Math.max(batchSize, zingConfiguration.getMaxBatchSize());
+        this.maxBatchBytes = zingConfiguration.getMaxBatchBytes();
+        this.lingerTime = zingConfiguration.getLingerTime();
         this.maxIdleTime = zingConfiguration.getMaxIdleTime();
         this.noForwardTags = zingConfiguration.getNoForwardTags();
         this.cleanupTags = zingConfiguration.getCleanupTags();
+        this.maxRetries = zingConfiguration.getMaxRetries();
+        this.initialRetryInterval = zingConfiguration.getInitialRetryInterval();
+        this.maxRetryInterval = zingConfiguration.getMaxRetryInterval();
+        this.breaker = new CircuitBreaker(zingConfiguration.getCircuitFailureThreshold(), zingConfiguration.getCircuitOpenTime());
+        this.spill = zingConfiguration.isEnabled() ? newSpill(zingConfiguration.getSpillConfiguration()) : null;
+        if (spill != null && spill.size() > 0) {
+            // Left over from the last run, and in flight until sent
+            zingQueue.incrementRecovered(spill.size());
+        }
+        final int maxInFlightRequests = zingConfiguration.getMaxInFlightRequests();
+        this.requests = maxInFlightRequests > 0 ? Executors.newFixedThreadPool(maxInFlightRequests, REQUEST_THREADS) : null;
+        this.requestPermits = new Semaphore(maxInFlightRequests);
         this.running = false;
         this.canceled = false;
         this.lastWorkTime = 0;
     }
 
+    private static final ThreadFactory REQUEST_THREADS = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "zing-request-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private static SpillLog newSpill(SpillConfiguration config) {
+        if (config == null || !config.isEnabled()) {
+            return null;
+        }
+        try {
+            log.info("Spilling undeliverable Zing batches to {}, up to {} bytes", config.getDirectory(), config.getMaxBytes());
+            return new SpillLog(Paths.get(config.getDirectory()), config.getMaxBytes(), config.getSegmentBytes(), config.getFsync());
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open spill directory " + config.getDirectory(), e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (requests != null) {
+            // Let requests on their way finish, so they can still spill if they fail
+            requests.shutdown();
+            try {
+                if (!requests.awaitTermination(maxRetryInterval * 2L, TimeUnit.MILLISECONDS)) {
+                    log.warn("Gave up waiting for requests to Zing to finish");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
     @Override
     public void run() {
         log.info("Starting writer");
@@ -125,7 +266,18 @@ public class ZingWriter implements Runnable {
             if (Thread.interrupted()) {
                 throw new InterruptedException();
             }
-            Collection<Metric> metrics = zingQueue.poll(batchSize, maxIdleTime);
+            // Leave metrics in the queue while Zing is refusing them, so they back up into the
+            // ingest log and hold up pushes rather than being given up batch after batch
+            if (breaker.isOpen()) {
+                Thread.sleep(Math.max(1, Math.min(maxRetryInterval, breaker.millisUntilTrial())));
+                continue;
+            }
+            // Catch up on spilled batches first
+            if (spill != null && spill.size() > 0) {
+                sendSpilled();
+                continue;
+            }
+            Collection<Metric> metrics = zingQueue.poll(targetBatchSize(), maxBatchBytes, lingerTime, maxIdleTime);
             log.debug("Back from polling zingQueue. metrics.size = {}",
                     null == metrics ? "null" : metrics.size());
             // Check to see if we should down this writer entirely.
@@ -159,6 +311,14 @@ public class ZingWriter implements Runnable {
         log.debug("work canceled.");
     }
 
+    /**
+     * @return batchSize, or this writer's share of the queue if that's more, up to maxBatchSize
+     */
+    int targetBatchSize() {
+        final long share = zingQueue.size() / Math.max(1, writerRegistry.size());
+        return (int) Math.max(batchSize, Math.min(maxBatchSize, share));
+    }
+
     private boolean isNullOrEmpty(Collection<Metric> metrics) {
         return null == metrics || metrics.isEmpty();
     }
@@ -166,26 +326,144 @@ public class ZingWriter implements Runnable {
     void processBatch(Collection<Metric> metrics) {
         try {
             log.trace("processBatch, size={}, batch={}", metrics.size(), metrics);
-            sender.send(this.getForwardMetrics(metrics));
-            zingQueue.incrementProcessed(metrics.size());
-        } catch (Exception e) {
-            zingQueue.incrementError(metrics.size());
-            zingQueue.incrementLostMetrics(metrics.size());
-            // TODO: Should we requeue the batch of metrics at this point?
-            //       Otherwise, the batch is lost
-            log.warn("Caught exception while processing metrics: {}", e.getMessage());
+            Collection<Metric> forwardMetrics = this.getForwardMetrics(metrics);
+            // The others are done with
+            zingQueue.incrementProcessed(metrics.size() - forwardMetrics.size());
+            dispatch(forwardMetrics);
+        } finally {
+            lastWorkTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Send metrics from this thread, or hand them to a request thread once one is free.
+     */
+    void dispatch(final Collection<Metric> metrics) {
+        if (requests == null || metrics.isEmpty()) {
+            send(metrics);
+            return;
+        }
+        try {
+            requestPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            giveUp(metrics);
+            return;
+        }
+        try {
+            requests.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        send(metrics);
+                    } finally {
+                        requestPermits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            requestPermits.release();
+            send(metrics);
+        }
+    }
+
+    /**
+     * Send metrics, retrying up to maxRetries times. A retry the circuit refuses still
+     * counts, so this waits out an open circuit for as long as the retries last.
+     * If they still can't be sent they are spilled, or lost without a spill.
+     */
+    void send(Collection<Metric> metrics) {
+        if (metrics.isEmpty()) {
+            return;
+        }
+        int retries = 0;
+        while (true) {
+            if (breaker.allowRequest()) {
+                try {
+                    sender.send(metrics);
+                    breaker.onSuccess();
+                    zingQueue.incrementProcessed(metrics.size());
+                    return;
+                } catch (Exception e) {
+                    breaker.onFailure();
+                    zingQueue.incrementError(metrics.size());
+                    log.warn("Caught exception while processing metrics: {}", e.getMessage());
+                }
+            }
+            if (retries == maxRetries) {
+                break;
+            }
+            try {
+                Thread.sleep(retryInterval(retries++));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        giveUp(metrics);
+    }
+
+    /**
+     * @return a random wait between half and all of the back-off for a retry, so writers
+     * that failed together don't retry together
+     */
+    long retryInterval(int retry) {
+        long backOff = Math.min(maxRetryInterval, (long) initialRetryInterval << Math.min(retry, 30));
+        return backOff / 2 + ThreadLocalRandom.current().nextLong(backOff / 2 + 1);
+    }
+
+    private void giveUp(Collection<Metric> metrics) {
+        if (spill != null) {
+            try {
+                if (spill.append(metrics)) {
+                    log.debug("Spilled {} metrics", metrics.size());
+                    return;
+                }
+                log.warn("Zing spill is full");
+            } catch (IOException e) {
+                log.error("Unable to spill {} metrics", metrics.size(), e);
+            }
+        }
+        zingQueue.incrementLostMetrics(metrics.size());
+    }
+
+    private void sendSpilled() throws InterruptedException {
+        final List<Metric> metrics;
+        try {
+            metrics = spill.read();
+            spillReadFailures.set(0);
+        } catch (SpillLog.CorruptRecordException e) {
+            log.error("Dropping {} spilled metrics", e.count, e);
+            zingQueue.incrementLostMetrics(e.count);
+            return;
+        } catch (IOException e) {
+            // Don't spin on a spill that can't be read; the next read may work once the disk recovers
+            log.error("Unable to read spilled metrics", e);
+            Thread.sleep(retryInterval(spillReadFailures.getAndIncrement()));
+            return;
+        }
+        try {
+            dispatch(metrics);
         } finally {
             lastWorkTime = System.currentTimeMillis();
         }
     }
 
+    CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * The metrics to forward, without their cleanup tags. The metrics given are left as they
+     * are, as other sinks read the same objects from the ingest log.
+     */
     public Collection<Metric> getForwardMetrics(Collection<Metric> metrics) {
         Collection<Metric> forwardMetrics = new ArrayList<Metric>(metrics.size());
         for (Metric m: metrics) {
             for (String t: this.noForwardTags) {
                 if (!m.hasTagKey(t)) {
-                    this.removeMetricTags(m);
-                    forwardMetrics.add(m);
+                    forwardMetrics.add(this.removeMetricTags(m));
                     break;
                 }
             }
@@ -193,10 +471,20 @@ public class ZingWriter implements Runnable {
         return forwardMetrics;
     }
 
-    public void removeMetricTags (Metric m) {
+    /**
+     * @return a copy of the metric without the cleanup tags, or the metric itself if it has none of them
+     */
+    public Metric removeMetricTags (Metric m) {
+        TagSet tags = m.getTags();
         for (String tag: this.cleanupTags) {
-            m.removeTag(tag);
+            tags = tags.without(tag);
+        }
+        if (tags == m.getTags()) {
+            return m;
         }
+        Metric cleaned = new Metric(m);
+        cleaned.setTags(tags);
+        return cleaned;
     }
 
     public boolean isRunning() {
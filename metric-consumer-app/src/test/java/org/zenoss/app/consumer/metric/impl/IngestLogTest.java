@@ -0,0 +1,130 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.zenoss.app.consumer.metric.data.Metric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class IngestLogTest {
+
+    final IngestLog log = new IngestLog();
+
+    final Metric one = new Metric("one", 1, 1);
+    final Metric two = new Metric("two", 2, 2);
+    final Metric three = new Metric("three", 3, 3);
+
+    @Test
+    public void testNothingKeptWithoutCursors() {
+        log.append(Lists.newArrayList(one, two), "test");
+        assertEquals(0, log.backlog());
+
+        IngestLog.Cursor cursor = log.open(mock(IngestLog.Listener.class));
+        assertNull(cursor.next());
+        assertEquals(0, cursor.backlog());
+    }
+
+    @Test
+    public void testCursorsReadIndependently() {
+        IngestLog.Cursor fast = log.open(mock(IngestLog.Listener.class));
+        IngestLog.Cursor slow = log.open(mock(IngestLog.Listener.class));
+        log.append(Lists.newArrayList(one, two), "test");
+        log.append(Lists.newArrayList(three), "test");
+
+        assertSame(one, fast.next());
+        assertSame(two, fast.next());
+        assertSame(three, fast.next());
+        assertNull(fast.next());
+        assertEquals(0, fast.backlog());
+
+        // The slowest cursor is the log's backlog
+        assertEquals(3, slow.backlog());
+        assertEquals(3, log.backlog());
+        assertSame(one, slow.next());
+        assertEquals(2, log.backlog());
+
+        slow.close();
+        assertEquals(0, log.backlog());
+        assertEquals(1, log.cursorCount());
+    }
+
+    @Test
+    public void testCursorStartsAtEnd() {
+        IngestLog.Cursor first = log.open(mock(IngestLog.Listener.class));
+        log.append(Lists.newArrayList(one), "test");
+        IngestLog.Cursor second = log.open(mock(IngestLog.Listener.class));
+        log.append(Lists.newArrayList(two), "test");
+
+        assertSame(one, first.next());
+        assertSame(two, first.next());
+        assertSame(two, second.next());
+        assertNull(second.next());
+    }
+
+    @Test
+    public void testListenersHearOfAppends() {
+        IngestLog.Listener listener = mock(IngestLog.Listener.class);
+        IngestLog.Cursor cursor = log.open(listener);
+        log.append(Lists.newArrayList(one, two), "a");
+        log.append(new ArrayList<Metric>(), "b");
+        verify(listener).appended(2, "a");
+        verifyNoMoreInteractions(listener);
+
+        cursor.close();
+        log.append(Lists.newArrayList(three), "c");
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void testDrainTo() {
+        IngestLog.Cursor cursor = log.open(mock(IngestLog.Listener.class));
+        log.append(Lists.newArrayList(one, two), "test");
+        log.append(Lists.newArrayList(three), "test");
+
+        List<Metric> metrics = new ArrayList<>();
+        assertEquals(2, cursor.drainTo(metrics, 2));
+        assertEquals(1, cursor.drainTo(metrics, 2));
+        assertEquals(0, cursor.drainTo(metrics, 2));
+        assertEquals(Lists.newArrayList(one, two, three), metrics);
+    }
+
+    @Test
+    public void testAwait() throws Exception {
+        final IngestLog.Cursor cursor = log.open(mock(IngestLog.Listener.class));
+        assertFalse(cursor.await(TimeUnit.MILLISECONDS.toNanos(10)));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> waited = executor.submit(() -> cursor.await(TimeUnit.SECONDS.toNanos(5)));
+            Thread.sleep(50);
+            log.append(Lists.newArrayList(one), "test");
+            assertTrue(waited.get(1, TimeUnit.SECONDS));
+            assertSame(one, cursor.next());
+
+            waited = executor.submit(() -> cursor.await(TimeUnit.SECONDS.toNanos(5)));
+            Thread.sleep(50);
+            cursor.wakeUp();
+            assertTrue(waited.get(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
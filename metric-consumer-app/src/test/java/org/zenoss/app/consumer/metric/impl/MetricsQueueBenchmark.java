@@ -0,0 +1,169 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
+import org.zenoss.app.consumer.metric.MetricServiceConfiguration.QueueType;
+import org.zenoss.app.consumer.metric.data.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link MetricsQueue} storage options under 1, 4 and 16
+ * producers, each against 4 consumers polling the way OpenTsdbWriter does.
+ * Producers respect a high collision mark like OpenTsdbMetricService, so the
+ * queue stays in its normal operating range instead of growing without bound.
+ *
+ * This is not run by the build. To run it from the top of the tree:
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -pl metric-consumer-app -am \
+ *       -Dmdep.includeScope=test -Dmdep.outputFile=/tmp/cp.txt
+ *   java -cp metric-consumer-app/target/test-classes:metric-consumer-app/target/classes:$(cat /tmp/cp.txt) \
+ *       org.openjdk.jmh.Main MetricsQueueBenchmark
+ * </pre>
+ * Scores are calls per microsecond; each add* call is a batch of
+ * {@value #BATCH_SIZE} metrics, so the add* rows are the interesting ones.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsQueueBenchmark {
+
+    static final int BATCH_SIZE = 100;
+    static final int POLL_SIZE = 1000;
+    static final int HIGH_COLLISION_MARK = 10_000;
+
+    @State(Scope.Group)
+    public static class Queue {
+
+        @Param({"LINKED", "RING_BUFFER"})
+        public QueueType queueType;
+
+        MetricsQueue queue;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            final MetricServiceConfiguration config = new MetricServiceConfiguration();
+            config.setHighCollisionMark(HIGH_COLLISION_MARK);
+            config.setQueueType(queueType);
+            queue = new MetricsQueue(config);
+            queue.resetMetrics();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+
+        final List<Metric> batch = new ArrayList<>(BATCH_SIZE);
+
+        String clientId;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            clientId = "client-" + Thread.currentThread().getId();
+            final long now = System.currentTimeMillis();
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.add(new Metric("metric" + i, now, i));
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("producers1")
+    @GroupThreads(1)
+    public int add1(Queue q, Producer p, Control control) {
+        return add(q, p, control);
+    }
+
+    @Benchmark
+    @Group("producers1")
+    @GroupThreads(4)
+    public int poll1(Queue q, Control control) throws InterruptedException {
+        return poll(q, control);
+    }
+
+    @Benchmark
+    @Group("producers4")
+    @GroupThreads(4)
+    public int add4(Queue q, Producer p, Control control) {
+        return add(q, p, control);
+    }
+
+    @Benchmark
+    @Group("producers4")
+    @GroupThreads(4)
+    public int poll4(Queue q, Control control) throws InterruptedException {
+        return poll(q, control);
+    }
+
+    @Benchmark
+    @Group("producers16")
+    @GroupThreads(16)
+    public int add16(Queue q, Producer p, Control control) {
+        return add(q, p, control);
+    }
+
+    @Benchmark
+    @Group("producers16")
+    @GroupThreads(4)
+    public int poll16(Queue q, Control control) throws InterruptedException {
+        return poll(q, control);
+    }
+
+    private static int add(Queue q, Producer p, Control control) {
+        while (q.queue.getTotalInFlight() >= HIGH_COLLISION_MARK) {
+            if (control.stopMeasurement) {
+                return 0;
+            }
+            Thread.yield();
+        }
+        q.queue.addAll(p.batch, p.clientId);
+        return p.batch.size();
+    }
+
+    private static int poll(Queue q, Control control) throws InterruptedException {
+        if (control.stopMeasurement) {
+            return 0;
+        }
+        final Collection<Metric> metrics = q.queue.poll(POLL_SIZE, 1);
+        q.queue.incrementProcessed(metrics.size());
+        return metrics.size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MetricsQueueBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -12,9 +12,17 @@ package org.zenoss.app.consumer.metric.impl;
 
 import com.google.common.collect.Lists;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
+import org.zenoss.app.consumer.metric.SpillConfiguration;
+import org.zenoss.app.consumer.metric.TsdbMetricsQueue;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -23,8 +31,12 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
 
 public class MetricsQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
     
     @Test
     public void testWaitAndNotify() throws InterruptedException, ExecutionException, TimeoutException {
@@ -48,6 +60,146 @@ public class MetricsQueueTest {
         executorService.shutdownNow();
     }
     
+    @Test
+    public void testClientBacklogAccounting() throws InterruptedException {
+        final MetricsQueue mq = new MetricsQueue();
+        mq.addAll(metrics(3), "a");
+        mq.addAll(metrics(2), "b");
+        Assert.assertEquals(3, mq.clientBacklogSize("a"));
+        Assert.assertEquals(2, mq.clientBacklogSize("b"));
+        Assert.assertEquals(0, mq.clientBacklogSize("c"));
+
+        final Collection<Metric> polled = mq.poll(4, 0);
+        Assert.assertEquals(0, mq.clientBacklogSize("a"));
+        Assert.assertEquals(1, mq.clientBacklogSize("b"));
+
+        mq.reAddAll(polled);
+        Assert.assertEquals(3, mq.clientBacklogSize("a"));
+        Assert.assertEquals(2, mq.clientBacklogSize("b"));
+
+        Assert.assertEquals(5, mq.poll(10, 0).size());
+        Assert.assertEquals(0, mq.clientBacklogSize("a"));
+        Assert.assertEquals(0, mq.clientBacklogSize("b"));
+        // Recently seen clients still count
+        Assert.assertEquals(2, mq.clientCount());
+    }
+
+    @Test
+    public void testBatchClientBacklogAccounting() throws InterruptedException {
+        final MetricsQueue mq = new MetricsQueue(new RingMetricsBuffer(16));
+        mq.addAll(metrics(3), "a");
+        mq.addAll(metrics(2), "b");
+
+        final MetricBatch polled = mq.pollBatch(4, 0);
+        Assert.assertEquals(4, polled.size());
+        Assert.assertEquals(1, mq.clientBacklogSize("b"));
+
+        mq.reAddAll(polled);
+        Assert.assertTrue(polled.isEmpty());
+        Assert.assertEquals(3, mq.clientBacklogSize("a"));
+        Assert.assertEquals(2, mq.clientBacklogSize("b"));
+        final List<Metric> all = new ArrayList<>(mq.poll(10, 0));
+        Assert.assertEquals(5, all.size());
+        Assert.assertEquals("b", all.get(0).getTags().get(TsdbMetricsQueue.CLIENT_TAG));
+        Assert.assertEquals("a", all.get(1).getTags().get(TsdbMetricsQueue.CLIENT_TAG));
+    }
+
+    @Test
+    public void testSpillsBeyondMarkAndRefillsInOrder() throws IOException, InterruptedException {
+        final SpillLog spill = new SpillLog(folder.getRoot().toPath(), 1024 * 1024, 64 * 1024,
+                SpillConfiguration.FsyncPolicy.NEVER);
+        final MetricsQueue mq = new MetricsQueue(new LinkedMetricsBuffer(), spill, 10);
+        mq.resetMetrics();
+        final List<Metric> added = new ArrayList<>();
+        for (int count : new int[] {5, 10, 1}) {
+            final Collection<Metric> batch = metrics(count);
+            added.addAll(batch);
+            mq.addAll(batch, "a");
+        }
+        Assert.assertEquals(16, mq.getTotalInFlight());
+        Assert.assertEquals(11, mq.getTotalSpilled());
+        Assert.assertEquals(5, mq.clientBacklogSize("a"));
+
+        final List<Metric> polled = new ArrayList<>(mq.poll(100, 0));
+        Assert.assertEquals(5, polled.size());
+        polled.addAll(mq.poll(100, 0));
+        Assert.assertEquals(added, polled);
+        Assert.assertEquals(0, mq.getTotalSpilled());
+        Assert.assertEquals(0, mq.clientBacklogSize("a"));
+    }
+
+    @Test
+    public void testReAddToFullRingDropsWithoutWaiting() throws InterruptedException {
+        final MetricsQueue mq = new MetricsQueue(new RingMetricsBuffer(4));
+        mq.resetMetrics();
+        mq.addAll(metrics(4), "a");
+        final Collection<Metric> polled = mq.poll(2, 0);
+        mq.addAll(metrics(2), "a");
+
+        mq.reAddAll(polled);
+        Assert.assertEquals(4, mq.getTotalInFlight());
+        Assert.assertEquals(4, mq.clientBacklogSize("a"));
+    }
+
+    @Test
+    public void testReAddToFullRingSpills() throws IOException, InterruptedException {
+        final SpillLog spill = new SpillLog(folder.getRoot().toPath(), 1024 * 1024, 64 * 1024,
+                SpillConfiguration.FsyncPolicy.NEVER);
+        final MetricsQueue mq = new MetricsQueue(new RingMetricsBuffer(4), spill, 10);
+        mq.resetMetrics();
+        mq.addAll(metrics(4), "a");
+        final Collection<Metric> polled = mq.poll(2, 0);
+        mq.addAll(metrics(2), "a");
+
+        mq.reAddAll(polled);
+        Assert.assertEquals(6, mq.getTotalInFlight());
+        Assert.assertEquals(2, mq.getTotalSpilled());
+        Assert.assertEquals(4, mq.clientBacklogSize("a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsRingTooSmallForWriters() {
+        final MetricServiceConfiguration config = new MetricServiceConfiguration();
+        config.setQueueType(MetricServiceConfiguration.QueueType.RING_BUFFER);
+        config.setRingBufferCapacity(config.getHighCollisionMark());
+        new MetricsQueue(config);
+    }
+
+    @Test
+    public void testOfferNeverOvertakesFullSpill() throws IOException, InterruptedException {
+        final SpillLog spill = new SpillLog(folder.getRoot().toPath(), 1024, 1024,
+                SpillConfiguration.FsyncPolicy.NEVER);
+        final MetricsQueue mq = new MetricsQueue(new LinkedMetricsBuffer(), spill, 0);
+        mq.resetMetrics();
+        int offered = 0;
+        while (mq.offerAll(metrics(5), "a")) {
+            offered += 5;
+        }
+        Assert.assertTrue(offered > 0);
+        Assert.assertTrue(mq.isSpillFull());
+        Assert.assertEquals(offered, mq.getTotalSpilled());
+        Assert.assertEquals(offered, mq.getTotalInFlight());
+        Assert.assertEquals(0, mq.clientBacklogSize("a"));
+
+        // Plain addAll keeps them in memory, ahead of the spill
+        mq.addAll(metrics(5), "a");
+        Assert.assertEquals(offered + 5, mq.getTotalInFlight());
+        Assert.assertEquals(5, mq.clientBacklogSize("a"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReAddRequiresClientTag() {
+        new MetricsQueue().reAddAll(metrics(1));
+    }
+
+    private static Collection<Metric> metrics(int count) {
+        final Collection<Metric> metrics = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            metrics.add(new Metric("fake" + i, i, i));
+        }
+        return metrics;
+    }
+
     static class Poller implements Runnable {
         
         private Collection<Metric> retrieved;
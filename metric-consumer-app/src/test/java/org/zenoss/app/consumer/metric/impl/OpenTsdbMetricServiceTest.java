@@ -12,17 +12,25 @@ package org.zenoss.app.consumer.metric.impl;
 
 import com.google.common.collect.Lists;
 import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
 import org.zenoss.app.consumer.metric.data.Control;
 import org.zenoss.app.consumer.metric.data.Metric;
-import org.zenoss.app.consumer.metric.zing.ZingQueue;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.mockito.Mockito.*;
 import static org.junit.Assert.*;
@@ -32,18 +40,29 @@ public class OpenTsdbMetricServiceTest {
     MetricServiceConfiguration config;
     EventBus eventBus;
     MetricsQueue metricsQueue;
-    ZingQueue zingQueue;
+    IngestLog ingestLog;
+    ScheduledExecutorService retryExecutor;
+    ExecutorService pushExecutor;
 
     @Before
     public void setUp() {
         eventBus = mock(EventBus.class);
         config = new MetricServiceConfiguration();
         metricsQueue = mock(MetricsQueue.class);
-        zingQueue = mock(ZingQueue.class);
+        when(metricsQueue.offerAll(anyCollectionOf(Metric.class), anyString())).thenReturn(true);
+        ingestLog = new IngestLog();
+        retryExecutor = Executors.newSingleThreadScheduledExecutor();
+        pushExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setNameFormat("push-%d").build());
+    }
+
+    @After
+    public void tearDown() {
+        retryExecutor.shutdownNow();
+        pushExecutor.shutdownNow();
     }
 
     OpenTsdbMetricService newService() {
-        return new OpenTsdbMetricService(config, eventBus, metricsQueue, zingQueue);
+        return new OpenTsdbMetricService(config, eventBus, metricsQueue, ingestLog, retryExecutor, pushExecutor);
     }
 
     @Test
@@ -60,19 +79,36 @@ public class OpenTsdbMetricServiceTest {
         List<Metric> metrics  = Collections.singletonList(metric);
         OpenTsdbMetricService service = newService();
         assertEquals(Control.ok(), service.push(metrics, "test", null));
-        verify(metricsQueue, times(1)).addAll(metrics, "test");
-        verify(zingQueue, times(0)).addAll(metrics, "test");
+        verify(metricsQueue, times(1)).offerAll(metrics, "test");
+        // No other sinks, so nothing kept
+        assertEquals(0, ingestLog.backlog());
     }
 
     @Test
-    public void testPushToZing() throws Exception {
-        config.getZingConfiguration().setEnabled(true);
+    public void testPushToOtherSinks() throws Exception {
         Metric metric = new Metric("name", 0, 0.0);
         List<Metric> metrics  = Collections.singletonList(metric);
+        IngestLog.Cursor zing = ingestLog.open(mock(IngestLog.Listener.class));
         OpenTsdbMetricService service = newService();
         assertEquals(Control.ok(), service.push(metrics, "test", null));
-        verify(metricsQueue, times(1)).addAll(metrics, "test");
-        verify(zingQueue, times(1)).addAll(metrics, "test");
+        verify(metricsQueue, times(1)).offerAll(metrics, "test");
+        assertSame(metric, zing.next());
+        assertNull(zing.next());
+    }
+
+    @Test
+    public void testSlowestSinkCollides() throws Exception {
+        Metric metric = new Metric("name", 0, 0.0);
+        config.setHighCollisionMark(3);
+        config.setLowCollisionMark(1);
+        config.setMaxClientWaitTime(1);
+        ingestLog.open(mock(IngestLog.Listener.class));
+        OpenTsdbMetricService service = newService();
+
+        // TSDB has caught up, but the other sink hasn't read anything
+        assertEquals(Control.ok(), service.push(Lists.newArrayList(metric, metric), "test", null));
+        assertEquals(Control.dropped("consumer is overwhelmed"), service.push(Lists.newArrayList(metric), "test", null));
+        verify(eventBus, atLeastOnce()).post(Control.highCollision());
     }
 
     @Test
@@ -82,7 +118,7 @@ public class OpenTsdbMetricServiceTest {
         config.setJobSize(Integer.MAX_VALUE);
         OpenTsdbMetricService service = newService();
         assertEquals(Control.ok(), service.push(metrics, "test", null));
-        verify(metricsQueue, times(1)).addAll(metrics, "test");
+        verify(metricsQueue, times(1)).offerAll(metrics, "test");
     }
 
     @Test
@@ -96,7 +132,7 @@ public class OpenTsdbMetricServiceTest {
         OpenTsdbMetricService service = newService();
         assertEquals(Control.ok(), service.push(metrics,"test", null));
 
-        verify(metricsQueue, times(1)).addAll(metrics, "test");
+        verify(metricsQueue, times(1)).offerAll(metrics, "test");
         verify(eventBus, times(1)).post(Control.lowCollision());
     }
 
@@ -112,7 +148,168 @@ public class OpenTsdbMetricServiceTest {
         OpenTsdbMetricService service = newService();
         assertEquals(Control.dropped("consumer is overwhelmed"), service.push(metricList,"test", null));
 
-        verify(metricsQueue, never()).addAll(metricList, "test");
+        verify(metricsQueue, never()).offerAll(metricList, "test");
         verify(eventBus, atLeastOnce()).post(Control.highCollision());
     }
+
+    @Test
+    public void testShardedLowCollisionAcceptsClientWithBacklog() throws Exception {
+        Metric metric = new Metric("name", 0, 0.0);
+        List<Metric> metrics = Lists.newArrayList(metric, metric);
+        config.setQueueType(MetricServiceConfiguration.QueueType.SHARDED);
+        config.setLowCollisionMark(1);
+        config.setMaxClientWaitTime(1);
+        when(metricsQueue.getTotalInFlight()).thenReturn(2L);
+        when(metricsQueue.clientBacklogSize("test")).thenReturn(5L);
+
+        OpenTsdbMetricService service = newService();
+        assertEquals(Control.ok(), service.push(metrics, "test", null));
+
+        verify(metricsQueue, times(1)).offerAll(metrics, "test");
+        verify(metricsQueue, never()).incrementClientCollision();
+    }
+
+    @Test
+    public void testShardedLowCollisionRejectsHeavyClient() throws Exception {
+        Metric metric = new Metric("name", 0, 0.0);
+        List<Metric> metrics = Lists.newArrayList(metric, metric);
+        config.setQueueType(MetricServiceConfiguration.QueueType.SHARDED);
+        config.setLowCollisionMark(1);
+        config.setMaxClientWaitTime(1);
+        when(metricsQueue.getTotalInFlight()).thenReturn(2L);
+        when(metricsQueue.clientBacklogSize("test")).thenReturn(1000L);
+
+        OpenTsdbMetricService service = newService();
+        assertEquals(Control.dropped("consumer is overwhelmed"), service.push(metrics, "test", null));
+
+        verify(metricsQueue, never()).offerAll(metrics, "test");
+    }
+
+    @Test
+    public void testSpilledMetricsDontCollide() throws Exception {
+        Metric metric = new Metric("name", 0, 0.0);
+        List<Metric> metricList = Lists.newArrayList(metric, metric);
+        config.setHighCollisionMark(3);
+        config.setLowCollisionMark(1);
+        config.setMaxClientWaitTime(1);
+        when(metricsQueue.getTotalInFlight()).thenReturn(100L);
+        when(metricsQueue.getTotalSpilled()).thenReturn(100L);
+
+        OpenTsdbMetricService service = newService();
+        assertEquals(Control.ok(), service.push(metricList, "test", null));
+
+        when(metricsQueue.isSpillFull()).thenReturn(true);
+        assertEquals(Control.dropped("consumer is overwhelmed"), service.push(metricList, "test", null));
+    }
+
+    @Test
+    public void testFullSpillRefusalCollides() throws Exception {
+        Metric metric = new Metric("name", 0, 0.0);
+        List<Metric> metrics = Collections.singletonList(metric);
+        config.setMaxClientWaitTime(60000);
+        when(metricsQueue.offerAll(metrics, "test")).thenReturn(false).thenReturn(true);
+
+        OpenTsdbMetricService service = newService();
+        assertEquals(Control.ok(), service.push(metrics, "test", null));
+
+        verify(metricsQueue, times(2)).offerAll(metrics, "test");
+        verify(metricsQueue, times(1)).incrementClientCollision();
+    }
+
+    @Test
+    public void testRetriedPushQueuesOnPushExecutor() throws Exception {
+        Metric metric = new Metric("name", 0, 0.0);
+        List<Metric> metrics = Collections.singletonList(metric);
+        config.setMaxClientWaitTime(60000);
+        AtomicReference<String> queuedOn = new AtomicReference<>();
+        when(metricsQueue.offerAll(metrics, "test")).thenAnswer(invocation -> {
+            // Refused by the spill the first time round
+            return queuedOn.getAndSet(Thread.currentThread().getName()) != null;
+        });
+
+        OpenTsdbMetricService service = newService();
+        assertEquals(Control.ok(), service.pushAsync(metrics, "test", null).get(5, TimeUnit.SECONDS));
+        assertEquals("push-0", queuedOn.get());
+    }
+
+    @Test
+    public void testPushAsyncCompletesWithoutCollision() throws Exception {
+        Metric metric = new Metric("name", 0, 0.0);
+        List<Metric> metrics = Collections.singletonList(metric);
+        OpenTsdbMetricService service = newService();
+        CompletableFuture<Control> pushed = service.pushAsync(metrics, "test", null);
+        assertTrue(pushed.isDone());
+        assertEquals(Control.ok(), pushed.get());
+        verify(metricsQueue, times(1)).offerAll(metrics, "test");
+    }
+
+    @Test
+    public void testPushAsyncWaitsForRoom() throws Exception {
+        Metric metric = new Metric("name", 0, 0.0);
+        List<Metric> metricList = Lists.newArrayList(metric, metric);
+        config.setHighCollisionMark(3);
+        config.setLowCollisionMark(1);
+        config.setMaxClientWaitTime(60000);
+        // Re-stubbing while the service polls the mock from another thread isn't safe
+        AtomicLong inFlight = new AtomicLong(3);
+        when(metricsQueue.getTotalInFlight()).thenAnswer(invocation -> inFlight.get());
+        Runnable onCollision = mock(Runnable.class);
+
+        OpenTsdbMetricService service = newService();
+        CompletableFuture<Control> pushed = service.pushAsync(metricList, "test", onCollision);
+        Thread.sleep(50);
+        assertFalse(pushed.isDone());
+        verify(metricsQueue, never()).offerAll(metricList, "test");
+        verify(onCollision, atLeastOnce()).run();
+
+        // The writers catch up
+        inFlight.set(0);
+        assertEquals(Control.ok(), pushed.get(5, TimeUnit.SECONDS));
+        verify(metricsQueue, times(1)).offerAll(metricList, "test");
+    }
+
+    @Test
+    public void testPushAsyncGivesUp() throws Exception {
+        Metric metric = new Metric("name", 0, 0.0);
+        List<Metric> metricList = Lists.newArrayList(metric, metric);
+        config.setHighCollisionMark(3);
+        config.setLowCollisionMark(1);
+        config.setMaxClientWaitTime(50);
+        when(metricsQueue.getTotalInFlight()).thenReturn(3L);
+
+        OpenTsdbMetricService service = newService();
+        CompletableFuture<Control> pushed = service.pushAsync(metricList, "test", null);
+        assertFalse(pushed.isDone());
+        assertEquals(Control.dropped("consumer is overwhelmed"), pushed.get(5, TimeUnit.SECONDS));
+        verify(metricsQueue, never()).offerAll(metricList, "test");
+        verify(metricsQueue, times(1)).incrementRejected(2);
+    }
+
+    @Test
+    public void testSuggestedBackOff() {
+        config.setMinTimeBetweenNotification(100);
+        config.setMaxClientWaitTime(10000);
+        OpenTsdbMetricService service = newService();
+        // Nothing drained yet
+        assertEquals(100, service.suggestedBackOff("test"));
+
+        when(metricsQueue.getOneMinuteOutgoing()).thenReturn(1000.0);
+        when(metricsQueue.getTotalInFlight()).thenReturn(500L);
+        assertEquals(500, service.suggestedBackOff("test"));
+        when(metricsQueue.getTotalInFlight()).thenReturn(0L);
+        assertEquals(1, service.suggestedBackOff("test"));
+        when(metricsQueue.getTotalInFlight()).thenReturn(1000000L);
+        assertEquals(10000, service.suggestedBackOff("test"));
+    }
+
+    @Test
+    public void testSuggestedBackOffFairDraining() {
+        config.setQueueType(MetricServiceConfiguration.QueueType.SHARDED);
+        OpenTsdbMetricService service = newService();
+        when(metricsQueue.getOneMinuteOutgoing()).thenReturn(1000.0);
+        when(metricsQueue.getTotalInFlight()).thenReturn(100000L);
+        when(metricsQueue.clientBacklogSize("test")).thenReturn(100L);
+        when(metricsQueue.clientCount()).thenReturn(4L);
+        assertEquals(400, service.suggestedBackOff("test"));
+    }
 }
@@ -32,6 +32,7 @@ public class OpenTsdbWriterManagerTest {
     EventBus eventBus;
     ExecutorService executorService;
     TsdbWriterRegistry registry;
+    MetricsQueue metricsQueue;
     
     @Before
     public void setUp() {
@@ -40,10 +41,11 @@ public class OpenTsdbWriterManagerTest {
         eventBus = mock(EventBus.class);
         executorService = mock(ExecutorService.class);
         registry = mock(TsdbWriterRegistry.class);
+        metricsQueue = mock(MetricsQueue.class);
     }
     
     OpenTsdbWriterManager createService() {
-        return new OpenTsdbWriterManager(context, config, eventBus, executorService, registry);
+        return new OpenTsdbWriterManager(context, config, eventBus, executorService, registry, metricsQueue);
     }
     
     void nothingHappens() {
@@ -198,4 +200,46 @@ public class OpenTsdbWriterManagerTest {
         nothingHappens();
     }
     
+    @Test
+    public void testAutoscaleStartsMinWriters() {
+        config.setTsdbWriterThreads(3);
+        config.getWriterAutoscaleConfiguration().setEnabled(true);
+        config.getWriterAutoscaleConfiguration().setMinWriters(2);
+        TsdbWriter writer = mock(TsdbWriter.class);
+        when (registry.size()).thenReturn (0);
+        when (context.getBean(TsdbWriter.class)).thenReturn (writer);
+
+        OpenTsdbWriterManager service = createService();
+        service.processControl(Control.dataReceived());
+
+        verify (executorService, times(2)).submit(writer);
+    }
+
+    @Test
+    public void testAutoscaleGrowsWithBacklog() {
+        config.getWriterAutoscaleConfiguration().setEnabled(true);
+        TsdbWriter writer = mock(TsdbWriter.class);
+        when (registry.size()).thenReturn (1);
+        when (context.getBean(TsdbWriter.class)).thenReturn (writer);
+        when (metricsQueue.getTotalInFlight()).thenReturn (1000L);
+
+        OpenTsdbWriterManager service = createService();
+        service.rescale(1000);
+        verify (executorService, never()).submit(writer);
+        service.rescale(6000);
+        verify (executorService, times(1)).submit(writer);
+    }
+
+    @Test
+    public void testAutoscaleStopsExcessWriters() {
+        config.getWriterAutoscaleConfiguration().setEnabled(true);
+        when (registry.size()).thenReturn (3);
+
+        OpenTsdbWriterManager service = createService();
+        service.rescale(1000);
+
+        verify (registry).cancel(2);
+        verify (context, never()).getBean(TsdbWriter.class);
+    }
+
 }
@@ -0,0 +1,47 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.zenoss.app.consumer.metric.TsdbWriter;
+
+import static org.mockito.Mockito.*;
+
+public class OpenTsdbWriterRegistryTest {
+
+    @Test
+    public void testCanceledWritersDontCount() {
+        final OpenTsdbWriterRegistry registry = new OpenTsdbWriterRegistry();
+        final TsdbWriter first = mock(TsdbWriter.class);
+        final TsdbWriter second = mock(TsdbWriter.class);
+        final TsdbWriter third = mock(TsdbWriter.class);
+        registry.register(first);
+        registry.register(second);
+        registry.register(third);
+
+        Assert.assertEquals(1, registry.cancel(1));
+        verify(third).cancel();
+        Assert.assertEquals(2, registry.size());
+
+        // The canceled writer is still finishing, so the next cancel skips it
+        Assert.assertEquals(1, registry.cancel(1));
+        verify(second).cancel();
+        verify(third, times(1)).cancel();
+        Assert.assertEquals(1, registry.size());
+
+        registry.unregister(third);
+        Assert.assertEquals(1, registry.size());
+        registry.unregister(second);
+        Assert.assertEquals(1, registry.size());
+        verify(first, never()).cancel();
+    }
+}
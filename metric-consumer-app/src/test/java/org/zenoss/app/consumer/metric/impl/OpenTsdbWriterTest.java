@@ -11,6 +11,7 @@
 package org.zenoss.app.consumer.metric.impl;
 
 import com.google.common.eventbus.EventBus;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.yammer.metrics.core.MetricName;
 import org.junit.After;
@@ -19,6 +20,8 @@ import org.junit.Test;
 import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
 import org.zenoss.app.consumer.metric.TsdbWriter;
 import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
+import org.zenoss.app.consumer.metric.data.MetricDictionary;
 import org.zenoss.lib.tsdb.OpenTsdbClient;
 import org.zenoss.lib.tsdb.OpenTsdbClientPool;
 
@@ -75,7 +78,8 @@ public class OpenTsdbWriterTest {
         final Metric metric = new Metric("metric", 0, 0);
         MetricsQueue mq = mock(MetricsQueue.class);
 
-        when(mq.poll(anyInt(), eq(1L))).thenReturn(Collections.singleton(metric));
+        when(mq.pollBatch(anyInt(), eq(1L))).thenAnswer(invocation ->
+                MetricBatch.copyOf(Collections.singleton(metric), new MetricDictionary()));
         when(clientPool.borrowObject()).thenReturn(client);
 
         configuration.setMaxIdleTime(0); // Never quit due to lack of work
@@ -103,7 +107,8 @@ public class OpenTsdbWriterTest {
         final Metric metric = new Metric("metric", 0, 0);
         MetricsQueue mq = mock(MetricsQueue.class);
 
-        when(mq.poll(anyInt(), eq(1L))).thenReturn(Collections.singleton(metric));
+        when(mq.pollBatch(anyInt(), eq(1L))).thenAnswer(invocation ->
+                MetricBatch.copyOf(Collections.singleton(metric), new MetricDictionary()));
         when(clientPool.borrowObject()).thenReturn(client);
 
         configuration.setMaxIdleTime(0); // Never quit due to lack of work
@@ -147,6 +152,91 @@ public class OpenTsdbWriterTest {
         assertEquals(0, metricsQueue.getTotalInFlight());
     }
 
+    @Test
+    public void testSubmitBatchInOneWrite() throws Exception {
+        final Metric good1 = new Metric("metric1", 0, 1);
+        final Metric bad = new Metric("metric2", 0, Double.NaN);
+        final Metric good2 = new Metric("metric3", 0, 3);
+        String message = OpenTsdbClient.toPutMessage("metric1", 0, 1.0, EMPTY_MAP) +
+                OpenTsdbClient.toPutMessage("metric3", 0, 3.0, EMPTY_MAP);
+
+        when(clientPool.borrowObject()).thenReturn(client);
+
+        metricsQueue.addAll(Lists.newArrayList(good1, bad, good2), "test");
+        executeWriter();
+
+        verify(client, times(1)).put(anyString());
+        verify(client, times(1)).put(message);
+        verify(clientPool, times(1)).returnObject(client);
+
+        assertEquals(1, metricsQueue.getTotalErrors());
+        assertEquals(2, metricsQueue.getTotalOutgoing());
+    }
+
+    @Test
+    public void testPipelinedBatchesCheckErrorsOnce() throws Exception {
+        configuration.setJobSize(1);
+        configuration.setTsdbPipelineDepth(3);
+        when(clientPool.borrowObject()).thenReturn(client);
+
+        metricsQueue.addAll(Lists.newArrayList(new Metric("metric1", 0, 1), new Metric("metric2", 0, 2)), "test");
+        executeWriter();
+
+        verify(clientPool, times(1)).borrowObject();
+        verify(client, times(1)).put(OpenTsdbClient.toPutMessage("metric1", 0, 1.0, EMPTY_MAP));
+        verify(client, times(1)).put(OpenTsdbClient.toPutMessage("metric2", 0, 2.0, EMPTY_MAP));
+        verify(client, times(1)).checkForErrors();
+        verify(clientPool, times(1)).returnObject(client);
+
+        assertEquals(2, metricsQueue.getTotalOutgoing());
+        assertEquals(0, metricsQueue.getTotalInFlight());
+    }
+
+    @Test
+    public void testPipelinedErrorRequeuesWindow() throws Exception {
+        configuration.setJobSize(1);
+        configuration.setTsdbPipelineDepth(2);
+        when(clientPool.borrowObject()).thenReturn(client);
+        when(client.checkForErrors()).thenReturn(Collections.singletonList("error")).thenReturn(Collections.<String>emptyList());
+
+        metricsQueue.addAll(Lists.newArrayList(new Metric("metric1", 0, 1), new Metric("metric2", 0, 2)), "test");
+        executeWriter();
+
+        // Both batches in the failed window are sent again
+        verify(client, times(2)).put(OpenTsdbClient.toPutMessage("metric1", 0, 1.0, EMPTY_MAP));
+        verify(client, times(2)).put(OpenTsdbClient.toPutMessage("metric2", 0, 2.0, EMPTY_MAP));
+        verify(client, times(2)).checkForErrors();
+        verify(clientPool, times(1)).invalidateObject(client);
+        verify(clientPool, times(1)).returnObject(client);
+
+        assertEquals(2, metricsQueue.getTotalOutgoing());
+        assertEquals(0, metricsQueue.getTotalInFlight());
+    }
+
+    @Test
+    public void testRingBufferReferencesReleased() throws Exception {
+        final MetricDictionary dictionary = new MetricDictionary();
+        metricsQueue = new WriterTestQueue(new RingMetricsBuffer(16, dictionary));
+        when(clientPool.borrowObject()).thenReturn(badClient, goodClient);
+        doThrow(new IOException()).when(badClient).put(anyString());
+        final Map<String, String> tags = new HashMap<>();
+        tags.put("device", "a b");
+
+        metricsQueue.addAll(Lists.newArrayList(new Metric("metric 1", 0, 1, tags), new Metric("metric2", 0, 2, tags)), "test");
+        assertEquals(2, dictionary.nameCount());
+        configuration.setMaxIdleTime(100);
+        executeWriter();
+
+        final String message = OpenTsdbClient.toPutMessage("metric" + OpenTsdbWriter.SPACE_REPLACEMENT + "1", 0, 1.0, ImmutableMap.of("device", "a-b")) +
+                OpenTsdbClient.toPutMessage("metric2", 0, 2.0, ImmutableMap.of("device", "a-b"));
+        verify(badClient, times(1)).put(message);
+        verify(goodClient, times(1)).put(message);
+        assertEquals(2, metricsQueue.getTotalOutgoing());
+        assertEquals(0, metricsQueue.getTotalInFlight());
+        assertEquals(0, dictionary.nameCount());
+        assertEquals(0, dictionary.tagSetCount());
+    }
+
     @Test
     public void testSubmitSuccessAfterWriteException() throws Exception {
         final Metric metric = new Metric("metric", 0, 0);
@@ -357,9 +447,12 @@ public class OpenTsdbWriterTest {
 
         Collection<Metric> batch = Lists.newArrayList(storeMetric, noStoreMetric);
         metricsQueue.addAll(batch, "test");
-        writer.getStoreMetrics(batch);
+        Collection<Metric> stored = writer.getStoreMetrics(batch);
 
-        assertNull(storeMetric.getTags().get(noForwardTagName));
+        assertEquals(1, stored.size());
+        assertNull(stored.iterator().next().getTags().get(noForwardTagName));
+        // The metrics read are left as they were
+        assertEquals("true", storeMetric.getTags().get(noForwardTagName));
         assertEquals("true", noStoreMetric.getTags().get(noForwardTagName));
     }
 
@@ -370,6 +463,13 @@ public class OpenTsdbWriterTest {
      */
     private static class WriterTestQueue extends MetricsQueue {
 
+        WriterTestQueue() {
+        }
+
+        WriterTestQueue(MetricsBuffer buffer) {
+            super(buffer);
+        }
+
         @Override
         MetricName incomingMetricName() {
             return new MetricName(MetricsQueue.class, "totalIncomingTsdbWriter");
@@ -0,0 +1,98 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.collect.ImmutableList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zenoss.app.consumer.metric.TsdbMetricsQueue;
+import org.zenoss.app.consumer.metric.data.Metric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building the put lines for a batch of {@value #BATCH_SIZE}
+ * metrics the way OpenTsdbWriter used to (copy each metric, strip its client
+ * tag, {@link OpenTsdbWriter#convert(Metric)} it and concatenate) with
+ * {@link PutLineEncoder} writing into a reused buffer. Metrics carry the
+ * usual device/key/tenant tags plus the client tag.
+ *
+ * This is not run by the build. To run it from the top of the tree:
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -pl metric-consumer-app -am \
+ *       -Dmdep.includeScope=test -Dmdep.outputFile=/tmp/cp.txt
+ *   java -cp metric-consumer-app/target/test-classes:metric-consumer-app/target/classes:$(cat /tmp/cp.txt) \
+ *       org.openjdk.jmh.Main PutLineEncoderBenchmark -prof gc
+ * </pre>
+ * Scores are microseconds per batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PutLineEncoderBenchmark {
+
+    static final int BATCH_SIZE = 1000;
+
+    List<Metric> batch;
+    PutLineEncoder encoder;
+    StringBuilder buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(0);
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            final Metric m = new Metric("Device/ifInOctets_ifInOctets", 1400000000L + i, random.nextInt(1_000_000) / 100.0);
+            m.addTag("device", "10.171.100." + (i % 50));
+            m.addTag("key", "Devices/10.171.100." + (i % 50) + "/os/interfaces/eth" + (i % 4));
+            m.addTag("zenoss_tenant_id", "3bba2c16-1c7f-11e6-a0c3-0242ac110002");
+            m.addTag(TsdbMetricsQueue.CLIENT_TAG, "client-" + (i % 8));
+            batch.add(m);
+        }
+        encoder = new PutLineEncoder(ImmutableList.of(TsdbMetricsQueue.CLIENT_TAG, "no-forward"));
+        buffer = new StringBuilder(64 * 1024);
+    }
+
+    @Benchmark
+    public String convert() {
+        final StringBuilder out = new StringBuilder();
+        for (Metric m : batch) {
+            final Metric workingCopy = new Metric(m);
+            workingCopy.removeTag(TsdbMetricsQueue.CLIENT_TAG);
+            out.append(OpenTsdbWriter.convert(workingCopy));
+        }
+        return out.toString();
+    }
+
+    @Benchmark
+    public String encoder() {
+        buffer.setLength(0);
+        for (Metric m : batch) {
+            encoder.encode(m, buffer);
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zenoss.app.consumer.metric.TsdbMetricsQueue;
+import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
+import org.zenoss.app.consumer.metric.data.MetricDictionary;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+public class PutLineEncoderTest {
+
+    private final PutLineEncoder encoder = new PutLineEncoder(
+            ImmutableList.of(TsdbMetricsQueue.CLIENT_TAG, "no-forward"));
+
+    @Test
+    public void testEncode() {
+        Assert.assertEquals("put testName 1000 1.2\n", encode(new Metric("testName", 1000, 1.2)));
+        Assert.assertEquals("put test" + OpenTsdbWriter.SPACE_REPLACEMENT + "Name 1000 -3.0 test-key=test-value\n",
+                encode(metric("test Name", -3, "test key", "test value")));
+    }
+
+    @Test
+    public void testMatchesConvert() {
+        final Metric m = metric("name [x]", 12.5,
+                "device", "dev 1", "component", "eth0", Metric.TRACER_KEY, "1400000000",
+                TsdbMetricsQueue.CLIENT_TAG, "client", "no-forward", "true");
+        final Metric expected = new Metric(m);
+        expected.removeTag(TsdbMetricsQueue.CLIENT_TAG);
+        expected.removeTag("no-forward");
+        expected.addTag(Metric.TRACER_KEY, "1");
+
+        assertSameLine(OpenTsdbWriter.convert(expected), encode(m));
+    }
+
+    @Test
+    public void testDoesNotModifyMetric() {
+        final Metric m = metric("name", 1, TsdbMetricsQueue.CLIENT_TAG, "client", "no-forward", "true");
+        final Metric copy = new Metric(m);
+        encode(m);
+        Assert.assertEquals(copy, m);
+    }
+
+    @Test
+    public void testSkipsNullTags() {
+        final Metric m = new Metric("name", 1, 2);
+        m.addTag(null, "value");
+        m.addTag("key", null);
+        Assert.assertEquals("put name 1 2.0\n", encode(m));
+    }
+
+    @Test
+    public void testKeysSanitizedToSameKey() {
+        final Metric m = metric("name", 1, "a b", "1", "a-b", "2");
+        assertSameLine(OpenTsdbWriter.convert(new Metric(m)), encode(m));
+    }
+
+    @Test
+    public void testBatchMatchesMetric() {
+        final MetricDictionary dictionary = new MetricDictionary();
+        final MetricBatch batch = MetricBatch.copyOf(Arrays.asList(
+                metric("test Name", 1, "device", "dev 1", TsdbMetricsQueue.CLIENT_TAG, "client"),
+                metric("test Name", 2, "device", "dev 1", TsdbMetricsQueue.CLIENT_TAG, "client"),
+                metric("other", 3, "device", "dev 2", Metric.TRACER_KEY, "1400000000"),
+                metric("name", 4, "a b", "1", "a-b", "2"),
+                new Metric("bare", 5, 6)), dictionary);
+        for (int i = 0; i < batch.size(); i++) {
+            // Twice, the second time from what was kept for the ids
+            Assert.assertEquals(encode(batch.metric(i)), encode(batch, i));
+            Assert.assertEquals(encode(batch.metric(i)), encode(batch, i));
+        }
+    }
+
+    @Test
+    public void testBatchIdsReused() {
+        final MetricDictionary dictionary = new MetricDictionary();
+        MetricBatch batch = MetricBatch.copyOf(Arrays.asList(metric("first", 1, "device", "a")), dictionary);
+        Assert.assertEquals("put first 1000 1.0 device=a\n", encode(batch, 0));
+        batch.release();
+        batch = MetricBatch.copyOf(Arrays.asList(metric("second", 1, "device", "b")), dictionary);
+        Assert.assertEquals("put second 1000 1.0 device=b\n", encode(batch, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchRejectsNaN() {
+        encode(MetricBatch.copyOf(Arrays.asList(new Metric("name", 1, Double.NaN)), new MetricDictionary()), 0);
+    }
+
+    @Test
+    public void testSanitize() {
+        final String input = "hello_ [{]]THERE-=)(*&^%$#@!.\uD83D\uDE00\u00e9";
+        final StringBuilder out = new StringBuilder();
+        Assert.assertTrue(PutLineEncoder.appendSanitized(out, input, false));
+        Assert.assertEquals(OpenTsdbWriter.sanitize(input), out.toString());
+        Assert.assertFalse(PutLineEncoder.appendSanitized(new StringBuilder(), "a.b/c_d-e", false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNaN() {
+        encode(new Metric("name", 1, Double.NaN));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMissingName() {
+        encode(new Metric("", 1, 1));
+    }
+
+    @Test
+    public void testAppendDouble() {
+        for (double d : new double[]{0, 1, -1, 0.1, 0.001, 1.2, 123.456, 9999999.5, 1e7, 1e-4, 1e300, 5e-324,
+                Double.MAX_VALUE, Double.POSITIVE_INFINITY, 1.0 / 3, 0.1 + 0.2, 42.000001}) {
+            assertRoundTrips(d);
+        }
+        Assert.assertEquals("0.005", appendDouble(0.005));
+        Assert.assertEquals("12.05", appendDouble(12.05));
+        Assert.assertEquals("100.0", appendDouble(100));
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            assertRoundTrips(random.nextDouble() * Math.pow(10, random.nextInt(20) - 6));
+            assertRoundTrips(random.nextInt(100_000) / 100.0);
+            assertRoundTrips(Double.longBitsToDouble(random.nextLong()));
+        }
+    }
+
+    private static void assertRoundTrips(double d) {
+        final String s = appendDouble(d);
+        if (Double.isNaN(d)) {
+            return;
+        }
+        Assert.assertEquals(s, Double.doubleToLongBits(Math.abs(d)), Double.doubleToLongBits(Math.abs(Double.parseDouble(s))));
+        if (Math.abs(d) >= 1e-3 && Math.abs(d) < 1e7) {
+            // Never longer than Double.toString
+            Assert.assertTrue(s, s.length() <= Double.toString(d).length());
+        }
+    }
+
+    private static String appendDouble(double d) {
+        final StringBuilder out = new StringBuilder();
+        PutLineEncoder.appendDouble(out, d);
+        return out.toString();
+    }
+
+    /** Lines match apart from the order of the tags */
+    private static void assertSameLine(String expected, String actual) {
+        Assert.assertTrue(actual, actual.endsWith("\n"));
+        final String[] e = expected.trim().split(" ");
+        final String[] a = actual.trim().split(" ");
+        Assert.assertEquals(actual, Arrays.asList(e).subList(0, 4), Arrays.asList(a).subList(0, 4));
+        Assert.assertEquals(actual, new HashSet<>(Arrays.asList(e)), new HashSet<>(Arrays.asList(a)));
+        Assert.assertEquals(actual, e.length, a.length);
+    }
+
+    private String encode(Metric m) {
+        final StringBuilder out = new StringBuilder();
+        encoder.encode(m, out);
+        return out.toString();
+    }
+
+    private String encode(MetricBatch batch, int i) {
+        final StringBuilder out = new StringBuilder();
+        encoder.encode(batch, i, out);
+        return out.toString();
+    }
+
+    private static Metric metric(String name, double value, String... tags) {
+        final Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < tags.length; i += 2) {
+            map.put(tags[i], tags[i + 1]);
+        }
+        return new Metric(name, 1000, value, map);
+    }
+}
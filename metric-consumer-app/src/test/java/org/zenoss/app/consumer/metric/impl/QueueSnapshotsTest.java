@@ -0,0 +1,175 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.collect.Lists;
+import com.google.common.eventbus.EventBus;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
+import org.zenoss.app.consumer.metric.data.Control;
+import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.zing.ZingQueue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class QueueSnapshotsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MetricServiceConfiguration config;
+    private EventBus eventBus;
+    private MetricsQueue metricsQueue;
+    private ZingQueue zingQueue;
+
+    @Before
+    public void setUp() {
+        config = new MetricServiceConfiguration();
+        config.getSnapshotConfiguration().setEnabled(true);
+        config.getSnapshotConfiguration().setDirectory(new File(folder.getRoot(), "snapshot").getPath());
+        eventBus = mock(EventBus.class);
+        metricsQueue = new MetricsQueue();
+        metricsQueue.resetMetrics();
+        zingQueue = new ZingQueue();
+    }
+
+    @Test
+    public void testStopThenStartRestoresQueue() throws Exception {
+        final List<Metric> metrics = metrics(2500);
+        metricsQueue.addAll(metrics, "client1");
+
+        new QueueSnapshots(config, eventBus, metricsQueue, zingQueue).stop();
+        Assert.assertEquals(0, metricsQueue.getTotalInFlight());
+        Assert.assertEquals(0, metricsQueue.clientBacklogSize("client1"));
+        Assert.assertTrue(Files.exists(snapshot(QueueSnapshots.TSDB_FILE)));
+
+        new QueueSnapshots(config, eventBus, metricsQueue, zingQueue).start();
+        Assert.assertFalse(Files.exists(snapshot(QueueSnapshots.TSDB_FILE)));
+        Assert.assertEquals(2500, metricsQueue.getTotalInFlight());
+        Assert.assertEquals(2500, metricsQueue.clientBacklogSize("client1"));
+        Assert.assertEquals(metrics, pollAll());
+        verify(eventBus).post(Control.dataReceived());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        config.getSnapshotConfiguration().setEnabled(false);
+        metricsQueue.addAll(metrics(10), "client1");
+
+        new QueueSnapshots(config, eventBus, metricsQueue, zingQueue).stop();
+        Assert.assertEquals(10, metricsQueue.getTotalInFlight());
+        Assert.assertFalse(Files.exists(snapshot(QueueSnapshots.TSDB_FILE)));
+    }
+
+    @Test
+    public void testStartWithoutSnapshot() throws Exception {
+        new QueueSnapshots(config, eventBus, metricsQueue, zingQueue).start();
+        Assert.assertEquals(0, metricsQueue.getTotalInFlight());
+        verify(eventBus, never()).post(Control.dataReceived());
+    }
+
+    @Test
+    public void testRestoresTruncatedSnapshot() throws Exception {
+        final List<Metric> metrics = metrics(100);
+        metricsQueue.addAll(metrics, "client1");
+        new QueueSnapshots(config, eventBus, metricsQueue, zingQueue).stop();
+
+        final Path file = snapshot(QueueSnapshots.TSDB_FILE);
+        final byte[] bytes = Files.readAllBytes(file);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(Arrays.copyOf(bytes, bytes.length - 12));
+        }
+
+        new QueueSnapshots(config, eventBus, metricsQueue, zingQueue).start();
+        Assert.assertFalse(Files.exists(file));
+        Assert.assertTrue(Files.exists(snapshot(QueueSnapshots.TSDB_FILE + ".corrupt")));
+        final List<Metric> restored = pollAll();
+        Assert.assertFalse(restored.isEmpty());
+        Assert.assertEquals(metrics.subList(0, restored.size()), restored);
+    }
+
+    @Test
+    public void testSetsAsideUnreadableSnapshot() throws Exception {
+        final Path file = snapshot(QueueSnapshots.TSDB_FILE);
+        Files.createDirectories(file.getParent());
+        Files.write(file, "not gzipped".getBytes(StandardCharsets.UTF_8));
+
+        new QueueSnapshots(config, eventBus, metricsQueue, zingQueue).start();
+        Assert.assertFalse(Files.exists(file));
+        Assert.assertTrue(Files.exists(snapshot(QueueSnapshots.TSDB_FILE + ".corrupt")));
+        Assert.assertEquals(0, metricsQueue.getTotalInFlight());
+        verify(eventBus, never()).post(Control.dataReceived());
+    }
+
+    @Test
+    public void testSetsAsideWrongMagic() throws Exception {
+        final Path file = snapshot(QueueSnapshots.TSDB_FILE);
+        Files.createDirectories(file.getParent());
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(QueueSnapshots.MAGIC + 1);
+            out.writeByte(0);
+        }
+
+        new QueueSnapshots(config, eventBus, metricsQueue, zingQueue).start();
+        Assert.assertFalse(Files.exists(file));
+        Assert.assertTrue(Files.exists(snapshot(QueueSnapshots.TSDB_FILE + ".corrupt")));
+        Assert.assertEquals(0, metricsQueue.getTotalInFlight());
+    }
+
+    @Test
+    public void testIgnoresZingWhenDisabled() throws Exception {
+        zingQueue.addAll(metrics(10), "client1");
+        new QueueSnapshots(config, eventBus, metricsQueue, zingQueue).stop();
+        Assert.assertFalse(Files.exists(snapshot(QueueSnapshots.ZING_FILE)));
+        Assert.assertEquals(10, zingQueue.poll(100, 0).size());
+    }
+
+    private List<Metric> pollAll() throws InterruptedException {
+        final List<Metric> polled = new ArrayList<>();
+        for (Collection<Metric> batch = metricsQueue.poll(1000, 0); !batch.isEmpty(); batch = metricsQueue.poll(1000, 0)) {
+            polled.addAll(batch);
+        }
+        return polled;
+    }
+
+    private Path snapshot(String name) throws IOException {
+        return new File(config.getSnapshotConfiguration().getDirectory(), name).toPath();
+    }
+
+    private static List<Metric> metrics(int count) {
+        final List<Metric> metrics = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            final Metric m = new Metric("metric" + i, i, i);
+            m.addTag("key", "value" + i);
+            metrics.add(m);
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricBatch;
+import org.zenoss.app.consumer.metric.data.MetricDictionary;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RingMetricsBufferTest {
+
+    private final ClientSlot client = new ClientSlot("test");
+
+    @Test
+    public void testCapacityRoundsUpToPowerOfTwo() {
+        Assert.assertEquals(8, new RingMetricsBuffer(5).capacity());
+        Assert.assertEquals(8, new RingMetricsBuffer(8).capacity());
+        Assert.assertEquals(1, new RingMetricsBuffer(1).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsZeroCapacity() {
+        new RingMetricsBuffer(0);
+    }
+
+    @Test
+    public void testFifoAcrossWrapAround() throws InterruptedException {
+        final RingMetricsBuffer buffer = new RingMetricsBuffer(4);
+        final List<Metric> polled = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            client.acquire(3);
+            buffer.addAll(metrics(round * 3, 3), client);
+            Assert.assertEquals(3, buffer.size());
+            polled.addAll(buffer.poll(2, 0));
+            polled.addAll(buffer.poll(10, 0));
+            Assert.assertEquals(0, buffer.size());
+            Assert.assertEquals(0, client.backlog());
+        }
+        Assert.assertEquals(metrics(0, 15), polled);
+    }
+
+    @Test
+    public void testPollReleasesEachClient() throws InterruptedException {
+        final RingMetricsBuffer buffer = new RingMetricsBuffer(16);
+        final ClientSlot a = new ClientSlot("a"), b = new ClientSlot("b");
+        a.acquire(5);
+        buffer.addAll(metrics(0, 2), a);
+        b.acquire(2);
+        buffer.addAll(metrics(2, 2), b);
+        buffer.addAll(metrics(4, 3), a);
+
+        Assert.assertEquals(5, buffer.poll(5, 0).size());
+        Assert.assertEquals(2, a.backlog());
+        Assert.assertEquals(0, b.backlog());
+        Assert.assertEquals(2, buffer.poll(5, 0).size());
+        Assert.assertEquals(0, a.backlog());
+    }
+
+    @Test
+    public void testBatchesHoldDictionaryReferences() throws InterruptedException {
+        final MetricDictionary dictionary = new MetricDictionary();
+        final RingMetricsBuffer buffer = new RingMetricsBuffer(8, dictionary);
+        client.acquire(6);
+        buffer.addAll(metrics(0, 6), client);
+        Assert.assertEquals(6, dictionary.nameCount());
+        Assert.assertEquals(1, dictionary.tagSetCount());
+
+        final MetricBatch batch = buffer.pollBatch(4, 0);
+        Assert.assertEquals(metrics(0, 4), batch.toMetrics());
+        Assert.assertEquals(6, dictionary.nameCount());
+
+        // Put back, the ring takes references of its own
+        client.acquire(2);
+        buffer.addAll(batch, 1, 3, client);
+        batch.release();
+        Assert.assertEquals(4, dictionary.nameCount());
+
+        final List<Metric> expected = metrics(4, 2);
+        expected.addAll(metrics(1, 2));
+        Assert.assertEquals(expected, buffer.poll(10, 0));
+        Assert.assertEquals(0, dictionary.nameCount());
+        Assert.assertEquals(0, dictionary.tagSetCount());
+        Assert.assertEquals(0, client.backlog());
+    }
+
+    @Test
+    public void testAddsBatchFromOtherDictionary() throws InterruptedException {
+        final MetricDictionary dictionary = new MetricDictionary();
+        final RingMetricsBuffer buffer = new RingMetricsBuffer(8, dictionary);
+        final MetricBatch batch = MetricBatch.copyOf(metrics(0, 3), new MetricDictionary());
+        client.acquire(3);
+        buffer.addAll(batch, 0, 3, client);
+        Assert.assertEquals(3, dictionary.nameCount());
+        Assert.assertEquals(metrics(0, 3), buffer.poll(10, 0));
+    }
+
+    @Test
+    public void testFailedAddClaimsNothing() throws InterruptedException {
+        final MetricDictionary dictionary = new MetricDictionary();
+        final RingMetricsBuffer buffer = new RingMetricsBuffer(8, dictionary);
+        // Claims more metrics than it holds
+        final List<Metric> metrics = metrics(0, 3);
+        final Collection<Metric> truncated = new AbstractCollection<Metric>() {
+            @Override
+            public Iterator<Metric> iterator() {
+                return metrics.iterator();
+            }
+
+            @Override
+            public int size() {
+                return 5;
+            }
+        };
+        try {
+            buffer.addAll(truncated, client);
+            Assert.fail("Expected the iterator to run out");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        Assert.assertEquals(0, buffer.size());
+        Assert.assertEquals(0, dictionary.nameCount());
+        Assert.assertEquals(0, dictionary.tagSetCount());
+
+        client.acquire(3);
+        buffer.addAll(metrics, client);
+        Assert.assertEquals(metrics, buffer.poll(10, 0));
+    }
+
+    @Test
+    public void testOfferAllNeverWaits() throws InterruptedException {
+        final MetricDictionary dictionary = new MetricDictionary();
+        final RingMetricsBuffer buffer = new RingMetricsBuffer(4, dictionary);
+        client.acquire(3);
+        buffer.addAll(metrics(0, 3), client);
+        Assert.assertFalse(buffer.offerAll(metrics(3, 2), client));
+        // Nothing was resolved for the rejected metrics
+        Assert.assertEquals(3, dictionary.nameCount());
+        Assert.assertFalse(buffer.offerAll(MetricBatch.copyOf(metrics(3, 2), dictionary), 0, 2, client));
+        Assert.assertEquals(3, buffer.size());
+
+        Assert.assertTrue(buffer.offerAll(metrics(3, 1), client));
+        Assert.assertEquals(metrics(0, 4), buffer.poll(10, 0));
+    }
+
+    @Test
+    public void testPollTimesOutWhenEmpty() throws InterruptedException {
+        final RingMetricsBuffer buffer = new RingMetricsBuffer(4);
+        final long start = System.nanoTime();
+        Assert.assertTrue(buffer.poll(10, 50).isEmpty());
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testBatchLargerThanCapacity() throws Exception {
+        final RingMetricsBuffer buffer = new RingMetricsBuffer(4);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> adding = executor.submit(() -> buffer.addAll(metrics(0, 10), client));
+            final List<Metric> polled = new ArrayList<>();
+            while (polled.size() < 10) {
+                polled.addAll(buffer.poll(3, 1000));
+            }
+            adding.get(1, TimeUnit.SECONDS);
+            Assert.assertEquals(metrics(0, 10), polled);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testManyProducersAndConsumers() throws Exception {
+        final int producers = 4, consumers = 3, perProducer = 5_000, batch = 7;
+        final RingMetricsBuffer buffer = new RingMetricsBuffer(64);
+        final ExecutorService executor = Executors.newFixedThreadPool(producers + consumers);
+        final AtomicInteger remaining = new AtomicInteger(producers * perProducer);
+        try {
+            final List<Future<?>> producing = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                final int offset = p * perProducer;
+                producing.add(executor.submit(() -> {
+                    for (int i = 0; i < perProducer; i += batch) {
+                        buffer.addAll(metrics(offset + i, Math.min(batch, perProducer - i)), client);
+                    }
+                }));
+            }
+            final List<Future<Collection<Metric>>> consuming = new ArrayList<>();
+            for (int c = 0; c < consumers; c++) {
+                consuming.add(executor.submit(() -> {
+                    final Collection<Metric> polled = new ArrayList<>();
+                    while (remaining.get() > 0) {
+                        final Collection<Metric> metrics = buffer.poll(50, 10);
+                        remaining.addAndGet(-metrics.size());
+                        polled.addAll(metrics);
+                    }
+                    return polled;
+                }));
+            }
+            for (Future<?> f : producing) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+            final Set<Metric> seen = new HashSet<>();
+            int total = 0;
+            for (Future<Collection<Metric>> f : consuming) {
+                final Collection<Metric> polled = f.get(10, TimeUnit.SECONDS);
+                total += polled.size();
+                seen.addAll(polled);
+            }
+            Assert.assertEquals(producers * perProducer, total);
+            Assert.assertEquals(new HashSet<>(metrics(0, producers * perProducer)), seen);
+            Assert.assertEquals(0, buffer.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<Metric> metrics(int first, int count) {
+        final List<Metric> metrics = Lists.newArrayListWithCapacity(count);
+        for (int i = first; i < first + count; i++) {
+            metrics.add(new Metric("metric" + i, i, i));
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+import org.zenoss.app.consumer.metric.TsdbMetricsQueue;
+import org.zenoss.app.consumer.metric.data.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ShardedMetricsBufferTest {
+
+    @Test
+    public void testRoundRobinByQuantum() throws InterruptedException {
+        final ShardedMetricsBuffer buffer = new ShardedMetricsBuffer(2);
+        final ClientSlot noisy = new ClientSlot("noisy"), quiet = new ClientSlot("quiet");
+        add(buffer, noisy, 10);
+        add(buffer, quiet, 3);
+        Assert.assertEquals(13, buffer.size());
+        Assert.assertEquals(2, buffer.shardCount());
+
+        Assert.assertEquals(
+                Lists.newArrayList("noisy", "noisy", "quiet", "quiet", "noisy", "noisy", "quiet", "noisy"),
+                clients(buffer.poll(8, 0)));
+        Assert.assertEquals(1, buffer.shardCount());
+        Assert.assertEquals(5, buffer.size());
+        Assert.assertEquals(5, noisy.backlog());
+        Assert.assertEquals(0, quiet.backlog());
+    }
+
+    @Test
+    public void testPartialTurnCarriesOverToNextPoll() throws InterruptedException {
+        final ShardedMetricsBuffer buffer = new ShardedMetricsBuffer(3);
+        add(buffer, new ClientSlot("a"), 5);
+        add(buffer, new ClientSlot("b"), 5);
+
+        Assert.assertEquals(Lists.newArrayList("a", "a"), clients(buffer.poll(2, 0)));
+        Assert.assertEquals(Lists.newArrayList("a", "b", "b", "b"), clients(buffer.poll(4, 0)));
+    }
+
+    @Test
+    public void testFifoWithinClient() throws InterruptedException {
+        final ShardedMetricsBuffer buffer = new ShardedMetricsBuffer(100);
+        final ClientSlot a = new ClientSlot("a");
+        final List<Metric> added = metrics(a, 10);
+        a.acquire(10);
+        buffer.addAll(added.subList(0, 5), a);
+        buffer.addAll(added.subList(5, 10), a);
+        Assert.assertEquals(added, buffer.poll(100, 0));
+        Assert.assertEquals(0, buffer.size());
+        Assert.assertEquals(0, buffer.shardCount());
+        Assert.assertEquals(0, a.backlog());
+    }
+
+    @Test
+    public void testPollWaitsForData() throws Exception {
+        final ShardedMetricsBuffer buffer = new ShardedMetricsBuffer(10);
+        Assert.assertTrue(buffer.poll(10, 10).isEmpty());
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Collection<Metric>> polling = executor.submit(() -> buffer.poll(10, 30_000L));
+            Thread.sleep(50);
+            add(buffer, new ClientSlot("a"), 1);
+            Assert.assertEquals(1, polling.get(1, TimeUnit.SECONDS).size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void add(ShardedMetricsBuffer buffer, ClientSlot client, int count) {
+        client.acquire(count);
+        buffer.addAll(metrics(client, count), client);
+    }
+
+    private static List<Metric> metrics(ClientSlot client, int count) {
+        final List<Metric> metrics = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            final Metric m = new Metric("metric" + i, i, i);
+            m.addTag(TsdbMetricsQueue.CLIENT_TAG, client.clientId());
+            metrics.add(m);
+        }
+        return metrics;
+    }
+
+    private static List<String> clients(Collection<Metric> metrics) {
+        final List<String> clients = new ArrayList<>(metrics.size());
+        for (Metric m : metrics) {
+            clients.add(m.getTags().get(TsdbMetricsQueue.CLIENT_TAG));
+        }
+        return clients;
+    }
+}
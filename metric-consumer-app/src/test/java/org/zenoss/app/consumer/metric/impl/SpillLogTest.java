@@ -0,0 +1,176 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zenoss.app.consumer.metric.SpillConfiguration.FsyncPolicy;
+import org.zenoss.app.consumer.metric.data.Metric;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SpillLogTest {
+
+    private static final int SEGMENT_BYTES = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFifoAcrossSegments() throws IOException {
+        final SpillLog spill = open(16 * SEGMENT_BYTES);
+        final List<Metric> added = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final List<Metric> batch = metrics(i * 10, 10);
+            Assert.assertTrue(spill.append(batch));
+            added.addAll(batch);
+        }
+        Assert.assertEquals(1000, spill.size());
+        Assert.assertTrue(segmentFiles() > 1);
+
+        final List<Metric> read = new ArrayList<>();
+        for (List<Metric> batch = spill.read(); !batch.isEmpty(); batch = spill.read()) {
+            read.addAll(batch);
+        }
+        Assert.assertEquals(added, read);
+        Assert.assertEquals(0, spill.size());
+        Assert.assertEquals(1, segmentFiles());
+    }
+
+    @Test
+    public void testRefusesWhenFull() throws IOException {
+        final SpillLog spill = open(2 * SEGMENT_BYTES);
+        while (spill.append(metrics(0, 10))) {
+            Assert.assertTrue(spill.size() < 1000);
+        }
+        Assert.assertTrue(spill.isFull());
+        Assert.assertEquals(2, segmentFiles());
+
+        // Freeing the first segment makes room again
+        final long size = spill.size();
+        long read = 0;
+        while (segmentFiles() == 2) {
+            read += spill.read().size();
+        }
+        Assert.assertFalse(spill.isFull());
+        Assert.assertTrue(spill.append(metrics(0, 10)));
+        Assert.assertEquals(size - read + 10, spill.size());
+    }
+
+    @Test
+    public void testRefusesBatchLargerThanSegment() throws IOException {
+        final SpillLog spill = open(4 * SEGMENT_BYTES);
+        Assert.assertFalse(spill.append(metrics(0, 1000)));
+        Assert.assertFalse(spill.isFull());
+        Assert.assertEquals(0, spill.size());
+    }
+
+    @Test
+    public void testRecoversUnreadRecords() throws IOException {
+        SpillLog spill = open(16 * SEGMENT_BYTES);
+        for (int i = 0; i < 50; i++) {
+            spill.append(metrics(i * 10, 10));
+        }
+        final List<Metric> read = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            read.addAll(spill.read());
+        }
+        Assert.assertEquals(metrics(0, 200), read);
+        spill.close();
+
+        spill = open(16 * SEGMENT_BYTES);
+        Assert.assertEquals(300, spill.size());
+        spill.append(metrics(500, 10));
+        read.clear();
+        for (List<Metric> batch = spill.read(); !batch.isEmpty(); batch = spill.read()) {
+            read.addAll(batch);
+        }
+        Assert.assertEquals(metrics(200, 310), read);
+    }
+
+    @Test
+    public void testRoundTripsTags() throws IOException {
+        final SpillLog spill = open(4 * SEGMENT_BYTES);
+        final Metric metric = new Metric("name", 1234L, 5.5);
+        metric.addTag("device", "dev1");
+        metric.addTag("x-metric-consumer-client-id", "client");
+        spill.append(Lists.newArrayList(metric));
+        Assert.assertEquals(Lists.newArrayList(metric), spill.read());
+    }
+
+    @Test
+    public void testDropsSegmentWithBadLength() throws IOException {
+        final SpillLog spill = open(4 * SEGMENT_BYTES);
+        for (int i = 0; i < 3; i++) {
+            spill.append(metrics(i * 10, 10));
+        }
+        // Point the second record's length past everything written
+        final File[] files = directory().toFile().listFiles();
+        Assert.assertEquals(1, files.length);
+        try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+            file.seek(8 + file.readInt());
+            file.writeInt(SEGMENT_BYTES / 2);
+        }
+
+        Assert.assertEquals(metrics(0, 10), spill.read());
+        try {
+            spill.read();
+            Assert.fail("Expected a corrupt record");
+        } catch (SpillLog.CorruptRecordException e) {
+            Assert.assertEquals(20, e.count);
+        }
+        Assert.assertEquals(0, spill.size());
+        Assert.assertEquals(0, segmentFiles());
+
+        Assert.assertTrue(spill.append(metrics(30, 10)));
+        Assert.assertEquals(metrics(30, 10), spill.read());
+    }
+
+    @Test
+    public void testCloseKeepsSegments() throws IOException {
+        final SpillLog spill = open(4 * SEGMENT_BYTES);
+        spill.append(metrics(0, 10));
+        spill.close();
+        Assert.assertEquals(1, segmentFiles());
+        Assert.assertEquals(10, open(4 * SEGMENT_BYTES).size());
+    }
+
+    private SpillLog open(long maxBytes) throws IOException {
+        return new SpillLog(directory(), maxBytes, SEGMENT_BYTES, FsyncPolicy.NEVER);
+    }
+
+    private Path directory() {
+        return new File(folder.getRoot(), "spill").toPath();
+    }
+
+    private int segmentFiles() {
+        final File[] files = directory().toFile().listFiles();
+        return files == null ? 0 : files.length;
+    }
+
+    private static List<Metric> metrics(int first, int count) {
+        final List<Metric> metrics = Lists.newArrayListWithCapacity(count);
+        for (int i = first; i < first + count; i++) {
+            final Metric m = new Metric("metric" + i, i, i);
+            m.addTag("key", "value" + i);
+            metrics.add(m);
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.impl;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zenoss.app.consumer.metric.WriterAutoscaleConfiguration;
+
+public class WriterAutoscalerTest {
+
+    private WriterAutoscaleConfiguration config;
+
+    @Before
+    public void setUp() {
+        config = new WriterAutoscaleConfiguration();
+        config.setMinWriters(2);
+        config.setMaxWriters(8);
+        config.setMinThroughputGain(0.1);
+        config.setMaxErrorRate(0.05);
+        config.setMaxBatchLatency(1000);
+    }
+
+    @Test
+    public void testStartsAtMin() {
+        Assert.assertEquals(2, new WriterAutoscaler(config).target());
+    }
+
+    @Test
+    public void testGrowsWhileThroughputScales() {
+        final WriterAutoscaler scaler = new WriterAutoscaler(config);
+        long backlog = 10000;
+        for (int i = 0; i < 20; i++) {
+            // Each writer adds 1000 metrics/s and the backlog keeps growing
+            scaler.update(backlog, scaler.target() * 1000.0, 0, 100);
+            backlog += 1000;
+        }
+        Assert.assertEquals(8, scaler.target());
+    }
+
+    @Test
+    public void testStopsWhenThroughputPlateaus() {
+        final WriterAutoscaler scaler = new WriterAutoscaler(config);
+        long backlog = 10000;
+        for (int i = 0; i < 10; i++) {
+            // Writers beyond 4 add nothing
+            scaler.update(backlog, Math.min(scaler.target(), 4) * 1000.0, 0, 100);
+            backlog += 1000;
+        }
+        Assert.assertEquals(4, scaler.target());
+        Assert.assertEquals(4, scaler.ceiling());
+    }
+
+    @Test
+    public void testProbesAgainAfterHolding() {
+        final WriterAutoscaler scaler = new WriterAutoscaler(config);
+        long backlog = 10000;
+        for (int i = 0; i < 10; i++) {
+            scaler.update(backlog, Math.min(scaler.target(), 4) * 1000.0, 0, 100);
+            backlog += 1000;
+        }
+        for (int i = 0; i < WriterAutoscaler.PROBE_INTERVALS + 2; i++) {
+            // More capacity downstream now
+            scaler.update(backlog, scaler.target() * 1000.0, 0, 100);
+            backlog += 1000;
+        }
+        Assert.assertTrue(scaler.target() > 4);
+    }
+
+    @Test
+    public void testHoldsWhileDraining() {
+        final WriterAutoscaler scaler = new WriterAutoscaler(config);
+        scaler.update(10000, 2000, 0, 100);
+        Assert.assertEquals(3, scaler.target());
+        scaler.update(9000, 3000, 0, 100);
+        scaler.update(8000, 3000, 0, 100);
+        Assert.assertEquals(3, scaler.target());
+    }
+
+    @Test
+    public void testShedsOnErrors() {
+        config.setMinWriters(1);
+        final WriterAutoscaler scaler = new WriterAutoscaler(config);
+        for (int i = 0; i < 10; i++) {
+            scaler.update(10000 + i, scaler.target() * 1000.0, 0, 100);
+        }
+        Assert.assertEquals(8, scaler.target());
+        scaler.update(20000, 8000, 0.5, 100);
+        Assert.assertEquals(6, scaler.target());
+        scaler.update(20000, 8000, 0, 5000);
+        Assert.assertEquals(5, scaler.target());
+        // Doesn't grow straight back
+        scaler.update(30000, 5000, 0, 100);
+        Assert.assertEquals(5, scaler.target());
+    }
+
+    @Test
+    public void testShrinksToMinWhenIdle() {
+        final WriterAutoscaler scaler = new WriterAutoscaler(config);
+        for (int i = 0; i < 10; i++) {
+            scaler.update(10000 + i, scaler.target() * 1000.0, 0, 100);
+        }
+        for (int i = 0; i < 10; i++) {
+            scaler.update(0, 0, 0, 0);
+        }
+        Assert.assertEquals(2, scaler.target());
+    }
+}
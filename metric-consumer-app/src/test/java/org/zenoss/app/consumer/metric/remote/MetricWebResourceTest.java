@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -49,7 +50,8 @@ public class MetricWebResourceTest {
     public void setUp() throws Exception {
         List<String> parameters = Lists.newArrayList();
         configuration.setHttpParameterTags(parameters);
-        when(service.push(anyListOf(Metric.class), anyString(), any(Runnable.class))).thenReturn(control);
+        when(service.pushAsync(anyListOf(Metric.class), anyString(), any(Runnable.class)))
+                .thenReturn(CompletableFuture.completedFuture(control));
 
         request = mock(HttpServletRequest.class);
         subject = mock(Subject.class);
@@ -69,7 +71,7 @@ public class MetricWebResourceTest {
         when(request.getHeader("X-Forwarded-For")).thenReturn("test");
 
         assertThat(resource.post(mc, request), is(control));
-        verify(service).push(mc.getMetrics(), "test", null);
+        verify(service).pushAsync(mc.getMetrics(), "test", null);
     }
 
     @Test
@@ -96,7 +98,7 @@ public class MetricWebResourceTest {
         tags.put("controlplane_tenant_id", "1");
         tags.put("controlplane_service_id", "2");
         Metric expected_metric = new Metric("name", 0, 1.0, tags);
-        verify(service).push(Lists.newArrayList(expected_metric), "test", null);
+        verify(service).pushAsync(Lists.newArrayList(expected_metric), "test", null);
     }
 
     @Test
@@ -117,7 +119,7 @@ public class MetricWebResourceTest {
         tags = Maps.newHashMap();
         tags.put("zenoss_tenant_id", "tenant");
         Metric expected_metric = new Metric("name", 0, 1.0, tags);
-        verify(service).push(Lists.newArrayList(expected_metric), "test", null);
+        verify(service).pushAsync(Lists.newArrayList(expected_metric), "test", null);
     }
 
     @Test
@@ -145,6 +147,6 @@ public class MetricWebResourceTest {
         tags = Maps.newHashMap();
         tags.put("zenoss_tenant_id", "tenant");
         Metric expected_metric = new Metric("name", 0, 1.0, tags);
-        verify(service).push(Lists.newArrayList(expected_metric), "test", null);
+        verify(service).pushAsync(Lists.newArrayList(expected_metric), "test", null);
     }
 }
@@ -17,6 +17,7 @@ import org.apache.shiro.subject.Subject;
 import org.eclipse.jetty.websocket.WebSocket;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.zenoss.app.consumer.ConsumerAppConfiguration;
 import org.zenoss.app.consumer.metric.MetricService;
 import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
@@ -26,12 +27,18 @@ import org.zenoss.app.consumer.metric.data.Metric;
 import org.zenoss.app.security.ZenossTenant;
 import org.zenoss.dropwizardspring.websockets.WebSocketBroadcast;
 import org.zenoss.dropwizardspring.websockets.WebSocketSession;
+import org.xerial.snappy.Snappy;
 
 import javax.servlet.http.HttpServletRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Mockito.*;
 
 public class MetricWebSocketTest {
@@ -57,12 +64,13 @@ public class MetricWebSocketTest {
     @Test
     public void testOnMessage() throws Exception {
         MetricWebSocket socket = new MetricWebSocket(config(false), service, eventBus);
-        when(service.push(anyListOf(Metric.class), anyString(), any(Runnable.class))).thenReturn(new Control());
+        when(service.pushAsync(anyListOf(Metric.class), anyString(), any(Runnable.class)))
+                .thenReturn(CompletableFuture.completedFuture(new Control()));
         Metric metric = new Metric("name", 0, 0.0);
         Control control = new Control();
         Message message = new Message(control, new Metric[]{metric});
         assertEquals(new Control(), socket.onMessage(message, new WebSocketSession(subject, request, connection)));
-        verify(service).push(eq(Collections.singletonList(metric)), eq("websocket1"), any(Runnable.class));
+        verify(service).pushAsync(eq(Collections.singletonList(metric)), eq("websocket1"), any(Runnable.class));
     }
 
     @Test
@@ -75,7 +83,8 @@ public class MetricWebSocketTest {
         prefixes.add("controlplane");
         MetricWebSocket socket = new MetricWebSocket(config(prefixes, null, true), service, eventBus);
 
-        when(service.push(anyListOf(Metric.class),anyString(),any(Runnable.class))).thenReturn(new Control());
+        when(service.pushAsync(anyListOf(Metric.class), anyString(), any(Runnable.class)))
+                .thenReturn(CompletableFuture.completedFuture(new Control()));
         when(request.getParameterNames()).thenReturn(Collections.enumeration(parameters));
         when(request.getParameter("controlplane_tenant_id")).thenReturn("1");
         when(request.getParameter("controlplane_service_id")).thenReturn("2");
@@ -94,7 +103,7 @@ public class MetricWebSocketTest {
         expected_metric.addTag("controlplane_tenant_id", "1");
         expected_metric.addTag("controlplane_service_id", "2");
         expected_metric.addTag("zenoss_tenant_id", "3");
-        verify(service).push(eq(Collections.singletonList(expected_metric)), eq("websocket1"), any(Runnable.class));
+        verify(service).pushAsync(eq(Collections.singletonList(expected_metric)), eq("websocket1"), any(Runnable.class));
     }
 
     @Test
@@ -111,7 +120,8 @@ public class MetricWebSocketTest {
         List<String> parameters = Lists.newArrayList();
         parameters.add( "controlplane_tenant_id");
         parameters.add( "controlplane_service_id");
-        when(service.push(anyListOf(Metric.class),anyString(),any(Runnable.class))).thenReturn(new Control());
+        when(service.pushAsync(anyListOf(Metric.class), anyString(), any(Runnable.class)))
+                .thenReturn(CompletableFuture.completedFuture(new Control()));
         when(request.getParameterNames()).thenReturn(Collections.enumeration(parameters));
         when(request.getParameter("controlplane_tenant_id")).thenReturn("1");
         when(request.getParameter("controlplane_service_id")).thenReturn("2");
@@ -129,7 +139,166 @@ public class MetricWebSocketTest {
         Metric expected_metric = new Metric("name", 0, 0.0);
         expected_metric.addTag("controlplane_tenant_id", "1");
         expected_metric.addTag("controlplane_service_id", "2");
-        verify(service).push(eq(Collections.singletonList(expected_metric)), eq("websocket1"), any(Runnable.class));
+        verify(service).pushAsync(eq(Collections.singletonList(expected_metric)), eq("websocket1"), any(Runnable.class));
+    }
+
+    @Test
+    public void testSessionTagsResolvedOnce() throws Exception {
+        List<String> prefixes = Lists.newArrayList();
+        prefixes.add("controlplane");
+        MetricWebSocket socket = new MetricWebSocket(config(prefixes, null, true), service, eventBus);
+
+        when(service.pushAsync(anyListOf(Metric.class), anyString(), any(Runnable.class)))
+                .thenReturn(CompletableFuture.completedFuture(new Control()));
+        when(request.getParameterNames()).thenReturn(Collections.enumeration(Collections.singletonList("controlplane_service_id")));
+        when(request.getParameter("controlplane_service_id")).thenReturn("2");
+        PrincipalCollection principles = mock(PrincipalCollection.class);
+        when(subject.getPrincipals()).thenReturn(principles);
+        when(principles.oneByType(ZenossTenant.class)).thenReturn(ZenossTenant.get("3"));
+
+        WebSocketSession session = new WebSocketSession(subject, request, connection);
+        Metric metric1 = new Metric("name1", 0, 0.0);
+        Metric metric2 = new Metric("name2", 0, 0.0);
+        socket.onMessage(new Message(new Control(), new Metric[]{metric1}), session);
+        socket.onMessage(new Message(new Control(), new Metric[]{metric2}), session);
+
+        verify(request, times(1)).getParameterNames();
+        verify(subject, times(1)).getPrincipals();
+        assertEquals("2", metric2.getTags().get("controlplane_service_id"));
+        assertEquals("3", metric2.getTags().get("zenoss_tenant_id"));
+        assertSame(metric1.getTags(), metric2.getTags());
+    }
+
+    @Test
+    public void testStateKeptPerConnection() throws Exception {
+        MetricWebSocket socket = new MetricWebSocket(config(false), service, eventBus);
+        when(service.pushAsync(anyListOf(Metric.class), anyString(), any(Runnable.class)))
+                .thenReturn(CompletableFuture.completedFuture(new Control()));
+        WebSocket.Connection other = mock(WebSocket.Connection.class);
+        Message message = new Message(new Control(), new Metric[]{new Metric("name", 0, 0.0)});
+
+        socket.onMessage(message, new WebSocketSession(subject, request, connection));
+        socket.onMessage(message, new WebSocketSession(subject, request, connection));
+        socket.onMessage(message, new WebSocketSession(subject, request, other));
+        verify(service, times(2)).pushAsync(anyListOf(Metric.class), eq("websocket1"), any(Runnable.class));
+        verify(service).pushAsync(anyListOf(Metric.class), eq("websocket2"), any(Runnable.class));
+
+        // A connection opened again starts over
+        socket.onClose(1000, "closed", new WebSocketSession(subject, request, connection));
+        socket.onMessage(message, new WebSocketSession(subject, request, connection));
+        verify(service).pushAsync(anyListOf(Metric.class), eq("websocket3"), any(Runnable.class));
+    }
+
+    @Test
+    public void testClientCollisionsCoalescedPerSession() throws Exception {
+        MetricWebSocket socket = new MetricWebSocket(config(false), service, eventBus);
+        when(service.suggestedBackOff(anyString())).thenReturn(250L);
+        WebSocket.Connection other = mock(WebSocket.Connection.class);
+        WebSocketSession session = new WebSocketSession(subject, request, connection);
+        WebSocketSession otherSession = new WebSocketSession(subject, request, other);
+
+        Runnable onCollision = collisionCallback(socket, session);
+        onCollision.run();
+        onCollision.run();
+        collisionCallback(socket, otherSession).run();
+
+        verify(connection, times(1)).sendMessage(WebSocketBroadcast.newMessage(
+                MetricWebSocket.class, Control.clientCollision("websocket1", 250)).asString());
+        verify(other, times(1)).sendMessage(WebSocketBroadcast.newMessage(
+                MetricWebSocket.class, Control.clientCollision("websocket2", 250)).asString());
+        verify(service, times(2)).incrementSentClientCollision();
+
+        Thread.sleep(TIME_BETWEEN_NOTIFICATION + 50);
+        onCollision.run();
+        verify(connection, times(2)).sendMessage(anyString());
+    }
+
+    @Test
+    public void testCollisionAfterCloseKeepsSessionClosed() throws Exception {
+        MetricWebSocket socket = new MetricWebSocket(config(false), service, eventBus);
+        when(service.suggestedBackOff(anyString())).thenReturn(250L);
+        WebSocketSession session = new WebSocketSession(subject, request, connection);
+        Runnable onCollision = collisionCallback(socket, session);
+
+        socket.onClose(1000, "closed", session);
+        onCollision.run();
+        verify(connection).sendMessage(WebSocketBroadcast.newMessage(
+                MetricWebSocket.class, Control.clientCollision("websocket1", 250)).asString());
+
+        // The closed session's state wasn't created again
+        collisionCallback(socket, new WebSocketSession(subject, request, mock(WebSocket.Connection.class)));
+        verify(service).pushAsync(anyListOf(Metric.class), eq("websocket2"), any(Runnable.class));
+    }
+
+    /**
+     * Push a message for a session, returning the collision callback it was pushed with.
+     */
+    private Runnable collisionCallback(MetricWebSocket socket, WebSocketSession session) {
+        ArgumentCaptor<Runnable> onCollision = ArgumentCaptor.forClass(Runnable.class);
+        when(service.pushAsync(anyListOf(Metric.class), anyString(), onCollision.capture()))
+                .thenReturn(CompletableFuture.completedFuture(Control.ok()));
+        socket.onMessage(new Message(new Control(), new Metric[]{new Metric("name", 0, 0.0)}), session);
+        return onCollision.getValue();
+    }
+
+    @Test
+    public void testOnMessageRepliesWhenPushCompletes() throws Exception {
+        MetricWebSocket socket = new MetricWebSocket(config(false), service, eventBus);
+        CompletableFuture<Control> pushed = new CompletableFuture<>();
+        when(service.pushAsync(anyListOf(Metric.class), anyString(), any(Runnable.class))).thenReturn(pushed);
+        Message message = new Message(new Control(), new Metric[]{new Metric("name", 0, 0.0)});
+
+        assertNull(socket.onMessage(message, new WebSocketSession(subject, request, connection)));
+        verify(connection, never()).sendMessage(anyString());
+
+        pushed.complete(Control.ok());
+        verify(connection).sendMessage("{\"type\":\"OK\",\"value\":\"\"}");
+    }
+
+    @Test
+    public void testOnMessageQueuesBehindWaitingPush() throws Exception {
+        MetricWebSocket socket = new MetricWebSocket(config(false), service, eventBus);
+        WebSocketSession session = new WebSocketSession(subject, request, connection);
+        CompletableFuture<Control> first = new CompletableFuture<>();
+        Metric metric1 = new Metric("first", 0, 0.0);
+        Metric metric2 = new Metric("second", 0, 0.0);
+        when(service.pushAsync(eq(Collections.singletonList(metric1)), anyString(), any(Runnable.class))).thenReturn(first);
+        when(service.pushAsync(eq(Collections.singletonList(metric2)), anyString(), any(Runnable.class)))
+                .thenReturn(CompletableFuture.completedFuture(Control.ok()));
+
+        assertNull(socket.onMessage(new Message(new Control(), new Metric[]{metric1}), session));
+        assertNull(socket.onMessage(new Message(new Control(), new Metric[]{metric2}), session));
+        verify(service, never()).pushAsync(eq(Collections.singletonList(metric2)), anyString(), any(Runnable.class));
+
+        first.complete(Control.ok());
+        verify(service).pushAsync(eq(Collections.singletonList(metric2)), eq("websocket1"), any(Runnable.class));
+        verify(connection, times(2)).sendMessage("{\"type\":\"OK\",\"value\":\"\"}");
+    }
+
+    @Test
+    public void testOnMessageDropsPastPendingLimit() throws Exception {
+        ConsumerAppConfiguration configuration = config(false);
+        configuration.getMetricServiceConfiguration().setPerClientMaxPendingPushes(1);
+        MetricWebSocket socket = new MetricWebSocket(configuration, service, eventBus);
+        WebSocketSession session = new WebSocketSession(subject, request, connection);
+        when(service.pushAsync(anyListOf(Metric.class), anyString(), any(Runnable.class))).thenReturn(new CompletableFuture<Control>());
+        Message message = new Message(new Control(), new Metric[]{new Metric("name", 0, 0.0)});
+
+        assertNull(socket.onMessage(message, session));
+        assertEquals(Control.dropped("too many messages waiting"), socket.onMessage(message, session));
+        verify(service, times(1)).pushAsync(anyListOf(Metric.class), anyString(), any(Runnable.class));
+    }
+
+    @Test
+    public void testUnknownCodeResetsDictionary() throws Exception {
+        MetricWebSocket socket = new MetricWebSocket(config(false), service, eventBus);
+        byte[] dictionary = "{}".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(24 + dictionary.length);
+        frame.put((byte) 0).putShort((short) 1).putDouble(0).putInt(5).putDouble(1.0).put((byte) 0).put(dictionary);
+
+        Control control = socket.onMessage(Snappy.compress(frame.array()), new WebSocketSession(subject, request, connection));
+        assertEquals(Control.Type.DICTIONARY_RESET, control.getType());
+        verify(service, never()).pushAsync(anyListOf(Metric.class), anyString(), any(Runnable.class));
     }
 
     @Test
@@ -0,0 +1,73 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.remote;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.zenoss.app.consumer.metric.data.TagSet;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TagFilterTest {
+
+    private static final TagSet TAGS = TagSet.of(ImmutableMap.of(
+            "device", "d1", "component", "eth0", "zenoss_tenant_id", "t1", "dev", "x"));
+
+    @Test
+    public void testNoWhiteListsKeepAll() {
+        assertSame(TagFilter.ALL, TagFilter.compile(null, null));
+        assertSame(TAGS, TagFilter.ALL.filter(TAGS));
+        assertTrue(TagFilter.ALL.test(null));
+    }
+
+    @Test
+    public void testNames() {
+        final TagFilter filter = TagFilter.compile(Lists.newArrayList("device", "other"), null);
+        assertEquals(ImmutableMap.of("device", "d1"), filter.filter(TAGS));
+        assertFalse(filter.test("dev"));
+        assertFalse(filter.test(null));
+    }
+
+    @Test
+    public void testPrefixes() {
+        final TagFilter filter = TagFilter.compile(null, Arrays.asList("dev", "device", "zenoss_", "comp"));
+        assertEquals(ImmutableMap.of("device", "d1", "zenoss_tenant_id", "t1", "dev", "x", "component", "eth0"),
+                filter.filter(TAGS));
+        assertSame(TAGS, filter.filter(TAGS));
+        assertTrue(filter.test("developer"));
+        assertFalse(filter.test("de"));
+        assertFalse(filter.test("zenoss"));
+        assertFalse(filter.test(""));
+        assertFalse(filter.test(null));
+
+        assertTrue(TagFilter.compile(null, Collections.singletonList("")).test(""));
+        assertTrue(TagFilter.compile(null, Arrays.asList("abc", "a")).test("ax"));
+        assertTrue(TagFilter.compile(null, Arrays.asList("a", "abc")).test("ax"));
+    }
+
+    @Test
+    public void testNamesAndPrefixes() {
+        final TagFilter filter = TagFilter.compile(Collections.singletonList("component"), Collections.singletonList("zenoss_"));
+        final TagSet filtered = filter.filter(TAGS);
+        assertEquals(ImmutableMap.of("component", "eth0", "zenoss_tenant_id", "t1"), filtered);
+        // Cached, and canonical either way
+        assertSame(filtered, filter.filter(TAGS));
+        assertSame(filtered, TagFilter.compile(Collections.singletonList("component"), Collections.singletonList("zenoss_")).filter(TAGS));
+        assertSame(TagSet.EMPTY, TagFilter.compile(Collections.emptyList(), null).filter(TAGS));
+    }
+}
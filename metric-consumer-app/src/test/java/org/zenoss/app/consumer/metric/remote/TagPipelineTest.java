@@ -0,0 +1,76 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.remote;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.TagSet;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TagPipelineTest {
+
+    @Test
+    public void testNoneChangesNothing() {
+        final TagSet tags = TagSet.of(ImmutableMap.of("a", "1"));
+        assertSame(tags, TagPipeline.NONE.apply(tags));
+        assertSame(TagPipeline.NONE, TagPipeline.NONE.inject("b", "").inject("c", null).filter(TagFilter.ALL));
+    }
+
+    @Test
+    public void testStepsApplyInOrder() {
+        final TagPipeline pipeline = TagPipeline.NONE
+                .inject("zenoss_tenant_id", "t1")
+                .inject("param", "p1")
+                .filter(TagFilter.compile(Collections.singletonList("device"), Collections.singletonList("zenoss_")));
+        // The two injections are merged
+        assertEquals(2, pipeline.size());
+        assertEquals(ImmutableMap.of("device", "d1", "zenoss_tenant_id", "t1"),
+                pipeline.apply(TagSet.of(ImmutableMap.of("device", "d1", "other", "x"))));
+    }
+
+    @Test
+    public void testAppliesToEachMetric() {
+        final Metric m1 = new Metric("m1", 0, 0, ImmutableMap.of("device", "d1"));
+        final Metric m2 = new Metric("m2", 0, 0, ImmutableMap.of("device", "d1"));
+        final Metric m3 = new Metric("m3", 0, 0, ImmutableMap.of("device", "d2"));
+        final List<Metric> metrics = Arrays.asList(m1, m2, m3);
+        TagPipeline.NONE.inject("zenoss_tenant_id", "t1").applyTo(metrics);
+        assertEquals(ImmutableMap.of("device", "d1", "zenoss_tenant_id", "t1"), m1.getTags());
+        assertSame(m1.getTags(), m2.getTags());
+        assertEquals(ImmutableMap.of("device", "d2", "zenoss_tenant_id", "t1"), m3.getTags());
+    }
+
+    @Test
+    public void testParameterTags() {
+        final HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getParameterNames()).thenReturn(Iterators.asEnumeration(
+                Lists.newArrayList("param-1", "param-2", "other").iterator()));
+        when(request.getParameter("param-1")).thenReturn("v1");
+        when(request.getParameter("param-2")).thenReturn("");
+        when(request.getParameter("other")).thenReturn("v3");
+        final TagPipeline pipeline = Utils.parameterTags(request, Arrays.asList("param", "param-1"));
+        assertEquals(1, pipeline.size());
+        assertEquals(ImmutableMap.of("param-1", "v1"), pipeline.apply(TagSet.EMPTY));
+        assertSame(TagPipeline.NONE, Utils.parameterTags(request, null));
+    }
+}
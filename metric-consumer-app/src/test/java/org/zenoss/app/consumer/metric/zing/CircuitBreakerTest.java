@@ -0,0 +1,99 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.zing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    static class TestBreaker extends CircuitBreaker {
+        long time;
+
+        TestBreaker(int failureThreshold, long openMillis) {
+            super(failureThreshold, openMillis);
+        }
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+    @Test
+    public void testOpensAfterThreshold() {
+        TestBreaker breaker = new TestBreaker(2, 100);
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        TestBreaker breaker = new TestBreaker(2, 100);
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    }
+
+    @Test
+    public void testOneTrialAfterOpenTime() {
+        TestBreaker breaker = new TestBreaker(1, 100);
+        breaker.onFailure();
+        breaker.time = 99;
+        assertFalse(breaker.allowRequest());
+        breaker.time = 100;
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testFailedTrialReopens() {
+        TestBreaker breaker = new TestBreaker(3, 100);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.time = 100;
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        breaker.time = 199;
+        assertFalse(breaker.allowRequest());
+        breaker.time = 200;
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testMillisUntilTrial() {
+        TestBreaker breaker = new TestBreaker(1, 100);
+        assertEquals(0, breaker.millisUntilTrial());
+        breaker.onFailure();
+        breaker.time = 30;
+        assertEquals(70, breaker.millisUntilTrial());
+        breaker.time = 100;
+        assertEquals(0, breaker.millisUntilTrial());
+        assertTrue(breaker.allowRequest());
+        // The trial may fail
+        assertEquals(100, breaker.millisUntilTrial());
+    }
+}
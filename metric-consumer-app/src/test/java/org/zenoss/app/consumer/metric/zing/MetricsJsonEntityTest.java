@@ -0,0 +1,94 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.zing;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.data.MetricCollection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class MetricsJsonEntityTest {
+
+    final ObjectMapper mapper = new ObjectMapper();
+
+    final ObjectWriter metricWriter = new ObjectMapper()
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false)
+            .writerFor(Metric.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    final List<Metric> metrics = Lists.newArrayList(
+            new Metric("one", 1, 1.5, ImmutableMap.of("device", "a")),
+            new Metric("two", 2, 2.5, ImmutableMap.of("device", "b", "key", "x")));
+
+    @Test
+    public void testWritesMetricCollection() throws Exception {
+        MetricsJsonEntity entity = new MetricsJsonEntity(metrics, metricWriter, false);
+        assertEquals("application/json", entity.getContentType().getValue());
+        assertNull(entity.getContentEncoding());
+        assertEquals(-1, entity.getContentLength());
+
+        assertEquals(metrics, read(new ByteArrayInputStream(write(entity))));
+    }
+
+    @Test
+    public void testWritesGzip() throws Exception {
+        MetricsJsonEntity entity = new MetricsJsonEntity(metrics, metricWriter, true);
+        assertEquals("gzip", entity.getContentEncoding().getValue());
+
+        assertEquals(metrics, read(new GZIPInputStream(new ByteArrayInputStream(write(entity)))));
+    }
+
+    @Test
+    public void testRepeatable() throws Exception {
+        MetricsJsonEntity entity = new MetricsJsonEntity(metrics, metricWriter, false);
+        assertTrue(entity.isRepeatable());
+        assertArrayEquals(write(entity), write(entity));
+        assertEquals(metrics, read(entity.getContent()));
+    }
+
+    @Test
+    public void testLeavesStreamOpen() throws Exception {
+        MetricsJsonEntity entity = new MetricsJsonEntity(metrics, metricWriter, true);
+        final boolean[] closed = {false};
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+            }
+        };
+        entity.writeTo(out);
+        assertFalse(closed[0]);
+    }
+
+    private byte[] write(MetricsJsonEntity entity) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private List<Metric> read(InputStream in) throws IOException {
+        return mapper.readValue(in, MetricCollection.class).getMetrics();
+    }
+}
@@ -29,6 +29,7 @@ import java.util.Collection;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Mockito.mock;
@@ -71,11 +72,36 @@ public class ZingConnectorSenderTest {
         Metric metric = new Metric("metric", 0, 0, tags);
         batch.add(metric);
 
+        long requests = ZingConnectorSender.REQUEST_TIMES.count();
         sender.send(batch);
+        assertEquals(requests + 1, ZingConnectorSender.REQUEST_TIMES.count());
 
         verify(httpClient).execute(arg.capture());
         assertEquals(config.getEndpoint(), arg.getValue().getURI().toString());
         assertEquals("Content-Type: application/json", arg.getValue().getEntity().getContentType().toString());
+        assertNull(arg.getValue().getEntity().getContentEncoding());
+    }
+
+    @Test
+    public void testPutCompressed() throws Exception {
+        when(config.isCompress()).thenReturn(true);
+        sender = new ZingConnectorSender(config, httpClient);
+
+        final CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+        final StatusLine status = mock(StatusLine.class);
+        when(response.getStatusLine()).thenReturn(status);
+        when(status.getStatusCode()).thenReturn(200);
+        when(httpClient.execute((HttpPut) anyObject())).thenReturn(response);
+
+        ArgumentCaptor<HttpPut> arg = ArgumentCaptor.forClass(HttpPut.class);
+
+        Collection<Metric> batch = new ArrayList<Metric>(1);
+        batch.add(new Metric("metric", 0, 0));
+
+        sender.send(batch);
+
+        verify(httpClient).execute(arg.capture());
+        assertEquals("Content-Encoding: gzip", arg.getValue().getEntity().getContentEncoding().toString());
     }
 
     @Test
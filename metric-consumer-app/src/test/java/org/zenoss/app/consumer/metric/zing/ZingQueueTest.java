@@ -13,7 +13,9 @@ package org.zenoss.app.consumer.metric.zing;
 import com.google.common.collect.Lists;
 import org.junit.Assert;
 import org.junit.Test;
+import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
 import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.impl.IngestLog;
 import org.zenoss.app.consumer.metric.zing.ZingQueue;
 
 import java.util.Collection;
@@ -38,6 +40,95 @@ public class ZingQueueTest {
         Assert.assertEquals(1, mq.size());
     }
 
+    @Test
+    public void testReadsSharedLog() throws Exception {
+        final IngestLog ingestLog = new IngestLog();
+        final MetricServiceConfiguration config = new MetricServiceConfiguration();
+        config.getZingConfiguration().setEnabled(true);
+        final ZingQueue mq = new ZingQueue(ingestLog, config);
+        mq.resetMetrics();
+        final IngestLog.Cursor other = ingestLog.open(new IngestLog.Listener() {
+            @Override
+            public void appended(int count, String clientId) {
+            }
+        });
+
+        final Metric metric = new Metric("fake", 0, 123.45);
+        ingestLog.append(Lists.newArrayList(metric), "test");
+        Assert.assertEquals(1, mq.size());
+        Assert.assertEquals(1, mq.getTotalInFlight());
+        Assert.assertEquals(1, mq.clientBacklogSize("test"));
+
+        Assert.assertEquals(Lists.newArrayList(metric), mq.poll(10, 0));
+        Assert.assertEquals(0, mq.size());
+        // Still there for the other sink
+        Assert.assertEquals(1, ingestLog.backlog());
+        Assert.assertSame(metric, other.next());
+        mq.close();
+    }
+
+    @Test
+    public void testDisabledKeepsNothing() throws Exception {
+        final IngestLog ingestLog = new IngestLog();
+        final ZingQueue mq = new ZingQueue(ingestLog, new MetricServiceConfiguration());
+        Assert.assertEquals(0, ingestLog.cursorCount());
+
+        ingestLog.append(Lists.newArrayList(new Metric("fake", 0, 123.45)), "test");
+        Assert.assertEquals(0, mq.size());
+        Assert.assertTrue(mq.poll(10, 0).isEmpty());
+    }
+
+    @Test
+    public void testReAddedReadFirst() throws Exception {
+        final ZingQueue mq = new ZingQueue();
+        final Metric added = new Metric("added", 0, 0);
+        mq.addAll(Lists.newArrayList(added), "test");
+        final Metric reAdded = new Metric("reAdded", 0, 0);
+        reAdded.addTag(ZingQueue.CLIENT_TAG, "test");
+        mq.reAddAll(Lists.newArrayList(reAdded));
+
+        Assert.assertEquals(2, mq.size());
+        Assert.assertEquals(Lists.newArrayList(reAdded, added), mq.poll(10, 0));
+    }
+
+    @Test
+    public void testPollLingersForMore() throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(1);
+        final ZingQueue mq = new ZingQueue();
+        mq.addAll(Lists.newArrayList(new Metric("first", 0, 0)), "test");
+        executorService.submit(() -> {
+            Thread.sleep(50);
+            mq.addAll(Lists.newArrayList(new Metric("second", 0, 0)), "test");
+            return null;
+        });
+
+        Collection<Metric> metrics = mq.poll(2, Long.MAX_VALUE, 5000, 100);
+        Assert.assertEquals(2, metrics.size());
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void testPollLingerExpires() throws Exception {
+        final ZingQueue mq = new ZingQueue();
+        mq.addAll(Lists.newArrayList(new Metric("first", 0, 0)), "test");
+
+        long started = System.nanoTime();
+        Collection<Metric> metrics = mq.poll(10, Long.MAX_VALUE, 50, 100);
+        Assert.assertEquals(1, metrics.size());
+        Assert.assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testPollStopsAtMaxBytes() throws Exception {
+        final ZingQueue mq = new ZingQueue();
+        final Metric metric = new Metric("metric", 0, 0);
+        mq.addAll(Lists.newArrayList(metric, new Metric("metric", 1, 0), new Metric("metric", 2, 0)), "test");
+
+        Collection<Metric> metrics = mq.poll(10, 2L * ZingQueue.estimatedSize(metric), 1000, 100);
+        Assert.assertEquals(2, metrics.size());
+        Assert.assertEquals(1, mq.size());
+    }
+
     @Test
     public void testPollForEmptyQueue() throws InterruptedException, ExecutionException, TimeoutException {
         ExecutorService executorService = Executors.newFixedThreadPool(1);
@@ -13,10 +13,14 @@ package org.zenoss.app.consumer.metric.zing;
 import com.google.common.collect.Lists;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zenoss.app.consumer.metric.MetricServiceConfiguration;
 import org.zenoss.app.consumer.metric.ZingConfiguration;
 import org.zenoss.app.consumer.metric.ZingSender;
 import org.zenoss.app.consumer.metric.data.Metric;
+import org.zenoss.app.consumer.metric.impl.IngestLog;
 import org.zenoss.app.consumer.metric.zing.ZingQueue;
 import org.zenoss.app.consumer.metric.zing.ZingWriter;
 import org.zenoss.app.consumer.metric.zing.ZingWriterRegistry;
@@ -25,6 +29,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -37,6 +42,9 @@ public class ZingWriterTest {
 
     static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     ZingConfiguration configuration;
     ExecutorService executor;
     ZingWriterRegistry registry;
@@ -146,6 +154,7 @@ public class ZingWriterTest {
 
     @Test
     public void testSubmitStopsAfterSendFailure() throws Exception {
+        configuration.setMaxRetries(0);
         ZingWriter writer = new ZingWriter(configuration, registry, metricsQueue, sender);
         executor.submit(writer);
 
@@ -246,10 +255,252 @@ public class ZingWriterTest {
         final Metric noForwardMetric = new Metric("no-forward-metric", 0, 0, noForwardMetricTags);
 
         Collection<Metric> batch = Lists.newArrayList(forwardMetric, noForwardMetric);
-        writer.getForwardMetrics(batch);
-
-        assertNull(forwardMetric.getTags().get(noStoreTagName));
+        Collection<Metric> forwarded = writer.getForwardMetrics(batch);
+
+        assertEquals(1, forwarded.size());
+        Metric forwardedMetric = forwarded.iterator().next();
+        assertEquals("forward-metric", forwardedMetric.getMetric());
+        assertNull(forwardedMetric.getTags().get(noStoreTagName));
+        // The metrics read are left as they were
+        assertEquals("true", forwardMetric.getTags().get(noStoreTagName));
         assertEquals("true", noForwardMetric.getTags().get(noStoreTagName));
     }
 
+    @Test
+    public void testOtherSinksKeepCleanupTags() throws Exception {
+        MetricServiceConfiguration serviceConfiguration = new MetricServiceConfiguration();
+        serviceConfiguration.getZingConfiguration().setEnabled(true);
+        IngestLog ingestLog = new IngestLog();
+        IngestLog.Cursor tsdb = ingestLog.open(mock(IngestLog.Listener.class));
+        ZingQueue zingQueue = new ZingQueue(ingestLog, serviceConfiguration);
+        ZingWriter writer = new ZingWriter(configuration, registry, zingQueue, sender);
+        try {
+            Metric metric = new Metric("metric", 0, 0);
+            metric.addTag("no-store", "true");
+            ingestLog.append(Collections.singletonList(metric), "test");
+
+            Collection<Metric> forwarded = writer.getForwardMetrics(zingQueue.poll(10, 0));
+            assertEquals(1, forwarded.size());
+            assertNull(forwarded.iterator().next().getTags().get("no-store"));
+
+            // TSDB reads the same metric, and must still see that it isn't to be stored
+            Metric stored = tsdb.next();
+            assertSame(metric, stored);
+            assertEquals("true", stored.getTags().get("no-store"));
+        } finally {
+            writer.close();
+            zingQueue.close();
+            tsdb.close();
+        }
+    }
+
+    @Test
+    public void testRetryThenSuccess() throws Exception {
+        configuration.setInitialRetryInterval(1);
+        ZingWriter writer = new ZingWriter(configuration, registry, metricsQueue, sender);
+        Collection<Metric> batch = Lists.newArrayList(new Metric("metric", 0, 0));
+        doThrow(new RuntimeException("mock send fail")).doNothing().when(sender).send(batch);
+        metricsQueue.addAll(batch, "test");
+
+        writer.send(batch);
+
+        verify(sender, times(2)).send(batch);
+        assertEquals(1, metricsQueue.getTotalErrors());
+        assertEquals(1, metricsQueue.getTotalOutgoing());
+        assertEquals(0, metricsQueue.getTotalInFlight());
+        assertEquals(0, metricsQueue.getTotalLost());
+    }
+
+    @Test
+    public void testRetriesLimited() throws Exception {
+        configuration.setMaxRetries(2);
+        configuration.setInitialRetryInterval(1);
+        ZingWriter writer = new ZingWriter(configuration, registry, metricsQueue, sender);
+        Collection<Metric> batch = Lists.newArrayList(new Metric("metric", 0, 0));
+        doThrow(new RuntimeException("mock send fail")).when(sender).send(batch);
+        metricsQueue.addAll(batch, "test");
+
+        writer.send(batch);
+
+        verify(sender, times(3)).send(batch);
+        assertEquals(3, metricsQueue.getTotalErrors());
+        assertEquals(0, metricsQueue.getTotalInFlight());
+        assertEquals(1, metricsQueue.getTotalLost());
+    }
+
+    @Test
+    public void testRetryIntervalBounded() throws Exception {
+        configuration.setInitialRetryInterval(100);
+        configuration.setMaxRetryInterval(1000);
+        ZingWriter writer = new ZingWriter(configuration, registry, metricsQueue, sender);
+        for (int retry = 0; retry < 64; retry++) {
+            long backOff = Math.min(1000, 100L << Math.min(retry, 30));
+            long interval = writer.retryInterval(retry);
+            assertTrue(interval >= backOff / 2 && interval <= backOff);
+        }
+    }
+
+    @Test
+    public void testSpillWhileCircuitOpen() throws Exception {
+        configuration.setEnabled(true);
+        configuration.setMaxRetries(0);
+        configuration.setCircuitFailureThreshold(1);
+        configuration.setCircuitOpenTime(60000);
+        configuration.getSpillConfiguration().setEnabled(true);
+        configuration.getSpillConfiguration().setDirectory(folder.getRoot().getPath());
+        ZingWriter writer = new ZingWriter(configuration, registry, metricsQueue, sender);
+        Collection<Metric> first = Lists.newArrayList(new Metric("first", 0, 0));
+        Collection<Metric> second = Lists.newArrayList(new Metric("second", 0, 0));
+        doThrow(new RuntimeException("mock send fail")).when(sender).send(first);
+        metricsQueue.addAll(first, "test");
+        metricsQueue.addAll(second, "test");
+
+        writer.send(first);
+        assertEquals(CircuitBreaker.State.OPEN, writer.getBreaker().state());
+        // Not even tried while the circuit is open
+        writer.send(second);
+        verify(sender, never()).send(second);
+
+        assertEquals(1, metricsQueue.getTotalErrors());
+        assertEquals(2, metricsQueue.getTotalInFlight());
+        assertEquals(0, metricsQueue.getTotalLost());
+        writer.close();
+    }
+
+    @Test
+    public void testNoPollingWhileCircuitOpen() throws Exception {
+        configuration.setMaxRetries(0);
+        configuration.setMaxRetryInterval(10);
+        configuration.setCircuitFailureThreshold(1);
+        configuration.setCircuitOpenTime(60000);
+        ZingWriter writer = new ZingWriter(configuration, registry, metricsQueue, sender);
+        Collection<Metric> first = Lists.newArrayList(new Metric("first", 0, 0));
+        doThrow(new RuntimeException("mock send fail")).when(sender).send(first);
+        metricsQueue.addAll(first, "test");
+        metricsQueue.poll(1, 0);
+        writer.send(first);
+        assertTrue(writer.getBreaker().isOpen());
+
+        metricsQueue.addAll(Lists.newArrayList(new Metric("second", 0, 0)), "test");
+        Future<?> running = executor.submit(writer);
+        Thread.sleep(100);
+        writer.cancel();
+        running.get(5, TimeUnit.SECONDS);
+
+        // Still queued, rather than given up
+        assertEquals(1, metricsQueue.size());
+        verify(sender, times(1)).send(anyCollectionOf(Metric.class));
+        assertEquals(1, metricsQueue.getTotalLost());
+    }
+
+    @Test
+    public void testRetriesWaitOutOpenCircuit() throws Exception {
+        configuration.setMaxRetries(10);
+        configuration.setInitialRetryInterval(10);
+        configuration.setMaxRetryInterval(20);
+        configuration.setCircuitFailureThreshold(1);
+        configuration.setCircuitOpenTime(30);
+        ZingWriter writer = new ZingWriter(configuration, registry, metricsQueue, sender);
+        Collection<Metric> batch = Lists.newArrayList(new Metric("metric", 0, 0));
+        doThrow(new RuntimeException("mock send fail")).doNothing().when(sender).send(batch);
+        metricsQueue.addAll(batch, "test");
+        metricsQueue.poll(1, 0);
+
+        writer.send(batch);
+
+        verify(sender, times(2)).send(batch);
+        assertEquals(CircuitBreaker.State.CLOSED, writer.getBreaker().state());
+        assertEquals(1, metricsQueue.getTotalOutgoing());
+        assertEquals(0, metricsQueue.getTotalLost());
+    }
+
+    @Test
+    public void testSpilledSentOnceCircuitCloses() throws Exception {
+        configuration.setEnabled(true);
+        configuration.setMaxRetries(0);
+        configuration.setCircuitFailureThreshold(1);
+        configuration.setCircuitOpenTime(1);
+        configuration.getSpillConfiguration().setEnabled(true);
+        configuration.getSpillConfiguration().setDirectory(folder.getRoot().getPath());
+        ZingWriter writer = new ZingWriter(configuration, registry, metricsQueue, sender);
+        Collection<Metric> batch = Lists.newArrayList(new Metric("metric", 0, 0));
+        doThrow(new RuntimeException("mock send fail")).doNothing().when(sender).send(batch);
+        metricsQueue.addAll(batch, "test");
+        metricsQueue.poll(1, 0);
+
+        writer.send(batch);
+        assertEquals(1, metricsQueue.getTotalInFlight());
+        Thread.sleep(5);
+
+        executor.submit(writer).get(5, TimeUnit.SECONDS);
+
+        verify(sender, times(2)).send(batch);
+        assertEquals(1, metricsQueue.getTotalOutgoing());
+        assertEquals(0, metricsQueue.getTotalInFlight());
+        assertEquals(0, metricsQueue.getTotalLost());
+        writer.close();
+    }
+
+    @Test
+    public void testRequestsInFlightLimited() throws Exception {
+        configuration.setMaxInFlightRequests(2);
+        final ZingWriter writer = new ZingWriter(configuration, registry, metricsQueue, sender);
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            return null;
+        }).when(sender).send(anyCollectionOf(Metric.class));
+        final Collection<Metric> first = Lists.newArrayList(new Metric("first", 0, 0));
+        final Collection<Metric> second = Lists.newArrayList(new Metric("second", 0, 0));
+        final Collection<Metric> third = Lists.newArrayList(new Metric("third", 0, 0));
+        metricsQueue.addAll(first, "test");
+        metricsQueue.addAll(second, "test");
+        metricsQueue.addAll(third, "test");
+
+        // Neither waits for its request
+        writer.processBatch(first);
+        writer.processBatch(second);
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        // Both request threads are busy, so the third batch waits for one
+        Future<?> dispatched = executor.submit(() -> writer.processBatch(third));
+        Thread.sleep(50);
+        assertFalse(dispatched.isDone());
+        verify(sender, never()).send(third);
+
+        release.countDown();
+        dispatched.get(1, TimeUnit.SECONDS);
+        writer.close();
+        verify(sender).send(third);
+        assertEquals(3, metricsQueue.getTotalOutgoing());
+        assertEquals(0, metricsQueue.getTotalInFlight());
+    }
+
+    @Test
+    public void testBatchSizeGrowsWithQueue() throws Exception {
+        configuration.setBatchSize(5);
+        configuration.setMaxBatchSize(100);
+        ZingWriter writer = new ZingWriter(configuration, registry, metricsQueue, sender);
+        assertEquals(5, writer.targetBatchSize());
+
+        Collection<Metric> batch = Lists.newArrayList();
+        for (int i = 0; i < 60; i++) {
+            batch.add(new Metric("metric", i, 0));
+        }
+        metricsQueue.addAll(batch, "test");
+        assertEquals(60, writer.targetBatchSize());
+
+        // Shared between writers
+        when(registry.size()).thenReturn(3);
+        assertEquals(20, writer.targetBatchSize());
+
+        metricsQueue.addAll(batch, "test");
+        metricsQueue.addAll(batch, "test");
+        metricsQueue.addAll(batch, "test");
+        when(registry.size()).thenReturn(1);
+        assertEquals(100, writer.targetBatchSize());
+    }
+
 }
@@ -1,75 +1,548 @@
 package org.zenoss.app.consumer.metric.data;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.io.CharStreams;
-import org.xerial.snappy.SnappyInputStream;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyCodec;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
 
 
+/**
+ * Decodes the binary frames collectors send over a websocket. Codes in a
+ * frame refer to a dictionary that the connection builds up across frames,
+ * so there is one decoder per connection. Buffers are reused from one frame
+ * to the next, so a decoder must not be used by two threads at once.
+ *
+ * A frame is snappy compressed, either as a single block or in the chunked
+ * format of {@link org.xerial.snappy.SnappyOutputStream}. Uncompressed, a
+ * frame of metrics is
+ * <pre>
+ *   byte    version (0)
+ *   short   number of metrics
+ *   for each metric:
+ *     double  timestamp
+ *     int     name code
+ *     double  value
+ *     byte    number of tags
+ *     int,int tag key code and tag value code, for each tag
+ *   JSON object mapping codes to strings, for codes new to the connection
+ * </pre>
+ * The metrics are read into primitive arrays as the frame is scanned, then
+ * built once the dictionary at the end has been read.
+ *
+ * Version 1 frames, written by {@link BinaryEncoder}, carry their dictionary
+ * first and pack everything else into variable length fields:
+ * <pre>
+ *   byte    version (1)
+ *   varint  number of dictionary entries
+ *   for each entry:
+ *     varint  code
+ *     varint  length of the string in bytes
+ *     bytes   the string, UTF-8
+ *   int     number of metrics, unsigned
+ *   for each metric:
+ *     varint  name code
+ *     varlong timestamp, as the zigzag encoded change from the last metric's
+ *             change (the first is the timestamp itself, the second the
+ *             difference from the first)
+ *     byte    XOR header: the low nibble is the number of bytes n of the
+ *             value's bits XOR the last metric's value bits (0 if they are
+ *             equal), the high nibble the number of zero bytes shifted off
+ *             the end of them
+ *     bytes   the n significant XOR bytes, most significant first
+ *     varint  number of tags
+ *     varint,varint tag key code and tag value code, for each tag
+ * </pre>
+ * Varints are unsigned, seven bits to a byte with the high bit set on every
+ * byte but the last, least significant first.
+ *
+ * Once a connection has sent a version 1 or dictionary frame, which only
+ * collectors that handle {@link UnknownCodeException} do, its dictionary holds
+ * a bounded number of codes, evicting those least recently used to make room.
+ * Until then it holds every code it is sent, as version 0 collectors don't
+ * know to send them again. A frame that refers to a code the dictionary
+ * doesn't hold fails with {@link UnknownCodeException}; the collector is then
+ * expected to forget its codes, as after a {@link #RESET} frame, and resend.
+ * Collectors can also manage the dictionary themselves with a dictionary
+ * frame:
+ * <pre>
+ *   byte    {@link #DICTIONARY_FRAME}
+ *   byte    {@link #RESET} to drop every code, or {@link #EVICT} to drop some
+ *   int     number of codes to drop (EVICT only)
+ *   int     code, for each code to drop (EVICT only)
+ * </pre>
+ * Strings are deduplicated through a {@link StringPool} rather than interned.
+ */
 public class BinaryDecoder {
 
-    private static final ObjectMapper mapper = new ObjectMapper();
-    private final Map<Integer, String> dictionary = new HashMap<>();
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final byte[] MAGIC_HEADER = SnappyCodec.MAGIC_HEADER;
+    private static final int HEADER_SIZE = SnappyCodec.headerSize();
+    private static final int INITIAL_FRAME_SIZE = 64 * 1024;
+    private static final int INITIAL_METRICS = 1024;
 
-    private static class EncodedMetric {
-        final long timestamp;
-        final int metric;
-        final double value;
-        final Map<Integer, Integer> tags;
+    /** Leading byte of a frame of metrics in the original format */
+    public static final byte VERSION_0 = 0;
 
-        public EncodedMetric(long timestamp, int metric, double value, Map<Integer, Integer> tags) {
-            this.timestamp = timestamp;
-            this.metric = metric;
-            this.value = value;
-            this.tags = tags;
-        }
+    /** Leading byte of a frame of metrics with its dictionary first and packed fields */
+    public static final byte VERSION_1 = 1;
+
+    /** Fewest bytes a metric takes in a version 1 frame */
+    private static final int MIN_V1_METRIC_SIZE = 4;
+
+    /** Leading byte of a frame that changes the dictionary */
+    public static final byte DICTIONARY_FRAME = (byte) 0xff;
+
+    /** Dictionary frame operation dropping every code */
+    public static final byte RESET = 0;
+
+    /** Dictionary frame operation dropping the codes listed */
+    public static final byte EVICT = 1;
+
+    public static final int DEFAULT_MAX_DICTIONARY_SIZE = 100000;
+
+    private static final StringPool DEFAULT_STRING_POOL = new StringPool(1 << 16);
+
+    private final CodeDictionary dictionary;
+    private final StringPool stringPool;
+
+    // Reused from frame to frame
+    private byte[] compressed = new byte[0];
+    private byte[] uncompressed = new byte[INITIAL_FRAME_SIZE];
+    private ByteBuffer frame = ByteBuffer.wrap(uncompressed);
+    private long[] timestamps = new long[INITIAL_METRICS];
+    private int[] names = new int[INITIAL_METRICS];
+    private double[] values = new double[INITIAL_METRICS];
+    private int[] tagCounts = new int[INITIAL_METRICS];
+    private int[] tagCodes = new int[INITIAL_METRICS * 8];
+    private String[] nameStrings = new String[INITIAL_METRICS];
+    private String[] tagStrings = new String[INITIAL_METRICS * 8];
+    private int[] entryCodes = new int[INITIAL_METRICS];
+    private String[] entryStrings = new String[INITIAL_METRICS];
+
+    public BinaryDecoder() {
+        this(DEFAULT_MAX_DICTIONARY_SIZE, DEFAULT_STRING_POOL);
+    }
+
+    /**
+     * @param maxDictionarySize most codes to hold for the connection
+     * @param stringPool pool deduplicating the strings codes stand for
+     */
+    public BinaryDecoder(int maxDictionarySize, StringPool stringPool) {
+        this.dictionary = new CodeDictionary(maxDictionarySize);
+        this.dictionary.setBounded(false);
+        this.stringPool = stringPool;
+    }
+
+    /**
+     * Forget every code, as when the collector sends a {@link #RESET} frame.
+     */
+    public void reset() {
+        dictionary.clear();
     }
 
-    private String translate(int encoded) {
-        return dictionary.get(encoded);
+    /**
+     * @return whether codes are evicted to hold at most the maximum, which
+     *         they are once the connection has sent a version 1 or dictionary frame
+     */
+    public boolean isDictionaryBounded() {
+        return dictionary.isBounded();
+    }
+
+    /**
+     * @return number of codes held
+     */
+    public int dictionarySize() {
+        return dictionary.size();
+    }
+
+    private String translate(int encoded) throws UnknownCodeException {
+        final String s = dictionary.get(encoded);
+        if (s == null) {
+            throw new UnknownCodeException(encoded);
+        }
+        return s;
     }
 
     public Message decode(byte[] data) throws IOException {
+        final List<Metric> metrics = new ArrayList<>();
+        decode(ByteBuffer.wrap(data), metrics::add);
         Message msg = new Message();
-        DataInputStream stream = new DataInputStream(new SnappyInputStream(new ByteArrayInputStream(data)));
-        stream.readByte(); //ignore first 0 byte, used for later protocol changes
-        short numMetrics = stream.readShort();
-        EncodedMetric[] encodedMetrics = new EncodedMetric[numMetrics];
-        Metric[] metrics = new Metric[numMetrics];
-        msg.setMetrics(metrics);
+        msg.setMetrics(metrics.toArray(new Metric[metrics.size()]));
+        return msg;
+    }
+
+    /**
+     * Decode a frame, handing each of its metrics to a sink in the order
+     * they were sent. Nothing is handed over if decoding fails.
+     *
+     * @param data the frame, from its position to its limit; it is consumed
+     * @param sink receives the metrics
+     * @return the number of metrics decoded, 0 for a dictionary frame
+     * @throws UnknownCodeException if the frame refers to a code that isn't held
+     * @throws IOException if the frame is corrupt or truncated
+     */
+    public int decode(ByteBuffer data, Consumer<Metric> sink) throws IOException {
+        final ByteBuffer frame = uncompress(data);
+        try {
+            final byte version = frame.get();
+            if (version == DICTIONARY_FRAME) {
+                dictionary.setBounded(true);
+                readDictionaryFrame(frame);
+                return 0;
+            }
+            if (version == VERSION_1) {
+                dictionary.setBounded(true);
+                return decodeV1(frame, sink);
+            }
+            if (version != VERSION_0) {
+                throw new IOException("Unsupported frame version: " + version);
+            }
+            final int numMetrics = frame.getShort();
+            if (numMetrics < 0) {
+                throw new IOException("Invalid number of metrics: " + numMetrics);
+            }
+            readMetrics(frame, numMetrics);
+            dictionary.startFrame();
+            final int tags = lookUpHeldCodes(numMetrics);
+            if (readDictionary(frame)) {
+                // Codes were given new strings; don't use the old ones
+                Arrays.fill(nameStrings, 0, numMetrics, null);
+                Arrays.fill(tagStrings, 0, tags, null);
+            }
+            lookUpNewCodes(numMetrics, tags);
+            emitMetrics(numMetrics, sink);
+            return numMetrics;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame", e);
+        }
+    }
+
+    private void readDictionaryFrame(ByteBuffer frame) throws IOException {
+        final byte operation = frame.get();
+        if (operation == RESET) {
+            dictionary.clear();
+        } else if (operation == EVICT) {
+            final int count = frame.getInt();
+            if (count < 0 || count > frame.remaining() / 4) {
+                throw new IOException("Invalid number of codes to evict: " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                dictionary.remove(frame.getInt());
+            }
+        } else {
+            throw new IOException("Unknown dictionary operation: " + operation);
+        }
+    }
+
+    private int decodeV1(ByteBuffer frame, Consumer<Metric> sink) throws IOException {
+        final int entries = readVarint(frame);
+        if (entries < 0 || entries > frame.remaining() / 2) {
+            throw new IOException("Invalid number of dictionary entries: " + entries);
+        }
+        if (entries > entryCodes.length) {
+            entryCodes = new int[Math.max(entries, entryCodes.length * 2)];
+            entryStrings = new String[entryCodes.length];
+        }
+        for (int i = 0; i < entries; i++) {
+            entryCodes[i] = readVarint(frame);
+            final int length = readVarint(frame);
+            if (length < 0 || length > frame.remaining()) {
+                throw new IOException("Invalid dictionary string length: " + length);
+            }
+            entryStrings[i] = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+            frame.position(frame.position() + length);
+        }
+
+        final long count = frame.getInt() & 0xffffffffL;
+        if (count > frame.remaining() / MIN_V1_METRIC_SIZE) {
+            throw new IOException("Invalid number of metrics: " + count);
+        }
+        final int numMetrics = (int) count;
+        readMetricsV1(frame, numMetrics);
+        // As for version 0, pin the codes held before the entries can evict them
+        dictionary.startFrame();
+        final int tags = lookUpHeldCodes(numMetrics);
+        if (putEntries(entries)) {
+            Arrays.fill(nameStrings, 0, numMetrics, null);
+            Arrays.fill(tagStrings, 0, tags, null);
+        }
+        lookUpNewCodes(numMetrics, tags);
+        emitMetrics(numMetrics, sink);
+        return numMetrics;
+    }
+
+    private void readMetricsV1(ByteBuffer frame, int numMetrics) throws IOException {
+        ensureMetricCapacity(numMetrics);
+        long timestamp = 0;
+        long delta = 0;
+        long bits = 0;
+        int tag = 0;
         for (int i = 0; i < numMetrics; i++) {
-            long timestamp = (long) stream.readDouble();
-            int metricEnc = stream.readInt();
-            double metricVal = stream.readDouble();
-            Map<Integer, Integer> encodedTags = new HashMap<>();
-            byte numTags = stream.readByte();
+            names[i] = readVarint(frame);
+
+            final long change = delta + zigzag(readVarlong(frame));
+            timestamp += change;
+            timestamps[i] = timestamp;
+            delta = i == 0 ? 0 : change;
+
+            final int header = frame.get() & 0xff;
+            final int significant = header & 0x0f;
+            final int shift = header >>> 4;
+            if (significant > 8 || significant + shift > 8) {
+                throw new IOException("Invalid value header: " + header);
+            }
+            long xor = 0;
+            for (int j = 0; j < significant; j++) {
+                xor = (xor << 8) | (frame.get() & 0xff);
+            }
+            bits ^= xor << (shift * 8);
+            values[i] = Double.longBitsToDouble(bits);
+
+            final int numTags = readVarint(frame);
+            if (numTags < 0 || numTags > frame.remaining() / 2) {
+                throw new IOException("Invalid number of tags: " + numTags);
+            }
+            tagCounts[i] = numTags;
+            if (tag + numTags * 2 > tagCodes.length) {
+                tagCodes = Arrays.copyOf(tagCodes, Math.max(tag + numTags * 2, tagCodes.length * 2));
+            }
+            for (int j = 0; j < numTags * 2; j++) {
+                tagCodes[tag++] = readVarint(frame);
+            }
+        }
+    }
+
+    /**
+     * Add the dictionary entries read from a version 1 frame.
+     *
+     * @return true if a code held was given a different string
+     */
+    private boolean putEntries(int entries) {
+        boolean redefined = false;
+        for (int i = 0; i < entries; i++) {
+            final String current = dictionary.get(entryCodes[i]);
+            redefined |= current != null && !current.equals(entryStrings[i]);
+            dictionary.put(entryCodes[i], stringPool.intern(entryStrings[i]));
+        }
+        Arrays.fill(entryStrings, 0, entries, null);
+        return redefined;
+    }
+
+    /** Read an unsigned varint of up to 32 bits */
+    static int readVarint(ByteBuffer in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final byte b = in.get();
+            result |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /** Read an unsigned varint of up to 64 bits */
+    static long readVarlong(ByteBuffer in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            final byte b = in.get();
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long zigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private void ensureMetricCapacity(int numMetrics) {
+        if (numMetrics > names.length) {
+            final int size = Math.max(numMetrics, names.length * 2);
+            timestamps = new long[size];
+            names = new int[size];
+            values = new double[size];
+            tagCounts = new int[size];
+            nameStrings = new String[size];
+        }
+    }
+
+    private void readMetrics(ByteBuffer frame, int numMetrics) {
+        ensureMetricCapacity(numMetrics);
+        int tag = 0;
+        for (int i = 0; i < numMetrics; i++) {
+            timestamps[i] = (long) frame.getDouble();
+            names[i] = frame.getInt();
+            values[i] = frame.getDouble();
+            final int numTags = Math.max(0, frame.get());
+            tagCounts[i] = numTags;
+            if (tag + numTags * 2 > tagCodes.length) {
+                tagCodes = Arrays.copyOf(tagCodes, Math.max(tag + numTags * 2, tagCodes.length * 2));
+            }
             for (int j = 0; j < numTags; j++) {
-                encodedTags.put(stream.readInt(), stream.readInt());
+                tagCodes[tag++] = frame.getInt();
+                tagCodes[tag++] = frame.getInt();
             }
-            encodedMetrics[i] = new EncodedMetric(timestamp, metricEnc, metricVal, encodedTags);
         }
-        String json = CharStreams.toString(new InputStreamReader(stream, "UTF-8"));
-        Map<String, String> map = mapper.readValue(json, new TypeReference<HashMap<String, String>>() {
-        });
-        for (Map.Entry<String, String> entry : map.entrySet()) {
-            dictionary.put(Integer.parseInt(entry.getKey()), entry.getValue().intern());
+    }
+
+    /**
+     * @return true if a code held was given a different string
+     */
+    private boolean readDictionary(ByteBuffer frame) throws IOException {
+        if (!frame.hasRemaining()) {
+            return false;
         }
-        for (int z = 0; z < encodedMetrics.length; z++) {
-            EncodedMetric em = encodedMetrics[z];
-            Metric met = new Metric(translate(em.metric), em.timestamp, em.value);
-            for (Map.Entry<Integer, Integer> entry : em.tags.entrySet()) {
-                met.addTag(translate(entry.getKey()), translate(entry.getValue()));
+        boolean redefined = false;
+        try (JsonParser parser = jsonFactory.createParser(frame.array(), frame.position(), frame.remaining())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Invalid dictionary");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final int code;
+                try {
+                    code = Integer.parseInt(parser.getCurrentName());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid dictionary code: " + parser.getCurrentName());
+                }
+                parser.nextToken();
+                final String value = parser.getValueAsString();
+                if (value == null) {
+                    throw new IOException("Invalid dictionary value for code " + code);
+                }
+                final String current = dictionary.get(code);
+                redefined |= current != null && !current.equals(value);
+                dictionary.put(code, stringPool.intern(value));
             }
-            metrics[z] = met;
         }
-        msg.setMetrics(metrics);
-        return msg;
+        frame.position(frame.limit());
+        return redefined;
+    }
+
+    /**
+     * Look up the codes the dictionary already holds before the frame's own
+     * entries are added, which pins them for the frame.
+     *
+     * @return the number of tag codes in the frame
+     */
+    private int lookUpHeldCodes(int numMetrics) {
+        int tags = 0;
+        for (int i = 0; i < numMetrics; i++) {
+            nameStrings[i] = dictionary.get(names[i]);
+            tags += tagCounts[i] * 2;
+        }
+        if (tags > tagStrings.length) {
+            tagStrings = new String[Math.max(tags, tagStrings.length * 2)];
+        }
+        for (int i = 0; i < tags; i++) {
+            tagStrings[i] = dictionary.get(tagCodes[i]);
+        }
+        return tags;
+    }
+
+    /** Look up the rest, so a frame is all or nothing */
+    private void lookUpNewCodes(int numMetrics, int tags) throws UnknownCodeException {
+        for (int i = 0; i < numMetrics; i++) {
+            if (nameStrings[i] == null) {
+                nameStrings[i] = translate(names[i]);
+            }
+        }
+        for (int i = 0; i < tags; i++) {
+            if (tagStrings[i] == null) {
+                tagStrings[i] = translate(tagCodes[i]);
+            }
+        }
+    }
+
+    private void emitMetrics(int numMetrics, Consumer<Metric> sink) {
+        int tag = 0;
+        for (int i = 0; i < numMetrics; i++) {
+            Metric met = new Metric(nameStrings[i], timestamps[i], values[i]);
+            for (int j = 0; j < tagCounts[i]; j++) {
+                met.addTag(tagStrings[tag], tagStrings[tag + 1]);
+                tag += 2;
+            }
+            sink.accept(met);
+        }
+        // Don't hold on to the strings until the next frame
+        Arrays.fill(nameStrings, 0, numMetrics, null);
+        Arrays.fill(tagStrings, 0, tag, null);
+    }
+
+    /**
+     * Uncompress a frame into the reused buffer, the way
+     * {@link org.xerial.snappy.SnappyInputStream} would read it.
+     */
+    private ByteBuffer uncompress(ByteBuffer data) throws IOException {
+        final byte[] in;
+        final int offset;
+        final int length = data.remaining();
+        if (data.hasArray()) {
+            in = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            if (compressed.length < length) {
+                compressed = new byte[length];
+            }
+            data.duplicate().get(compressed, 0, length);
+            in = compressed;
+            offset = 0;
+        }
+        data.position(data.limit());
+        if (length == 0) {
+            throw new IOException("Cannot decompress empty stream");
+        }
+
+        int size;
+        if (length < HEADER_SIZE || in[offset] != MAGIC_HEADER[0]) {
+            // A single block without the stream header
+            size = uncompressBlock(in, offset, length, 0);
+        } else {
+            for (int i = 0; i < MAGIC_HEADER.length; i++) {
+                if (in[offset + i] != MAGIC_HEADER[i]) {
+                    throw new IOException("Invalid snappy stream header");
+                }
+            }
+            size = 0;
+            int position = offset + HEADER_SIZE;
+            final int end = offset + length;
+            while (position < end) {
+                if (end - position < 4) {
+                    throw new IOException("failed to read chunk");
+                }
+                final int chunkSize = ((in[position] & 0xff) << 24) | ((in[position + 1] & 0xff) << 16) |
+                        ((in[position + 2] & 0xff) << 8) | (in[position + 3] & 0xff);
+                position += 4;
+                if (chunkSize < 0 || chunkSize > end - position) {
+                    throw new IOException("failed to read chunk");
+                }
+                size += uncompressBlock(in, position, chunkSize, size);
+                position += chunkSize;
+            }
+        }
+        frame.clear();
+        frame.limit(size);
+        return frame;
+    }
+
+    private int uncompressBlock(byte[] in, int offset, int length, int at) throws IOException {
+        final int size = Snappy.uncompressedLength(in, offset, length);
+        if (at + size > uncompressed.length) {
+            uncompressed = Arrays.copyOf(uncompressed, Math.max(at + size, uncompressed.length * 2));
+            frame = ByteBuffer.wrap(uncompressed);
+        }
+        return Snappy.uncompress(in, offset, length, uncompressed, at);
     }
 }
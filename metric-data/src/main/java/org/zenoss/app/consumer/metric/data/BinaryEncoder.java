@@ -0,0 +1,213 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes version 1 frames, as described on {@link BinaryDecoder}, for one
+ * websocket connection. Strings are given codes the first time they are
+ * written and only sent with the frame that introduces them. Collectors
+ * should call {@link #reset()} and send the frame it returns when the
+ * consumer answers with {@link Control.Type#DICTIONARY_RESET}.
+ *
+ * Buffers are reused from one frame to the next, so an encoder must not be
+ * used by two threads at once.
+ */
+public class BinaryEncoder {
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Encode metrics into a snappy compressed frame.
+     *
+     * @throws IllegalArgumentException if a metric has no name, or a tag has no key or value
+     */
+    public byte[] encode(List<Metric> metrics) throws IOException {
+        added.clear();
+        body.clear();
+        try {
+            writeMetrics(metrics);
+        } catch (RuntimeException e) {
+            // Those codes were never sent
+            for (String s : added) {
+                codes.remove(s);
+            }
+            throw e;
+        }
+
+        frame.clear();
+        frame.writeByte(BinaryDecoder.VERSION_1);
+        frame.writeVarint(added.size());
+        for (String s : added) {
+            final byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            frame.writeVarint(codes.get(s));
+            frame.writeVarint(utf8.length);
+            frame.write(utf8, 0, utf8.length);
+        }
+        frame.writeInt(metrics.size());
+        frame.write(body.bytes, 0, body.length);
+        return compress(frame);
+    }
+
+    private void writeMetrics(List<Metric> metrics) {
+        long previous = 0;
+        long delta = 0;
+        long bits = 0;
+        for (int i = 0; i < metrics.size(); i++) {
+            final Metric metric = metrics.get(i);
+            body.writeVarint(code(metric.getMetric()));
+
+            final long timestamp = metric.getTimestamp();
+            final long change = timestamp - previous;
+            final long dod = change - delta;
+            body.writeVarlong((dod << 1) ^ (dod >> 63));
+            previous = timestamp;
+            delta = i == 0 ? 0 : change;
+
+            final long valueBits = Double.doubleToRawLongBits(metric.getValue());
+            writeXor(valueBits ^ bits);
+            bits = valueBits;
+
+            final Map<String, String> tags = metric.getTags();
+            body.writeVarint(tags == null ? 0 : tags.size());
+            if (tags != null) {
+                for (Map.Entry<String, String> tag : tags.entrySet()) {
+                    body.writeVarint(code(tag.getKey()));
+                    body.writeVarint(code(tag.getValue()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget every code, so strings are sent again as they are next written.
+     *
+     * @return a frame telling the consumer to forget them too
+     */
+    public byte[] reset() throws IOException {
+        codes.clear();
+        frame.clear();
+        frame.writeByte(BinaryDecoder.DICTIONARY_FRAME);
+        frame.writeByte(BinaryDecoder.RESET);
+        return compress(frame);
+    }
+
+    /**
+     * @return number of strings with codes
+     */
+    public int dictionarySize() {
+        return codes.size();
+    }
+
+    private int code(String s) {
+        if (s == null) {
+            throw new IllegalArgumentException("Metric names, tag keys and tag values can't be null");
+        }
+        Integer code = codes.get(s);
+        if (code == null) {
+            code = codes.size();
+            codes.put(s, code);
+            added.add(s);
+        }
+        return code;
+    }
+
+    private void writeXor(long xor) {
+        if (xor == 0) {
+            body.writeByte(0);
+            return;
+        }
+        final int shift = Long.numberOfTrailingZeros(xor) / 8;
+        final long shifted = xor >>> (shift * 8);
+        final int significant = 8 - Long.numberOfLeadingZeros(shifted) / 8;
+        body.writeByte((shift << 4) | significant);
+        for (int i = significant - 1; i >= 0; i--) {
+            body.writeByte((int) (shifted >>> (i * 8)));
+        }
+    }
+
+    private byte[] compress(Bytes uncompressed) throws IOException {
+        final int max = Snappy.maxCompressedLength(uncompressed.length);
+        if (compressed.length < max) {
+            compressed = new byte[max];
+        }
+        final int size = Snappy.compress(uncompressed.bytes, 0, uncompressed.length, compressed, 0);
+        return Arrays.copyOf(compressed, size);
+    }
+
+    /** A growable byte array */
+    private static final class Bytes {
+        private byte[] bytes = new byte[INITIAL_BUFFER_SIZE];
+        private int length;
+
+        void clear() {
+            length = 0;
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void writeInt(int i) {
+            ensure(4);
+            bytes[length++] = (byte) (i >>> 24);
+            bytes[length++] = (byte) (i >>> 16);
+            bytes[length++] = (byte) (i >>> 8);
+            bytes[length++] = (byte) i;
+        }
+
+        void writeVarint(int i) {
+            ensure(5);
+            while ((i & ~0x7f) != 0) {
+                bytes[length++] = (byte) ((i & 0x7f) | 0x80);
+                i >>>= 7;
+            }
+            bytes[length++] = (byte) i;
+        }
+
+        void writeVarlong(long l) {
+            ensure(10);
+            while ((l & ~0x7fL) != 0) {
+                bytes[length++] = (byte) ((l & 0x7f) | 0x80);
+                l >>>= 7;
+            }
+            bytes[length++] = (byte) l;
+        }
+
+        void write(byte[] b, int offset, int count) {
+            ensure(count);
+            System.arraycopy(b, offset, bytes, length, count);
+            length += count;
+        }
+
+        private void ensure(int more) {
+            if (length + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + more, bytes.length * 2));
+            }
+        }
+    }
+
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> added = new ArrayList<>();
+    private final Bytes body = new Bytes();
+    private final Bytes frame = new Bytes();
+    private byte[] compressed = new byte[0];
+}
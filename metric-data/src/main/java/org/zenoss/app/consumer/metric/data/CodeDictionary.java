@@ -0,0 +1,229 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import java.util.Arrays;
+
+/**
+ * Maps the int codes of a websocket connection to their strings, holding at
+ * most a fixed number of them. Entries live in an open addressed table of
+ * primitive keys. When the table is full the next code added replaces one
+ * that hasn't been looked up since the clock hand last passed it (the CLOCK
+ * approximation of least recently used). Codes looked up or added since
+ * {@link #startFrame()} are only evicted if nothing else can be, so a frame
+ * doesn't push out the codes it uses itself. An unbounded dictionary grows
+ * without evicting anything. Not thread safe.
+ */
+final class CodeDictionary {
+
+    private static final int INITIAL_SLOTS = 1024;
+
+    /**
+     * @param maxSize most codes held at once
+     */
+    CodeDictionary(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        allocate(Math.min(INITIAL_SLOTS, slotsFor(maxSize)));
+    }
+
+    /**
+     * Hold at most maxSize codes, or any number of them. Bounding a dictionary
+     * holding more codes evicts down to maxSize at once.
+     */
+    void setBounded(boolean bounded) {
+        this.bounded = bounded;
+        while (bounded && size > maxSize) {
+            evict();
+        }
+    }
+
+    boolean isBounded() {
+        return bounded;
+    }
+
+    /**
+     * Start decoding another frame, unpinning the codes of the last one.
+     */
+    void startFrame() {
+        frame++;
+    }
+
+    /**
+     * @return the string for a code, or null if it isn't held
+     */
+    String get(int code) {
+        for (int slot = home(code); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == code) {
+                referenced[slot] = true;
+                frames[slot] = frame;
+                return values[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set the string for a code, evicting another code if the dictionary is full.
+     *
+     * @return the code evicted to make room, or null if none was
+     */
+    Integer put(int code, String value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        int slot = find(code);
+        if (values[slot] != null) {
+            values[slot] = value;
+            referenced[slot] = true;
+            frames[slot] = frame;
+            return null;
+        }
+        Integer evicted = null;
+        if (bounded && size >= maxSize) {
+            evicted = evict();
+            slot = find(code);
+        } else if ((size + 1) * 2 > keys.length && (!bounded || keys.length < slotsFor(maxSize))) {
+            allocate(keys.length * 2);
+            slot = find(code);
+        }
+        keys[slot] = code;
+        values[slot] = value;
+        referenced[slot] = true;
+        frames[slot] = frame;
+        size++;
+        return evicted;
+    }
+
+    /**
+     * @return true if the code was held
+     */
+    boolean remove(int code) {
+        final int slot = find(code);
+        if (values[slot] == null) {
+            return false;
+        }
+        removeAt(slot);
+        return true;
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+        Arrays.fill(referenced, false);
+        size = 0;
+        hand = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    /** Slot holding the code, or the empty slot where it would go */
+    private int find(int code) {
+        int slot = home(code);
+        while (values[slot] != null && keys[slot] != code) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int home(int code) {
+        final int h = code * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /** Evict the first code the hand finds that hasn't been looked up since it last came by */
+    private int evict() {
+        // Two passes clear every reference bit; after that even pinned codes go
+        for (int passed = 0; ; passed++) {
+            hand = (hand + 1) & mask;
+            if (values[hand] == null) {
+                continue;
+            }
+            final boolean pinned = frames[hand] == frame && passed <= 2 * keys.length;
+            if (referenced[hand] || pinned) {
+                referenced[hand] = false;
+                continue;
+            }
+            final int code = keys[hand];
+            removeAt(hand);
+            return code;
+        }
+    }
+
+    /** Empty a slot, shifting back the entries after it that probed past it */
+    private void removeAt(int slot) {
+        int free = slot;
+        values[free] = null;
+        referenced[free] = false;
+        size--;
+        for (int i = (free + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            final int home = home(keys[i]);
+            // Entries whose home lies cyclically in (free, i] are still reachable
+            final boolean reachable = free <= i ? (home > free && home <= i) : (home > free || home <= i);
+            if (!reachable) {
+                keys[free] = keys[i];
+                values[free] = values[i];
+                referenced[free] = referenced[i];
+                frames[free] = frames[i];
+                values[i] = null;
+                referenced[i] = false;
+                free = i;
+            }
+        }
+    }
+
+    private void allocate(int slots) {
+        final int[] oldKeys = keys;
+        final String[] oldValues = values;
+        final boolean[] oldReferenced = referenced;
+        final int[] oldFrames = frames;
+        keys = new int[slots];
+        values = new String[slots];
+        referenced = new boolean[slots];
+        frames = new int[slots];
+        mask = slots - 1;
+        hand = 0;
+        if (oldValues != null) {
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    final int slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                    referenced[slot] = oldReferenced[i];
+                    frames[slot] = oldFrames[i];
+                }
+            }
+        }
+    }
+
+    /** Power of two slots keeping the table at most half full */
+    private static int slotsFor(int entries) {
+        return Integer.highestOneBit(Math.max(1, entries * 2 - 1)) << 1;
+    }
+
+    private final int maxSize;
+    private boolean bounded = true;
+    private int[] keys;
+    private String[] values;
+    private boolean[] referenced;
+    private int[] frames;
+    private int frame;
+    private int mask;
+    private int size;
+    private int hand;
+}
@@ -11,6 +11,8 @@
 
 package org.zenoss.app.consumer.metric.data;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 public final class Control {
 
     public static Control ok() {
@@ -45,6 +47,19 @@ public final class Control {
         return new Control(Type.CLIENT_COLLISION, clientId);
     }
 
+    /**
+     * A client collision suggesting how long the client should wait before sending more.
+     */
+    public static Control clientCollision(String clientId, long backOffMillis) {
+        Control control = new Control(Type.CLIENT_COLLISION, clientId);
+        control.setBackOffMillis(backOffMillis);
+        return control;
+    }
+
+    public static Control dictionaryReset(String reason) {
+        return new Control(Type.DICTIONARY_RESET, reason);
+    }
+
 
     public enum Type {
         /** Successful processing */
@@ -70,6 +85,9 @@ public final class Control {
 
         /** Metric processing breached the max backlog per client mark, however, metrics may still be processed */
         CLIENT_COLLISION,
+
+        /** The binary dictionary was dropped and no metrics were processed; reset codes and resend */
+        DICTIONARY_RESET,
     }
 
     public Control() {
@@ -92,6 +110,14 @@ public final class Control {
         return value;
     }
 
+    /**
+     * @return the back-off suggested by a client collision, or null if there is none
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long getBackOffMillis() {
+        return backOffMillis;
+    }
+
     public void setType(Type type) {
         this.type = type;
     }
@@ -100,6 +126,10 @@ public final class Control {
         this.value = value;
     }
 
+    public void setBackOffMillis(Long backOffMillis) {
+        this.backOffMillis = backOffMillis;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -109,6 +139,7 @@ public final class Control {
 
         if (type != null ? !type.equals(control.type) : control.type != null) return false;
         if (value != null ? !value.equals(control.value) : control.value != null) return false;
+        if (backOffMillis != null ? !backOffMillis.equals(control.backOffMillis) : control.backOffMillis != null) return false;
 
         return true;
     }
@@ -117,6 +148,7 @@ public final class Control {
     public int hashCode() {
         int result = type != null ? type.hashCode() : 0;
         result = 31 * result + (value != null ? value.hashCode() : 0);
+        result = 31 * result + (backOffMillis != null ? backOffMillis.hashCode() : 0);
         return result;
     }
 
@@ -125,9 +157,11 @@ public final class Control {
         return "Control{" +
                 "type='" + type + '\'' +
                 ", value='" + value + '\'' +
+                (backOffMillis != null ? ", backOffMillis=" + backOffMillis : "") +
                 '}';
     }
 
     private Type type;
     private String value;
+    private Long backOffMillis;
 }
@@ -16,7 +16,6 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
-import java.util.HashMap;
 import java.util.Map;
 
 public class Metric {
@@ -34,10 +33,13 @@ public class Metric {
     @JsonProperty("value")
     private double value;
 
+    /**
+     * Shared with other metrics with the same tags, so it is replaced rather than modified
+     */
     @NotNull
     @Size(min=1)
     @JsonProperty("tags")
-    private Map<String, String> tags;
+    private TagSet tags;
 
     public Metric() {
     }
@@ -46,21 +48,24 @@ public class Metric {
         this.metric = metric;
         this.timestamp = timestamp;
         this.value = value;
-        this.tags = new HashMap<>();
+        this.tags = TagSet.EMPTY;
     }
 
     public Metric(String metric, long timestamp, double value, Map<String, String> tags) {
         this.metric = metric;
         this.timestamp = timestamp;
         this.value = value;
-        this.tags = new HashMap<>(tags);
+        this.tags = TagSet.of(tags);
     }
 
+    /**
+     * Copy a metric. The copy shares the original's tags until either is changed.
+     */
     public Metric(Metric other) {
         this.metric = other.metric;
         this.timestamp = other.timestamp;
         this.value = other.value;
-        this.tags = new HashMap<>(other.tags);
+        this.tags = other.tags;
     }
 
 
@@ -76,7 +81,11 @@ public class Metric {
         return value;
     }
 
-    public Map<String, String> getTags() {
+    /**
+     * @return the tags, which can't be modified; use {@link #addTag(String, String)},
+     * {@link #removeTag(String)} or {@link #setTags(Map)}
+     */
+    public TagSet getTags() {
         return tags;
     }
 
@@ -97,19 +106,17 @@ public class Metric {
     }
 
     public void setTags(Map<String, String> tags) {
-        if ( tags == null) {
-            this.tags = new HashMap<>();
-        } else if ( this.tags != tags) {
-            this.tags = new HashMap<>(tags);
-        }
+        this.tags = TagSet.of(tags);
     }
 
     public void addTag( String name, String value) {
-        this.tags.put( name, value);
+        this.tags = this.tags.with(name, value);
     }
 
     public String removeTag(String name) {
-        return this.tags.remove(name);
+        final String removed = this.tags.get(name);
+        this.tags = this.tags.without(name);
+        return removed;
     }
 
     @Override
@@ -0,0 +1,246 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe dictionary of the metric names and tag sets held by
+ * {@link MetricBatch}es, so each distinct one is stored once however many
+ * metrics carry it.
+ *
+ * Ids are reference counted: every metric holding an id holds one
+ * reference to it, and once the last reference is released the entry is
+ * dropped and its id reused. Looking up an entry that is already present
+ * takes a map lookup and a CAS, and allocates nothing.
+ *
+ * Tag sets are kept as {@link TagSet}s, and the same instance is returned
+ * for an id for as long as it lives, so callers may cache by id as long as
+ * they check the instance.
+ */
+public class MetricDictionary {
+
+    /** Id of a null name */
+    public static final int NULL_ID = -1;
+
+    /**
+     * Add references to a name, adding it if it isn't present.
+     *
+     * @return its id, or {@link #NULL_ID} for null, which needs no release
+     */
+    public int acquireName(String name, int count) {
+        return name == null ? NULL_ID : names.acquire(name, count);
+    }
+
+    /**
+     * Add references to a tag set, adding it if it isn't present. A null tag set is the empty one.
+     *
+     * @return its id
+     */
+    public int acquireTags(Map<String, String> tags, int count) {
+        return this.tags.acquire(TagSet.of(tags), count);
+    }
+
+    /**
+     * Add references to a name the caller already holds one to.
+     */
+    public void retainName(int id, int count) {
+        if (id != NULL_ID) {
+            names.retain(id, count);
+        }
+    }
+
+    /**
+     * Add references to a tag set the caller already holds one to.
+     */
+    public void retainTags(int id, int count) {
+        tags.retain(id, count);
+    }
+
+    /**
+     * Give back references to a name.
+     */
+    public void releaseName(int id, int count) {
+        if (id != NULL_ID) {
+            names.release(id, count);
+        }
+    }
+
+    /**
+     * Give back references to a tag set.
+     */
+    public void releaseTags(int id, int count) {
+        tags.release(id, count);
+    }
+
+    /**
+     * @return the name for an id the caller holds a reference to
+     */
+    public String name(int id) {
+        return id == NULL_ID ? null : names.get(id);
+    }
+
+    /**
+     * @return the tag set for an id the caller holds a reference to
+     */
+    public TagSet tags(int id) {
+        return tags.get(id);
+    }
+
+    /**
+     * @return number of names with references
+     */
+    public int nameCount() {
+        return names.size();
+    }
+
+    /**
+     * @return number of tag sets with references
+     */
+    public int tagSetCount() {
+        return tags.size();
+    }
+
+    /**
+     * One kind of value, by id and by value.
+     */
+    private static abstract class Table<T> {
+
+        int acquire(T value, int count) {
+            final Entry<T> entry = byValue.get(value);
+            if (entry != null && entry.retain(count)) {
+                return entry.id;
+            }
+            synchronized (this) {
+                // Entries are only added and dropped while holding the lock
+                final Entry<T> current = byValue.get(value);
+                if (current != null && current.retain(count)) {
+                    return current.id;
+                }
+                final Integer free = freeIds.poll();
+                final int id = free == null ? next++ : free;
+                final Entry<T> added = new Entry<>(copy(value), id, count);
+                if (id >= byId.length) {
+                    byId = Arrays.copyOf(byId, Math.max(id + 1, byId.length * 2));
+                }
+                byId[id] = added;
+                byValue.put(added.value, added);
+                return id;
+            }
+        }
+
+        void retain(int id, int count) {
+            if (!entry(id).retain(count)) {
+                throw new IllegalStateException("Id " + id + " has no references");
+            }
+        }
+
+        void release(int id, int count) {
+            final Entry<T> entry = entry(id);
+            final int refs = entry.refs.addAndGet(-count);
+            if (refs > 0) {
+                return;
+            }
+            if (refs < 0) {
+                throw new IllegalStateException("Id " + id + " released more often than acquired");
+            }
+            synchronized (this) {
+                // Nothing can retain an entry at zero, so it's ours to drop. A thread looking
+                // for the same value may already have added a new entry in its place.
+                byValue.remove(entry.value, entry);
+                byId[id] = null;
+                freeIds.add(id);
+            }
+        }
+
+        T get(int id) {
+            return entry(id).value;
+        }
+
+        int size() {
+            return byValue.size();
+        }
+
+        private Entry<T> entry(int id) {
+            final Entry<T>[] entries = byId;
+            final Entry<T> entry = id >= 0 && id < entries.length ? entries[id] : null;
+            if (entry == null) {
+                throw new IllegalArgumentException("Unknown id " + id);
+            }
+            return entry;
+        }
+
+        /**
+         * @return the value to keep, which must not change afterwards
+         */
+        abstract T copy(T value);
+
+        private final ConcurrentMap<T, Entry<T>> byValue = new ConcurrentHashMap<>();
+
+        /**
+         * Only written while holding the lock, and replaced when it grows. Readers only look
+         * up ids they hold a reference to, which were in place before they got them.
+         */
+        @SuppressWarnings("unchecked")
+        private volatile Entry<T>[] byId = new Entry[64];
+
+        private final ArrayDeque<Integer> freeIds = new ArrayDeque<>();
+
+        private int next;
+    }
+
+    private static final class Entry<T> {
+
+        Entry(T value, int id, int refs) {
+            this.value = value;
+            this.id = id;
+            this.refs = new AtomicInteger(refs);
+        }
+
+        /**
+         * @return false if the entry has no references left, so it is being or has been dropped
+         */
+        boolean retain(int count) {
+            while (true) {
+                final int current = refs.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(current, current + count)) {
+                    return true;
+                }
+            }
+        }
+
+        final T value;
+        final int id;
+        final AtomicInteger refs;
+    }
+
+    private final Table<String> names = new Table<String>() {
+        @Override
+        String copy(String value) {
+            return value;
+        }
+    };
+
+    private final Table<TagSet> tags = new Table<TagSet>() {
+        @Override
+        TagSet copy(TagSet value) {
+            return value;
+        }
+    };
+}
@@ -0,0 +1,68 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+/**
+ * A fixed size pool of canonical strings, used in place of
+ * {@link String#intern()} so that deduplicating names and tags doesn't grow
+ * the JVM's string table. Each string hashes to one slot; a string that finds
+ * its slot taken by a different one takes the slot over. Strings used often
+ * stay pooled while those seen once are soon replaced, and memory is bounded
+ * by the pool size.
+ *
+ * Safe to share between threads without locking: slots only ever hold
+ * references to immutable strings, so a racing reader sees either the old or
+ * the new one and at worst keeps an equal duplicate.
+ */
+public final class StringPool {
+
+    /**
+     * @param size number of slots, rounded up to a power of two
+     */
+    public StringPool(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        int slots = 1;
+        while (slots < size) {
+            slots <<= 1;
+        }
+        this.strings = new String[slots];
+        this.mask = strings.length - 1;
+    }
+
+    /**
+     * @return a pooled string equal to s, which is s itself if no equal string was pooled
+     */
+    public String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        final int h = s.hashCode();
+        final int slot = (h ^ (h >>> 16)) & mask;
+        final String pooled = strings[slot];
+        if (pooled != null && pooled.equals(s)) {
+            return pooled;
+        }
+        strings[slot] = s;
+        return s;
+    }
+
+    /**
+     * @return number of slots
+     */
+    public int size() {
+        return strings.length;
+    }
+
+    private final String[] strings;
+    private final int mask;
+}
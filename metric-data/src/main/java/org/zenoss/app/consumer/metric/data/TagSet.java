@@ -0,0 +1,355 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * An immutable set of metric tags, shared by every metric that carries the
+ * same tags. Entries are kept sorted by key in two arrays and the hash code
+ * is computed once, so lookups are a binary search and comparing two tag
+ * sets is usually a matter of comparing hash codes.
+ *
+ * Tag sets are canonicalized through a fixed size pool that works like
+ * {@link StringPool}: each tag set hashes to one slot, and one that finds its
+ * slot taken by a different one takes the slot over. Tag sets in steady use
+ * stay pooled, so metrics from the same device end up holding the same
+ * instance, while memory is bounded by the pool size. The pool is safe to use
+ * from any thread without locking since it only holds immutable objects.
+ *
+ * "Changing" a tag set with {@link #with(String, String)} or
+ * {@link #without(String)} returns the canonical tag set for the result.
+ * Null keys and values are allowed, as they are in the maps that metrics
+ * used to carry.
+ */
+public final class TagSet extends AbstractMap<String, String> {
+
+    private static final int POOL_SIZE = 1 << 16;
+
+    private static final TagSet[] POOL = new TagSet[POOL_SIZE];
+
+    /** Orders keys, with null first */
+    private static final Comparator<String> KEY_ORDER = Comparator.nullsFirst(Comparator.<String>naturalOrder());
+
+    private static final String[] NONE = new String[0];
+
+    public static final TagSet EMPTY = new TagSet(NONE, NONE, 0);
+
+    /**
+     * @return the canonical tag set with the same tags, which is tags itself if it is a tag set
+     */
+    public static TagSet of(Map<String, String> tags) {
+        if (tags == null || tags.isEmpty()) {
+            return EMPTY;
+        }
+        if (tags instanceof TagSet) {
+            return (TagSet) tags;
+        }
+        final int hash = tags.hashCode();
+        final TagSet pooled = POOL[slot(hash)];
+        if (pooled != null && pooled.hash == hash && pooled.sameTags(tags)) {
+            return pooled;
+        }
+        @SuppressWarnings("unchecked")
+        final Map.Entry<String, String>[] entries = tags.entrySet().toArray(new Map.Entry[tags.size()]);
+        Arrays.sort(entries, Map.Entry.comparingByKey(KEY_ORDER));
+        final String[] keys = new String[entries.length];
+        final String[] values = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            keys[i] = entries[i].getKey();
+            values[i] = entries[i].getValue();
+        }
+        return intern(new TagSet(keys, values, hash));
+    }
+
+    private TagSet(String[] keys, String[] values, int hash) {
+        this.keys = keys;
+        this.values = values;
+        this.hash = hash;
+    }
+
+    /**
+     * @return the canonical tag set with key set to value, which is this one if it already was
+     */
+    public TagSet with(String key, String value) {
+        final int i = indexOf(key);
+        if (i >= 0) {
+            if (Objects.equals(values[i], value)) {
+                return this;
+            }
+            // Keys are never modified, so the new set can share them
+            final String[] newValues = values.clone();
+            newValues[i] = value;
+            return intern(new TagSet(keys, newValues, hash - entryHash(key, values[i]) + entryHash(key, value)));
+        }
+        final int at = -(i + 1);
+        final String[] newKeys = new String[keys.length + 1];
+        final String[] newValues = new String[keys.length + 1];
+        System.arraycopy(keys, 0, newKeys, 0, at);
+        System.arraycopy(values, 0, newValues, 0, at);
+        newKeys[at] = key;
+        newValues[at] = value;
+        System.arraycopy(keys, at, newKeys, at + 1, keys.length - at);
+        System.arraycopy(values, at, newValues, at + 1, keys.length - at);
+        return intern(new TagSet(newKeys, newValues, hash + entryHash(key, value)));
+    }
+
+    /**
+     * @return the canonical tag set without key, which is this one if it didn't have it
+     */
+    public TagSet without(String key) {
+        final int i = indexOf(key);
+        if (i < 0) {
+            return this;
+        }
+        if (keys.length == 1) {
+            return EMPTY;
+        }
+        final String[] newKeys = new String[keys.length - 1];
+        final String[] newValues = new String[keys.length - 1];
+        System.arraycopy(keys, 0, newKeys, 0, i);
+        System.arraycopy(values, 0, newValues, 0, i);
+        System.arraycopy(keys, i + 1, newKeys, i, keys.length - i - 1);
+        System.arraycopy(values, i + 1, newValues, i, keys.length - i - 1);
+        return intern(new TagSet(newKeys, newValues, hash - entryHash(key, values[i])));
+    }
+
+    /**
+     * @return the canonical tag set with every tag of other set, which is this one if they already were
+     */
+    public TagSet withAll(TagSet other) {
+        if (other.keys.length == 0 || other == this) {
+            return this;
+        }
+        if (keys.length == 0) {
+            return other;
+        }
+        // Merge the two sorted arrays, taking other's value for keys in both
+        final String[] newKeys = new String[keys.length + other.keys.length];
+        final String[] newValues = new String[newKeys.length];
+        int newHash = hash;
+        boolean changed = false;
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < keys.length || j < other.keys.length) {
+            final int order = i == keys.length ? 1
+                    : j == other.keys.length ? -1
+                    : KEY_ORDER.compare(keys[i], other.keys[j]);
+            if (order < 0) {
+                newKeys[n] = keys[i];
+                newValues[n++] = values[i++];
+                continue;
+            }
+            if (order == 0) {
+                if (!Objects.equals(values[i], other.values[j])) {
+                    newHash -= entryHash(keys[i], values[i]);
+                    newHash += entryHash(other.keys[j], other.values[j]);
+                    changed = true;
+                }
+                i++;
+            } else {
+                newHash += entryHash(other.keys[j], other.values[j]);
+                changed = true;
+            }
+            newKeys[n] = other.keys[j];
+            newValues[n++] = other.values[j++];
+        }
+        if (!changed) {
+            return this;
+        }
+        return intern(new TagSet(
+                n == newKeys.length ? newKeys : Arrays.copyOf(newKeys, n),
+                n == newValues.length ? newValues : Arrays.copyOf(newValues, n),
+                newHash));
+    }
+
+    /**
+     * @return the canonical tag set of the tags whose keys are kept, which is this one if all are
+     */
+    public TagSet retainKeys(Predicate<String> keep) {
+        String[] newKeys = null;
+        String[] newValues = null;
+        int size = 0;
+        int newHash = hash;
+        for (int i = 0; i < keys.length; i++) {
+            if (keep.test(keys[i])) {
+                if (newKeys != null) {
+                    newKeys[size] = keys[i];
+                    newValues[size] = values[i];
+                }
+                size++;
+            } else {
+                if (newKeys == null) {
+                    // First one dropped, so copy the ones kept so far
+                    newKeys = new String[keys.length - 1];
+                    newValues = new String[keys.length - 1];
+                    System.arraycopy(keys, 0, newKeys, 0, size);
+                    System.arraycopy(values, 0, newValues, 0, size);
+                }
+                newHash -= entryHash(keys[i], values[i]);
+            }
+        }
+        if (newKeys == null) {
+            return this;
+        }
+        if (size < newKeys.length) {
+            newKeys = Arrays.copyOf(newKeys, size);
+            newValues = Arrays.copyOf(newValues, size);
+        }
+        return intern(new TagSet(newKeys, newValues, newHash));
+    }
+
+    /**
+     * @return the i-th key in key order, for iterating without creating entries
+     */
+    public String keyAt(int i) {
+        return keys[i];
+    }
+
+    /**
+     * @return the value of the i-th key in key order
+     */
+    public String valueAt(int i) {
+        return values[i];
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (key == null || key instanceof String) && indexOf((String) key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (key != null && !(key instanceof String)) {
+            return null;
+        }
+        final int i = indexOf((String) key);
+        return i >= 0 ? values[i] : null;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < keys.length;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (next >= keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        final Entry<String, String> entry = new SimpleImmutableEntry<>(keys[next], values[next]);
+                        next++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o instanceof TagSet) {
+            final TagSet other = (TagSet) o;
+            return hash == other.hash && Arrays.equals(keys, other.keys) && Arrays.equals(values, other.values);
+        }
+        if (!(o instanceof Map)) {
+            return false;
+        }
+        final Map<?, ?> other = (Map<?, ?>) o;
+        return hash == other.hashCode() && sameTags(other);
+    }
+
+    private boolean sameTags(Map<?, ?> other) {
+        if (other.size() != keys.length) {
+            return false;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            final Object value = other.get(keys[i]);
+            if (!Objects.equals(values[i], value) || (value == null && !other.containsKey(keys[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(String key) {
+        return Arrays.binarySearch(keys, key, KEY_ORDER);
+    }
+
+    /**
+     * Hash of an entry, as {@link Map#hashCode()} defines it.
+     */
+    private static int entryHash(String key, String value) {
+        return Objects.hashCode(key) ^ Objects.hashCode(value);
+    }
+
+    private static int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & (POOL_SIZE - 1);
+    }
+
+    private static TagSet intern(TagSet tags) {
+        if (tags.keys.length == 0) {
+            return EMPTY;
+        }
+        final int slot = slot(tags.hash);
+        final TagSet pooled = POOL[slot];
+        if (pooled != null && pooled.equals(tags)) {
+            return pooled;
+        }
+        POOL[slot] = tags;
+        return tags;
+    }
+
+    private final String[] keys;
+    private final String[] values;
+    private final int hash;
+}
@@ -0,0 +1,31 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import java.io.IOException;
+
+/**
+ * A frame referred to a code the connection's dictionary doesn't hold,
+ * because it was never sent or has been evicted. The frame was not decoded.
+ */
+public class UnknownCodeException extends IOException {
+
+    public UnknownCodeException(int code) {
+        super("Unknown dictionary code: " + code);
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    private final int code;
+}
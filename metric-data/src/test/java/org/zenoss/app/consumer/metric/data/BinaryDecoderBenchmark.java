@@ -0,0 +1,173 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.CharStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xerial.snappy.SnappyInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link BinaryDecoder} with the stream based decoder it replaced,
+ * kept below as the baseline, on a steady state frame of {@value #FRAME_SIZE}
+ * metrics with five tags each, whose dictionary only carries a few new
+ * strings. The same metrics are also decoded from a version 1 frame written
+ * by {@link BinaryEncoder}.
+ *
+ * This is not run by the build. To run it from the top of the tree:
+ * <pre>
+ *   mvn test-compile dependency:build-classpath -pl metric-data \
+ *       -Dmdep.includeScope=test -Dmdep.outputFile=/tmp/cp.txt
+ *   java -cp metric-data/target/test-classes:metric-data/target/classes:$(cat /tmp/cp.txt) \
+ *       org.openjdk.jmh.Main BinaryDecoderBenchmark -prof gc
+ * </pre>
+ * Scores are microseconds per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BinaryDecoderBenchmark {
+
+    static final int FRAME_SIZE = 1000;
+
+    byte[] frame;
+    byte[] frameV1;
+    BinaryDecoder decoder;
+    BinaryDecoder decoderV1;
+    LegacyDecoder legacyDecoder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final BinaryDecoderTest.Encoder encoder = new BinaryDecoderTest.Encoder();
+        final byte[] first = encoder.encode(BinaryDecoderTest.metrics(FRAME_SIZE, 5));
+        final List<Metric> steady = BinaryDecoderTest.metrics(FRAME_SIZE, 5);
+        for (int i = 0; i < 4; i++) {
+            steady.get(i).addTag("new", "value" + i);
+        }
+        frame = encoder.encode(steady);
+
+        final BinaryEncoder encoderV1 = new BinaryEncoder();
+        final byte[] firstV1 = encoderV1.encode(BinaryDecoderTest.metrics(FRAME_SIZE, 5));
+        frameV1 = encoderV1.encode(steady);
+
+        decoder = new BinaryDecoder();
+        decoder.decode(first);
+        decoderV1 = new BinaryDecoder();
+        decoderV1.decode(firstV1);
+        legacyDecoder = new LegacyDecoder();
+        legacyDecoder.decode(first);
+    }
+
+    @Benchmark
+    public Metric[] legacy() throws IOException {
+        return legacyDecoder.decode(frame).getMetrics();
+    }
+
+    @Benchmark
+    public Metric[] message() throws IOException {
+        return decoder.decode(frame).getMetrics();
+    }
+
+    @Benchmark
+    public int sink(final Blackhole blackhole) throws IOException {
+        return decoder.decode(ByteBuffer.wrap(frame), blackhole::consume);
+    }
+
+    @Benchmark
+    public int sinkV1(final Blackhole blackhole) throws IOException {
+        return decoderV1.decode(ByteBuffer.wrap(frameV1), blackhole::consume);
+    }
+
+    /**
+     * BinaryDecoder as it was before it decoded from a buffer.
+     */
+    static final class LegacyDecoder {
+
+        private static final ObjectMapper mapper = new ObjectMapper();
+        private final Map<Integer, String> dictionary = new HashMap<>();
+
+        private static class EncodedMetric {
+            final long timestamp;
+            final int metric;
+            final double value;
+            final Map<Integer, Integer> tags;
+
+            EncodedMetric(long timestamp, int metric, double value, Map<Integer, Integer> tags) {
+                this.timestamp = timestamp;
+                this.metric = metric;
+                this.value = value;
+                this.tags = tags;
+            }
+        }
+
+        Message decode(byte[] data) throws IOException {
+            Message msg = new Message();
+            DataInputStream stream = new DataInputStream(new SnappyInputStream(new ByteArrayInputStream(data)));
+            stream.readByte();
+            short numMetrics = stream.readShort();
+            List<EncodedMetric> encodedMetrics = new ArrayList<>(numMetrics);
+            Metric[] metrics = new Metric[numMetrics];
+            for (int i = 0; i < numMetrics; i++) {
+                long timestamp = (long) stream.readDouble();
+                int metricEnc = stream.readInt();
+                double metricVal = stream.readDouble();
+                Map<Integer, Integer> encodedTags = new HashMap<>();
+                byte numTags = stream.readByte();
+                for (int j = 0; j < numTags; j++) {
+                    encodedTags.put(stream.readInt(), stream.readInt());
+                }
+                encodedMetrics.add(new EncodedMetric(timestamp, metricEnc, metricVal, encodedTags));
+            }
+            String json = CharStreams.toString(new InputStreamReader(stream, "UTF-8"));
+            Map<String, String> map = mapper.readValue(json, new TypeReference<HashMap<String, String>>() {
+            });
+            for (Map.Entry<String, String> entry : map.entrySet()) {
+                dictionary.put(Integer.parseInt(entry.getKey()), entry.getValue().intern());
+            }
+            for (int z = 0; z < numMetrics; z++) {
+                EncodedMetric em = encodedMetrics.get(z);
+                Metric met = new Metric(dictionary.get(em.metric), em.timestamp, em.value);
+                for (Map.Entry<Integer, Integer> entry : em.tags.entrySet()) {
+                    met.addTag(dictionary.get(entry.getKey()), dictionary.get(entry.getValue()));
+                }
+                metrics[z] = met;
+            }
+            msg.setMetrics(metrics);
+            return msg;
+        }
+    }
+}
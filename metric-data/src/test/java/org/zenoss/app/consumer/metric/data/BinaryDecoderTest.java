@@ -0,0 +1,261 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryDecoderTest {
+
+    /**
+     * Encodes frames the way collectors do, with a dictionary that only
+     * carries the strings the connection hasn't sent before.
+     */
+    static final class Encoder {
+        private final Map<String, Integer> codes = new LinkedHashMap<>();
+
+        byte[] encode(List<Metric> metrics) throws IOException {
+            return encode(metrics, true);
+        }
+
+        byte[] encode(List<Metric> metrics, boolean stream) throws IOException {
+            final Map<String, String> added = new LinkedHashMap<>();
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(0);
+            out.writeShort(metrics.size());
+            for (Metric metric : metrics) {
+                out.writeDouble(metric.getTimestamp());
+                out.writeInt(code(metric.getMetric(), added));
+                out.writeDouble(metric.getValue());
+                out.writeByte(metric.getTags().size());
+                for (Map.Entry<String, String> tag : metric.getTags().entrySet()) {
+                    out.writeInt(code(tag.getKey(), added));
+                    out.writeInt(code(tag.getValue(), added));
+                }
+            }
+            out.write(new ObjectMapper().writeValueAsBytes(added));
+            out.flush();
+            if (!stream) {
+                return Snappy.compress(bytes.toByteArray());
+            }
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (SnappyOutputStream snappy = new SnappyOutputStream(compressed)) {
+                bytes.writeTo(snappy);
+            }
+            return compressed.toByteArray();
+        }
+
+        /**
+         * A dictionary frame dropping every code, after which this encoder
+         * sends its strings again.
+         */
+        byte[] reset() throws IOException {
+            codes.clear();
+            return Snappy.compress(new byte[]{BinaryDecoder.DICTIONARY_FRAME, BinaryDecoder.RESET});
+        }
+
+        private int code(String s, Map<String, String> added) {
+            Integer code = codes.get(s);
+            if (code == null) {
+                code = codes.size();
+                codes.put(s, code);
+                added.put(code.toString(), s);
+            }
+            return code;
+        }
+    }
+
+    static List<Metric> metrics(int count, int tags) {
+        final List<Metric> metrics = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Metric metric = new Metric("metric" + (i % 10), 1400000000L + i, i / 4.0);
+            for (int j = 0; j < tags; j++) {
+                metric.addTag("tag" + j, "value" + (i % 7));
+            }
+            metrics.add(metric);
+        }
+        return metrics;
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        final List<Metric> metrics = metrics(3, 2);
+        final Message message = new BinaryDecoder().decode(new Encoder().encode(metrics));
+        assertEquals(metrics, Arrays.asList(message.getMetrics()));
+    }
+
+    @Test
+    public void testDictionaryCarriesOver() throws Exception {
+        final Encoder encoder = new Encoder();
+        final BinaryDecoder decoder = new BinaryDecoder();
+        final List<Metric> first = metrics(20, 3);
+        final List<Metric> second = metrics(10, 3);
+        assertEquals(first, Arrays.asList(decoder.decode(encoder.encode(first)).getMetrics()));
+        final byte[] frame = encoder.encode(second);
+        assertEquals(second, Arrays.asList(decoder.decode(frame).getMetrics()));
+    }
+
+    @Test
+    public void testDecodeIntoSink() throws Exception {
+        final List<Metric> metrics = metrics(5000, 12);
+        final List<Metric> decoded = new ArrayList<>();
+        final ByteBuffer frame = ByteBuffer.wrap(new Encoder().encode(metrics));
+        assertEquals(5000, new BinaryDecoder().decode(frame, decoded::add));
+        assertEquals(metrics, decoded);
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    public void testDecodeDirectBuffer() throws Exception {
+        final List<Metric> metrics = metrics(10, 1);
+        final byte[] bytes = new Encoder().encode(metrics);
+        final ByteBuffer frame = ByteBuffer.allocateDirect(bytes.length);
+        frame.put(bytes).flip();
+        final List<Metric> decoded = new ArrayList<>();
+        new BinaryDecoder().decode(frame, decoded::add);
+        assertEquals(metrics, decoded);
+    }
+
+    @Test
+    public void testDecodeSingleBlock() throws Exception {
+        final List<Metric> metrics = metrics(10, 2);
+        final Message message = new BinaryDecoder().decode(new Encoder().encode(metrics, false));
+        assertEquals(metrics, Arrays.asList(message.getMetrics()));
+    }
+
+    @Test
+    public void testTruncatedFrame() throws Exception {
+        final byte[] frame = new Encoder().encode(metrics(10, 2), false);
+        final byte[] uncompressed = Snappy.uncompress(frame);
+        try {
+            new BinaryDecoder().decode(Snappy.compress(Arrays.copyOf(uncompressed, 40)));
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptFrame() throws Exception {
+        new BinaryDecoder().decode(new byte[]{1, 2, 3, 4, 5});
+    }
+
+    @Test
+    public void testResetFrame() throws Exception {
+        final Encoder encoder = new Encoder();
+        final BinaryDecoder decoder = new BinaryDecoder();
+        decoder.decode(encoder.encode(metrics(10, 2)));
+        assertTrue(decoder.dictionarySize() > 0);
+        assertEquals(0, decoder.decode(encoder.reset()).getMetrics().length);
+        assertEquals(0, decoder.dictionarySize());
+
+        final List<Metric> metrics = metrics(10, 2);
+        assertEquals(metrics, Arrays.asList(decoder.decode(encoder.encode(metrics)).getMetrics()));
+    }
+
+    @Test
+    public void testEvictFrame() throws Exception {
+        final Encoder encoder = new Encoder();
+        final BinaryDecoder decoder = new BinaryDecoder();
+        final byte[] frame = encoder.encode(metrics(1, 0));
+        decoder.decode(frame);
+        final ByteBuffer evict = ByteBuffer.allocate(10);
+        evict.put(BinaryDecoder.DICTIONARY_FRAME).put(BinaryDecoder.EVICT).putInt(1).putInt(0);
+        decoder.decode(Snappy.compress(evict.array()));
+        assertEquals(0, decoder.dictionarySize());
+        try {
+            decoder.decode(encoder.encode(metrics(1, 0)));
+            fail("expected UnknownCodeException");
+        } catch (UnknownCodeException e) {
+            assertEquals(0, e.getCode());
+        }
+    }
+
+    @Test
+    public void testEvictedCodeFailsWholeFrame() throws Exception {
+        final Encoder encoder = new Encoder();
+        final BinaryDecoder decoder = new BinaryDecoder(20, new StringPool(64));
+        // A dictionary frame shows the collector can be told to reset
+        decoder.decode(encoder.reset());
+        assertTrue(decoder.isDictionaryBounded());
+        // metric0..9 and value0..6 plus tag0
+        decoder.decode(encoder.encode(metrics(10, 1)));
+        final List<Metric> more = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            more.add(new Metric("other" + i, 0, 0.0));
+        }
+        decoder.decode(encoder.encode(more));
+        assertEquals(20, decoder.dictionarySize());
+
+        final List<Metric> decoded = new ArrayList<>();
+        try {
+            decoder.decode(ByteBuffer.wrap(encoder.encode(metrics(10, 1))), decoded::add);
+            fail("expected UnknownCodeException");
+        } catch (UnknownCodeException e) {
+            assertTrue(decoded.isEmpty());
+        }
+
+        // The collector starts over
+        assertEquals(0, decoder.decode(encoder.reset()).getMetrics().length);
+        final List<Metric> metrics = metrics(10, 1);
+        assertEquals(metrics, Arrays.asList(decoder.decode(encoder.encode(metrics)).getMetrics()));
+    }
+
+    @Test
+    public void testVersion0KeepsEveryCode() throws Exception {
+        final Encoder encoder = new Encoder();
+        final BinaryDecoder decoder = new BinaryDecoder(20, new StringPool(64));
+        decoder.decode(encoder.encode(metrics(10, 1)));
+        final List<Metric> more = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            more.add(new Metric("other" + i, 0, 0.0));
+        }
+        decoder.decode(encoder.encode(more));
+        assertFalse(decoder.isDictionaryBounded());
+        assertEquals(28, decoder.dictionarySize());
+
+        // Without being told, the collector goes on using its first codes
+        final List<Metric> metrics = metrics(10, 1);
+        assertEquals(metrics, Arrays.asList(decoder.decode(encoder.encode(metrics)).getMetrics()));
+    }
+
+    @Test
+    public void testStringsArePooled() throws Exception {
+        final StringPool pool = new StringPool(64);
+        final Metric first = new BinaryDecoder(100, pool).decode(new Encoder().encode(metrics(1, 1))).getMetrics()[0];
+        final Metric second = new BinaryDecoder(100, pool).decode(new Encoder().encode(metrics(1, 1))).getMetrics()[0];
+        assertSame(first.getMetric(), second.getMetric());
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedVersion() throws Exception {
+        new BinaryDecoder().decode(Snappy.compress(new byte[]{42, 0, 0}));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryEncoderTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final List<Metric> metrics = BinaryDecoderTest.metrics(100, 3);
+        final byte[] frame = new BinaryEncoder().encode(metrics);
+        assertEquals(BinaryDecoder.VERSION_1, Snappy.uncompress(frame)[0]);
+        assertEquals(metrics, Arrays.asList(new BinaryDecoder().decode(frame).getMetrics()));
+    }
+
+    @Test
+    public void testOddValuesAndTimestamps() throws Exception {
+        final Random random = new Random(0);
+        final double[] values = {0.0, -0.0, 1.5, -1.5, Double.MAX_VALUE, Double.MIN_VALUE,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 1e-300, 42.0, 42.0};
+        final long[] timestamps = {0, Long.MIN_VALUE, Long.MAX_VALUE, -1, 1400000000, 1400000000, 1400000010, 5};
+        final List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final long timestamp = i < timestamps.length ? timestamps[i] : random.nextLong();
+            final double value = i < values.length ? values[i] : Double.longBitsToDouble(random.nextLong());
+            metrics.add(new Metric("m", timestamp, value));
+        }
+        final Metric[] decoded = new BinaryDecoder().decode(new BinaryEncoder().encode(metrics)).getMetrics();
+        assertEquals(metrics.size(), decoded.length);
+        for (int i = 0; i < decoded.length; i++) {
+            assertEquals(metrics.get(i).getTimestamp(), decoded[i].getTimestamp());
+            assertEquals(Double.doubleToRawLongBits(metrics.get(i).getValue()),
+                    Double.doubleToRawLongBits(decoded[i].getValue()));
+        }
+    }
+
+    @Test
+    public void testMoreThanShortMaxMetrics() throws Exception {
+        final List<Metric> metrics = BinaryDecoderTest.metrics(40000, 2);
+        final List<Metric> decoded = new ArrayList<>();
+        assertEquals(40000, new BinaryDecoder().decode(ByteBuffer.wrap(new BinaryEncoder().encode(metrics)), decoded::add));
+        assertEquals(metrics, decoded);
+    }
+
+    @Test
+    public void testDictionaryCarriesOverAndResets() throws Exception {
+        final BinaryEncoder encoder = new BinaryEncoder();
+        final BinaryDecoder decoder = new BinaryDecoder();
+        final List<Metric> metrics = BinaryDecoderTest.metrics(10, 2);
+        final byte[] first = encoder.encode(metrics);
+        final byte[] second = encoder.encode(metrics);
+        assertTrue(second.length < first.length);
+        assertEquals(metrics, Arrays.asList(decoder.decode(first).getMetrics()));
+        assertEquals(metrics, Arrays.asList(decoder.decode(second).getMetrics()));
+
+        decoder.decode(encoder.reset());
+        assertEquals(0, decoder.dictionarySize());
+        assertEquals(0, encoder.dictionarySize());
+        assertEquals(metrics, Arrays.asList(decoder.decode(encoder.encode(metrics)).getMetrics()));
+    }
+
+    @Test
+    public void testFrameKeepsTheCodesItUses() throws Exception {
+        final BinaryEncoder encoder = new BinaryEncoder();
+        final BinaryDecoder decoder = new BinaryDecoder(20, new StringPool(64));
+        // metric0..9, tag0 and value0..6
+        decoder.decode(encoder.encode(BinaryDecoderTest.metrics(10, 1)));
+        assertEquals(18, decoder.dictionarySize());
+
+        // Ten new names only fit by evicting codes, which mustn't be the tags this frame uses
+        final List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final Metric metric = new Metric("other" + i, i, i);
+            metric.addTag("tag0", "value" + (i % 7));
+            metrics.add(metric);
+        }
+        assertEquals(metrics, Arrays.asList(decoder.decode(encoder.encode(metrics)).getMetrics()));
+        assertEquals(20, decoder.dictionarySize());
+    }
+
+    @Test
+    public void testUnsentCodesAreForgotten() throws Exception {
+        final BinaryEncoder encoder = new BinaryEncoder();
+        final Metric bad = new Metric("new-name", 0, 0.0);
+        bad.addTag("key", null);
+        try {
+            encoder.encode(Collections.singletonList(bad));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, encoder.dictionarySize());
+        }
+        final List<Metric> metrics = Collections.singletonList(new Metric("new-name", 0, 0.0));
+        assertEquals(metrics, Arrays.asList(new BinaryDecoder().decode(encoder.encode(metrics)).getMetrics()));
+    }
+
+    @Test
+    public void testSmallerThanVersion0() throws Exception {
+        final List<Metric> metrics = BinaryDecoderTest.metrics(1000, 5);
+        final BinaryEncoder encoder = new BinaryEncoder();
+        final BinaryDecoderTest.Encoder v0 = new BinaryDecoderTest.Encoder();
+        encoder.encode(metrics);
+        v0.encode(metrics, false);
+        final int v1Size = Snappy.uncompress(encoder.encode(metrics)).length;
+        final int v0Size = Snappy.uncompress(v0.encode(metrics, false)).length;
+        assertTrue(v1Size + " vs " + v0Size, v1Size * 3 < v0Size);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CodeDictionaryTest {
+
+    @Test
+    public void testPutGetRemove() {
+        final CodeDictionary dictionary = new CodeDictionary(10000);
+        for (int i = 0; i < 5000; i++) {
+            assertNull(dictionary.put(i * 7, "s" + i));
+        }
+        assertEquals(5000, dictionary.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("s" + i, dictionary.get(i * 7));
+        }
+        assertNull(dictionary.get(1));
+        assertTrue(dictionary.remove(7));
+        assertFalse(dictionary.remove(7));
+        assertNull(dictionary.get(7));
+        assertEquals(4999, dictionary.size());
+        dictionary.clear();
+        assertEquals(0, dictionary.size());
+        assertNull(dictionary.get(0));
+    }
+
+    @Test
+    public void testMatchesMapUnderChurn() {
+        final CodeDictionary dictionary = new CodeDictionary(1 << 20);
+        final Map<Integer, String> expected = new HashMap<>();
+        final Random random = new Random(0);
+        for (int i = 0; i < 200000; i++) {
+            final int code = random.nextInt(4096);
+            if (random.nextBoolean()) {
+                dictionary.put(code, "v" + i);
+                expected.put(code, "v" + i);
+            } else {
+                assertEquals(expected.remove(code) != null, dictionary.remove(code));
+            }
+        }
+        assertEquals(expected.size(), dictionary.size());
+        for (int code = 0; code < 4096; code++) {
+            assertEquals(expected.get(code), dictionary.get(code));
+        }
+    }
+
+    @Test
+    public void testEvictsUnusedFirst() {
+        final CodeDictionary dictionary = new CodeDictionary(4);
+        for (int i = 0; i < 4; i++) {
+            dictionary.put(i, "s" + i);
+        }
+        // The hand clears every bit on its way to the first eviction
+        dictionary.startFrame();
+        final int first = dictionary.put(4, "s4");
+        dictionary.startFrame();
+
+        // Use all but one of the others
+        int unused = -1;
+        for (int i = 0; i < 4; i++) {
+            if (i == first) {
+                continue;
+            }
+            if (unused < 0) {
+                unused = i;
+            } else {
+                dictionary.get(i);
+            }
+        }
+        dictionary.startFrame();
+        assertEquals(Integer.valueOf(unused), dictionary.put(5, "s5"));
+        assertEquals("s4", dictionary.get(4));
+    }
+
+    @Test
+    public void testFrameCodesArePinned() {
+        final CodeDictionary dictionary = new CodeDictionary(3);
+        dictionary.put(0, "old");
+        dictionary.startFrame();
+        dictionary.put(1, "a");
+        dictionary.put(2, "b");
+        assertEquals(Integer.valueOf(0), dictionary.put(3, "c"));
+        assertEquals("a", dictionary.get(1));
+        assertEquals("b", dictionary.get(2));
+        assertEquals("c", dictionary.get(3));
+    }
+
+    @Test
+    public void testEvictsPinnedWhenNothingElse() {
+        final CodeDictionary dictionary = new CodeDictionary(2);
+        dictionary.put(0, "a");
+        dictionary.put(1, "b");
+        dictionary.put(2, "c");
+        assertEquals(2, dictionary.size());
+        assertEquals("c", dictionary.get(2));
+    }
+
+    @Test
+    public void testUnboundedUntilBounded() {
+        final CodeDictionary dictionary = new CodeDictionary(4);
+        dictionary.setBounded(false);
+        for (int i = 0; i < 100; i++) {
+            assertNull(dictionary.put(i, "s" + i));
+        }
+        assertEquals(100, dictionary.size());
+        assertEquals("s0", dictionary.get(0));
+
+        dictionary.setBounded(true);
+        assertEquals(4, dictionary.size());
+        assertNotNull(dictionary.put(100, "s100"));
+        assertEquals(4, dictionary.size());
+    }
+}
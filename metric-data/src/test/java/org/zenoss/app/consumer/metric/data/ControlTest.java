@@ -14,6 +14,7 @@ import org.junit.Test;
 
 import static io.dropwizard.testing.FixtureHelpers.fixture;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 import io.dropwizard.jackson.Jackson;
@@ -42,4 +43,18 @@ public class ControlTest {
 
         assertThat(actual, is(expected));
     }
+
+    @Test
+    public void clientCollisionCarriesBackOff() throws Exception {
+        final Control control = Control.clientCollision("websocket1", 250);
+        assertThat(control.getValue(), is("websocket1"));
+        assertThat(control.getBackOffMillis(), is(250L));
+        assertThat(Control.clientCollision("websocket1").getBackOffMillis(), is(nullValue()));
+        assertThat(Control.ok().getBackOffMillis(), is(nullValue()));
+        assertThat(MAPPER.writeValueAsString(control),
+                is("{\"type\":\"CLIENT_COLLISION\",\"value\":\"websocket1\",\"backOffMillis\":250}"));
+        assertThat(MAPPER.writeValueAsString(Control.clientCollision("websocket1")),
+                is("{\"type\":\"CLIENT_COLLISION\",\"value\":\"websocket1\"}"));
+        assertThat(MAPPER.readValue(MAPPER.writeValueAsString(control), Control.class), is(control));
+    }
 }
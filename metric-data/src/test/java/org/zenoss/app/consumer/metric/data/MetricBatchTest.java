@@ -0,0 +1,94 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricBatchTest {
+
+    private final MetricDictionary dictionary = new MetricDictionary();
+
+    private static List<Metric> metrics(int count) {
+        final List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            metrics.add(new Metric("metric" + (i % 3), 1000 + i, i * 0.5,
+                    ImmutableMap.of("device", "device" + (i / 10), "key", "k")));
+        }
+        return metrics;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final List<Metric> metrics = metrics(100);
+        final MetricBatch batch = MetricBatch.copyOf(metrics, dictionary);
+        assertEquals(100, batch.size());
+        assertEquals(metrics, batch.toMetrics());
+        assertEquals(metrics.subList(10, 20), batch.toMetrics(10, 20));
+        assertEquals(1005, batch.timestamp(5));
+        assertEquals(2.5, batch.value(5), 0);
+        assertEquals("metric2", batch.name(5));
+        assertEquals(ImmutableMap.of("device", "device0", "key", "k"), batch.tags(5));
+        // Stored once each
+        assertEquals(3, dictionary.nameCount());
+        assertEquals(10, dictionary.tagSetCount());
+    }
+
+    @Test
+    public void testCopiesShareTags() {
+        final MetricBatch batch = MetricBatch.copyOf(metrics(2), dictionary);
+        final Metric m = batch.metric(0);
+        assertSame(batch.tags(0), m.getTags());
+        m.addTag("x", "y");
+        assertNotSame(batch.tags(0), m.getTags());
+        assertEquals(2, batch.tags(0).size());
+    }
+
+    @Test
+    public void testReleaseDropsEntries() {
+        final MetricBatch first = MetricBatch.copyOf(metrics(100), dictionary);
+        final MetricBatch second = MetricBatch.copyOf(metrics(10), dictionary);
+        first.release();
+        assertTrue(first.isEmpty());
+        assertEquals(3, dictionary.nameCount());
+        assertEquals(1, dictionary.tagSetCount());
+        second.release();
+        second.release();
+        assertEquals(0, dictionary.nameCount());
+        assertEquals(0, dictionary.tagSetCount());
+    }
+
+    @Test
+    public void testAppendPassesReferences() {
+        final MetricBatch batch = new MetricBatch(dictionary, 1);
+        for (int i = 0; i < 5; i++) {
+            batch.append(dictionary.acquireName("cpu", 1), i, i, dictionary.acquireTags(null, 1));
+        }
+        assertEquals(5, batch.size());
+        assertEquals(new Metric("cpu", 4, 4), batch.metric(4));
+        batch.release();
+        assertEquals(0, dictionary.nameCount());
+        assertEquals(0, dictionary.tagSetCount());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIndexChecked() {
+        MetricBatch.copyOf(metrics(2), dictionary).timestamp(2);
+    }
+}
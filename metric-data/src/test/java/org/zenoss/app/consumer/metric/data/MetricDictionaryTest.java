@@ -0,0 +1,114 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class MetricDictionaryTest {
+
+    private final MetricDictionary dictionary = new MetricDictionary();
+
+    @Test
+    public void testSameValueSameId() {
+        final int id = dictionary.acquireName("cpu", 1);
+        assertEquals(id, dictionary.acquireName(new String("cpu"), 1));
+        assertNotEquals(id, dictionary.acquireName("mem", 1));
+        assertEquals("cpu", dictionary.name(id));
+        assertEquals(2, dictionary.nameCount());
+    }
+
+    @Test
+    public void testTagSetsAreCopied() {
+        final Map<String, String> tags = new HashMap<>();
+        tags.put("device", "a");
+        final int id = dictionary.acquireTags(tags, 1);
+        tags.put("device", "b");
+        assertEquals(ImmutableMap.of("device", "a"), dictionary.tags(id));
+        assertSame(dictionary.tags(id), dictionary.tags(dictionary.acquireTags(ImmutableMap.of("device", "a"), 1)));
+        try {
+            dictionary.tags(id).put("x", "y");
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void testNulls() {
+        assertEquals(MetricDictionary.NULL_ID, dictionary.acquireName(null, 1));
+        assertNull(dictionary.name(MetricDictionary.NULL_ID));
+        dictionary.releaseName(MetricDictionary.NULL_ID, 1);
+        assertEquals(0, dictionary.nameCount());
+        assertEquals(ImmutableMap.of(), dictionary.tags(dictionary.acquireTags(null, 1)));
+    }
+
+    @Test
+    public void testDroppedWithLastReference() {
+        final int id = dictionary.acquireName("cpu", 2);
+        dictionary.retainName(id, 1);
+        dictionary.releaseName(id, 2);
+        assertEquals("cpu", dictionary.name(id));
+        dictionary.releaseName(id, 1);
+        assertEquals(0, dictionary.nameCount());
+        try {
+            dictionary.name(id);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        // The id is reused
+        assertEquals(id, dictionary.acquireName("mem", 1));
+        assertEquals("mem", dictionary.name(id));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseTooOften() {
+        final int id = dictionary.acquireName("cpu", 2);
+        dictionary.releaseName(id, 3);
+    }
+
+    @Test
+    public void testConcurrentAcquireAndRelease() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 20000; i++) {
+                        final String name = "name" + (i % 8);
+                        final int id = dictionary.acquireName(name, 1);
+                        assertEquals(name, dictionary.name(id));
+                        dictionary.releaseName(id, 1);
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, dictionary.nameCount());
+    }
+}
@@ -56,7 +56,7 @@ public class MetricTest {
         final Metric originalMetric = new Metric("testMetric", 1, 2.3, tags);
         final Metric copyMetric = new Metric(originalMetric);
         assertThat(originalMetric, is(copyMetric));
-        copyMetric.getTags().put("tagName","newtagValue");
+        copyMetric.addTag("tagName","newtagValue");
         assertThat(originalMetric,not(is(copyMetric)));
     }
 
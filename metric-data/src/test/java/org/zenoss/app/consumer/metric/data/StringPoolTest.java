@@ -0,0 +1,39 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class StringPoolTest {
+
+    @Test
+    public void testReturnsPooledCopy() {
+        final StringPool pool = new StringPool(16);
+        final String first = new String("device");
+        assertSame(first, pool.intern(first));
+        assertSame(first, pool.intern(new String("device")));
+        assertNull(pool.intern(null));
+    }
+
+    @Test
+    public void testBounded() {
+        final StringPool pool = new StringPool(100);
+        assertEquals(128, pool.size());
+        for (int i = 0; i < 100000; i++) {
+            assertEquals("s" + i, pool.intern("s" + i));
+        }
+        assertEquals(128, pool.size());
+    }
+}
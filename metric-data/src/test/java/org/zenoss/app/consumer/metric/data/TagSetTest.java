@@ -0,0 +1,134 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2026, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.consumer.metric.data;
+
+import com.google.common.collect.ImmutableMap;
+import io.dropwizard.jackson.Jackson;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TagSetTest {
+
+    private static Map<String, String> map(String... tags) {
+        final Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < tags.length; i += 2) {
+            map.put(tags[i], tags[i + 1]);
+        }
+        return map;
+    }
+
+    @Test
+    public void testBehavesAsMap() {
+        final Map<String, String> map = map("device", "d1", "component", "eth0", "key", null, null, "x");
+        final TagSet tags = TagSet.of(map);
+        assertEquals(map, tags);
+        assertEquals(tags, map);
+        assertEquals(map.hashCode(), tags.hashCode());
+        assertEquals(map.entrySet(), tags.entrySet());
+        assertEquals("d1", tags.get("device"));
+        assertTrue(tags.containsKey("key"));
+        assertNull(tags.get("key"));
+        assertEquals("x", tags.get(null));
+        assertFalse(tags.containsKey("other"));
+        assertNull(tags.get(42));
+        // Sorted by key, null first
+        assertNull(tags.keyAt(0));
+        assertEquals("component", tags.keyAt(1));
+        assertEquals("eth0", tags.valueAt(1));
+    }
+
+    @Test
+    public void testCanonical() {
+        final TagSet tags = TagSet.of(map("device", "d1", "component", "eth0"));
+        assertSame(tags, TagSet.of(map("component", "eth0", "device", "d1")));
+        assertSame(tags, TagSet.of(tags));
+        assertSame(tags, TagSet.of(map("device", "d1")).with("component", "eth0"));
+        assertSame(tags, tags.with("device", "d2").with("device", "d1"));
+        assertSame(tags, tags.with("x", "y").without("x"));
+        assertSame(TagSet.EMPTY, TagSet.of(null));
+        assertSame(TagSet.EMPTY, TagSet.of(map("a", "b")).without("a"));
+    }
+
+    @Test
+    public void testWithAndWithout() {
+        final TagSet tags = TagSet.of(map("b", "2", "d", "4"));
+        assertSame(tags, tags.with("b", "2"));
+        assertSame(tags, tags.without("c"));
+        assertEquals(map("a", "1", "b", "2", "d", "4"), tags.with("a", "1"));
+        assertEquals(map("b", "2", "c", "3", "d", "4"), tags.with("c", "3"));
+        assertEquals(map("b", "2", "d", "4", "e", "5"), tags.with("e", "5"));
+        assertEquals(map("b", "3", "d", "4"), tags.with("b", "3"));
+        assertEquals(map("d", "4"), tags.without("b"));
+        assertEquals(map("b", "2"), tags.without("d"));
+        final TagSet changed = tags.with("b", null);
+        assertEquals(map("b", null, "d", "4"), changed);
+        assertEquals(map("b", null, "d", "4").hashCode(), changed.hashCode());
+        // Unchanged
+        assertEquals(map("b", "2", "d", "4"), tags);
+    }
+
+    @Test
+    public void testWithAll() {
+        final TagSet tags = TagSet.of(map("b", "2", "d", "4"));
+        assertSame(tags, tags.withAll(TagSet.EMPTY));
+        assertSame(tags, TagSet.EMPTY.withAll(tags));
+        assertSame(tags, tags.withAll(TagSet.of(map("d", "4"))));
+        final TagSet merged = tags.withAll(TagSet.of(map("a", "1", "d", "5", "e", null)));
+        assertEquals(map("a", "1", "b", "2", "d", "5", "e", null), merged);
+        assertEquals(map("a", "1", "b", "2", "d", "5", "e", null).hashCode(), merged.hashCode());
+        assertSame(merged, TagSet.of(map("a", "1", "b", "2", "d", "5", "e", null)));
+        assertEquals(map("b", "2", "c", "3", "d", "4"), tags.withAll(TagSet.of(map("c", "3"))));
+    }
+
+    @Test
+    public void testRetainKeys() {
+        final TagSet tags = TagSet.of(map("a", "1", "b", "2", "c", "3", "d", null));
+        assertSame(tags, tags.retainKeys(key -> true));
+        assertSame(TagSet.EMPTY, tags.retainKeys(key -> false));
+        final TagSet retained = tags.retainKeys(key -> !key.equals("b") && !key.equals("c"));
+        assertEquals(map("a", "1", "d", null), retained);
+        assertEquals(map("a", "1", "d", null).hashCode(), retained.hashCode());
+        assertSame(retained, TagSet.of(map("a", "1", "d", null)));
+        assertEquals(map("c", "3"), tags.retainKeys("c"::equals));
+    }
+
+    @Test
+    public void testImmutable() {
+        try {
+            TagSet.of(map("a", "b")).put("c", "d");
+            fail();
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void testMetricsShareTags() throws Exception {
+        final Metric a = new Metric("a", 1, 1, map("device", "d1"));
+        final Metric b = Jackson.newObjectMapper().readValue(
+                "{\"metric\":\"b\",\"timestamp\":1,\"value\":1,\"tags\":{\"device\":\"d1\"}}", Metric.class);
+        assertSame(a.getTags(), b.getTags());
+        a.addTag("x", "y");
+        b.addTag("x", "y");
+        assertSame(a.getTags(), b.getTags());
+        assertEquals(ImmutableMap.of("device", "d1"), new Metric(b).getTags().without("x"));
+        assertEquals("y", b.removeTag("x"));
+        assertEquals(ImmutableMap.of("device", "d1"), b.getTags());
+    }
+}